@@ -1,5 +1,5 @@
 # HsmCrypt Multi-Module Build Script
-# Builds both hsmcrypt library and hsmcrypt-example
+# Builds hsmcrypt library, hsmcrypt-example and hsmcrypt-benchmarks
 
 $ErrorActionPreference = "Stop"
 
@@ -8,7 +8,7 @@ Write-Host "HsmCrypt Multi-Module Build" -ForegroundColor Cyan
 Write-Host "========================================" -ForegroundColor Cyan
 Write-Host ""
 
-$modules = @("hsmcrypt", "hsmcrypt-example")
+$modules = @("hsmcrypt", "hsmcrypt-example", "hsmcrypt-benchmarks")
 $buildCommand = "mvn clean install -DskipTests"
 
 $successCount = 0
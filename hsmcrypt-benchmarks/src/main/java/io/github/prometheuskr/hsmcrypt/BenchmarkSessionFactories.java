@@ -0,0 +1,40 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
+
+/**
+ * Pluggable {@link HsmSessionFactory} selection for the benchmarks.
+ * <p>
+ * The <code>factory</code> benchmark parameter is either <code>simulator</code>,
+ * the in-JVM HSM simulator with no added latency, or the fully qualified name
+ * of an HsmSessionFactory implementation with a no-argument constructor.
+ * 
+ * @author Prometheus
+ */
+final class BenchmarkSessionFactories {
+
+    /** Token label used by all benchmarks */
+    static final String TOKEN_LABEL = "BENCH";
+
+    /** Key label used by all benchmarks */
+    static final String KEY_LABEL = "BenchKey";
+
+    private BenchmarkSessionFactories() {
+    }
+
+    /**
+     * Creates the session factory selected by the benchmark parameter.
+     * 
+     * @param factory
+     *                <code>simulator</code> or a fully qualified class name
+     * @return the session factory
+     * @throws Exception
+     *                   if the class cannot be instantiated
+     */
+    static HsmSessionFactory create(String factory) throws Exception {
+        if ("simulator".equals(factory)) {
+            return new SimulatedHsm(new HsmCryptProperties.Simulator()).getSessionFactory();
+        }
+        return (HsmSessionFactory) Class.forName(factory).getDeclaredConstructor().newInstance();
+    }
+}
@@ -0,0 +1,29 @@
+package io.github.prometheuskr.hsmcrypt;
+
+/**
+ * Deterministic benchmark inputs.
+ * 
+ * @author Prometheus
+ */
+final class BenchmarkValues {
+
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+    private BenchmarkValues() {
+    }
+
+    /**
+     * Creates a plaintext of the given length.
+     * 
+     * @param length
+     *               the number of characters
+     * @return the plaintext
+     */
+    static String plainText(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(ALPHABET.charAt(i % ALPHABET.length()));
+        }
+        return sb.toString();
+    }
+}
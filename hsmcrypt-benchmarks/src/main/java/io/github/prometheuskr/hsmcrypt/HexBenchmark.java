@@ -0,0 +1,72 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Throughput and allocation of the {@link Hex} table codec against the
+ * <code>String.format("%02x")</code> and <code>Character.digit</code> loops
+ * HsmCrypt used before, so the GC profiler shows the allocation drop per
+ * byte.
+ * 
+ * @author Prometheus
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HexBenchmark {
+
+    /** Data length in bytes */
+    @Param({ "16", "256", "4096" })
+    public int byteSize;
+
+    private byte[] bytes;
+    private String hex;
+
+    @Setup
+    public void setUp() {
+        bytes = new byte[byteSize];
+        for (int i = 0; i < byteSize; i++) {
+            bytes[i] = (byte) (i * 31 + 7);
+        }
+        hex = Hex.encode(bytes);
+    }
+
+    @Benchmark
+    public String encodeTable() {
+        return Hex.encode(bytes);
+    }
+
+    @Benchmark
+    public String encodeFormat() {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    @Benchmark
+    public byte[] decodeTable() {
+        return Hex.decode(hex);
+    }
+
+    @Benchmark
+    public byte[] decodeDigit() {
+        int len = hex.length();
+        byte[] decoded = new byte[len / 2];
+        for (int i = 0; i < len; i += 2) {
+            decoded[i / 2] = (byte) ((Character.digit(hex.charAt(i), 16) << 4)
+                    + Character.digit(hex.charAt(i + 1), 16));
+        }
+        return decoded;
+    }
+}
@@ -0,0 +1,65 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import io.github.prometheuskr.sipwon.constant.HsmMechanism;
+
+/**
+ * Throughput of {@link HsmCrypt} encryption and decryption, including the
+ * randomization, padding and hex encoding around the HSM call.
+ * 
+ * @author Prometheus
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HsmCryptBenchmark {
+
+    /** Session factory: <code>simulator</code> or an HsmSessionFactory class name */
+    @Param("simulator")
+    public String factory;
+
+    /** Plaintext length in characters */
+    @Param({ "16", "256", "4096" })
+    public int valueSize;
+
+    private HsmCrypt hsmCrypt;
+    private String plainText;
+    private String encryptedText;
+
+    @Setup
+    public void setUp() throws Exception {
+        HsmSessionPool sessionPool = new HsmSessionPool(BenchmarkSessionFactories.create(factory),
+                BenchmarkSessionFactories.TOKEN_LABEL, BenchmarkSessionFactories.KEY_LABEL,
+                new HsmCryptProperties.Pool());
+        hsmCrypt = new HsmCrypt(HsmTokenBalancer.single(sessionPool), BenchmarkSessionFactories.KEY_LABEL,
+                HsmMechanism.AES_CBC, new HsmCryptProperties.Encryption());
+        plainText = BenchmarkValues.plainText(valueSize);
+        encryptedText = hsmCrypt.encrypt(plainText);
+    }
+
+    @TearDown
+    public void tearDown() {
+        hsmCrypt.close();
+    }
+
+    @Benchmark
+    public String encrypt() {
+        return hsmCrypt.encrypt(plainText);
+    }
+
+    @Benchmark
+    public String decrypt() {
+        return hsmCrypt.decrypt(encryptedText);
+    }
+}
@@ -0,0 +1,40 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmark runner.
+ * <p>
+ * Runs the selected benchmarks once per thread count and adds the GC profiler,
+ * so every result reports throughput together with the allocation rate
+ * (<code>gc.alloc.rate.norm</code>). Standard JMH command line options are
+ * accepted; <code>-t</code> overrides the thread counts.
+ * 
+ * @author Prometheus
+ */
+public class HsmCryptBenchmarks {
+
+    private static final int[] THREAD_COUNTS = { 1, 4, 16 };
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        int[] threadCounts = commandLine.getThreads().hasValue()
+                ? new int[] { commandLine.getThreads().get() }
+                : THREAD_COUNTS;
+
+        for (int threads : threadCounts) {
+            Options options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
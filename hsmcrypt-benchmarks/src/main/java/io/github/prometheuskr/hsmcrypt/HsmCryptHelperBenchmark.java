@@ -0,0 +1,67 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import io.github.prometheuskr.sipwon.constant.HsmMechanism;
+
+/**
+ * Throughput of {@link HsmCryptHelper#decryptIfEncrypted(String)} for
+ * encrypted values and for plain values passed through unchanged.
+ * 
+ * @author Prometheus
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HsmCryptHelperBenchmark {
+
+    /** Session factory: <code>simulator</code> or an HsmSessionFactory class name */
+    @Param("simulator")
+    public String factory;
+
+    /** Plaintext length in characters */
+    @Param({ "16", "256", "4096" })
+    public int valueSize;
+
+    private HsmCrypt hsmCrypt;
+    private HsmCryptHelper helper;
+    private String plainText;
+    private String formattedText;
+
+    @Setup
+    public void setUp() throws Exception {
+        HsmSessionPool sessionPool = new HsmSessionPool(BenchmarkSessionFactories.create(factory),
+                BenchmarkSessionFactories.TOKEN_LABEL, BenchmarkSessionFactories.KEY_LABEL,
+                new HsmCryptProperties.Pool());
+        hsmCrypt = new HsmCrypt(HsmTokenBalancer.single(sessionPool), BenchmarkSessionFactories.KEY_LABEL,
+                HsmMechanism.AES_CBC, new HsmCryptProperties.Encryption());
+        helper = new HsmCryptHelper(hsmCrypt);
+        plainText = BenchmarkValues.plainText(valueSize);
+        formattedText = helper.encryptWithFormat(plainText);
+    }
+
+    @TearDown
+    public void tearDown() {
+        hsmCrypt.close();
+    }
+
+    @Benchmark
+    public String decryptEncrypted() {
+        return helper.decryptIfEncrypted(formattedText);
+    }
+
+    @Benchmark
+    public String decryptPlain() {
+        return helper.decryptIfEncrypted(plainText);
+    }
+}
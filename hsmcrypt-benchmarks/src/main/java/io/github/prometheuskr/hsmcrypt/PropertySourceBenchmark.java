@@ -0,0 +1,93 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.PropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+import io.github.prometheuskr.sipwon.constant.HsmMechanism;
+
+/**
+ * Throughput of property lookups through the property source wrapper installed
+ * by {@link EncryptablePropertyResolver}, for encrypted and plain values, with
+ * and without the decrypted value cache.
+ * 
+ * @author Prometheus
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PropertySourceBenchmark {
+
+    private static final String SOURCE_NAME = "benchmark";
+
+    /** Session factory: <code>simulator</code> or an HsmSessionFactory class name */
+    @Param("simulator")
+    public String factory;
+
+    /** Plaintext length in characters */
+    @Param({ "16", "256", "4096" })
+    public int valueSize;
+
+    /** Value of hsmcrypt.encryption.cache.enabled */
+    @Param({ "true", "false" })
+    public boolean cache;
+
+    private HsmCrypt hsmCrypt;
+    private PropertySource<?> propertySource;
+
+    @Setup
+    public void setUp() throws Exception {
+        HsmSessionPool sessionPool = new HsmSessionPool(BenchmarkSessionFactories.create(factory),
+                BenchmarkSessionFactories.TOKEN_LABEL, BenchmarkSessionFactories.KEY_LABEL,
+                new HsmCryptProperties.Pool());
+        hsmCrypt = new HsmCrypt(HsmTokenBalancer.single(sessionPool), BenchmarkSessionFactories.KEY_LABEL,
+                HsmMechanism.AES_CBC, new HsmCryptProperties.Encryption());
+        HsmCryptHelper helper = new HsmCryptHelper(hsmCrypt);
+
+        String plainText = BenchmarkValues.plainText(valueSize);
+        Map<String, Object> values = new HashMap<>();
+        values.put("hsmcrypt.encryption.cache.enabled", String.valueOf(cache));
+        values.put("bench.encrypted", helper.encryptWithFormat(plainText));
+        values.put("bench.plain", plainText);
+
+        ConfigurableEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource(SOURCE_NAME, values));
+
+        DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+        beanFactory.registerSingleton("environment", environment);
+        beanFactory.registerSingleton("hsmCryptHelper", helper);
+        new EncryptablePropertyResolver().postProcessBeanFactory(beanFactory);
+
+        propertySource = environment.getPropertySources().get(SOURCE_NAME);
+    }
+
+    @TearDown
+    public void tearDown() {
+        hsmCrypt.close();
+    }
+
+    @Benchmark
+    public Object getEncryptedProperty() {
+        return propertySource.getProperty("bench.encrypted");
+    }
+
+    @Benchmark
+    public Object getPlainProperty() {
+        return propertySource.getProperty("bench.plain");
+    }
+}
@@ -0,0 +1,75 @@
+package io.github.prometheuskr.hsmcrypt;
+
+/**
+ * Result of one item of a bulk encryption or decryption.
+ * <p>
+ * Holds either the resulting value or the error raised for that item, so a
+ * single failing value does not abort the rest of the batch.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ * @see StringEncryptor#decryptAll(java.util.Collection)
+ */
+final class BatchResult {
+
+    private final String value;
+    private final RuntimeException error;
+
+    private BatchResult(String value, RuntimeException error) {
+        this.value = value;
+        this.error = error;
+    }
+
+    /**
+     * Creates a successful result.
+     * 
+     * @param value
+     *              the resulting value
+     * @return the result
+     */
+    static BatchResult success(String value) {
+        return new BatchResult(value, null);
+    }
+
+    /**
+     * Creates a failed result.
+     * 
+     * @param error
+     *              the error raised for the item
+     * @return the result
+     */
+    static BatchResult failure(RuntimeException error) {
+        if (error == null) {
+            throw new IllegalArgumentException("error cannot be null");
+        }
+        return new BatchResult(null, error);
+    }
+
+    /**
+     * Checks whether the item was processed successfully.
+     * 
+     * @return true if the item succeeded
+     */
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * Gets the resulting value.
+     * 
+     * @return the value, or null if the item failed
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Gets the error raised for the item.
+     * 
+     * @return the error, or null if the item succeeded
+     */
+    public RuntimeException getError() {
+        return error;
+    }
+}
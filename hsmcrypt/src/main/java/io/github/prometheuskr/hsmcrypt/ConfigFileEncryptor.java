@@ -0,0 +1,395 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * In-place encryption of configuration files.
+ * <p>
+ * Finds values marked as <code>HCPLAIN(plaintext)</code> in a file or in all
+ * <code>application*.yml</code>, <code>application*.yaml</code> and
+ * <code>application*.properties</code> files of a directory tree, encrypts them
+ * in parallel, and replaces each marker with its <code>HCENC(...)</code> value.
+ * Only the markers are replaced, so formatting, comments and line endings stay
+ * as they are. {@link #rekeying(HsmCryptRekeyer, ProgressCheckpoint)} does the
+ * same for <code>HCENC(...)</code> values, re-encrypting them with another key.
+ * <p>
+ * Values are encrypted in chunks through the bulk API on a fixed number of
+ * worker threads, each borrowing its own pooled HSM session. Files are processed
+ * in rounds of {@value #FILES_PER_ROUND}; a file is rewritten atomically, and
+ * only if all of its values were encrypted. With a {@link ProgressCheckpoint},
+ * files completed by an earlier run are skipped.
+ * <p>
+ * A marker ends at the parenthesis matching its opening one and must not span
+ * lines, so plaintexts may contain balanced parentheses only.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ * @see HsmCryptCli
+ */
+@Slf4j
+class ConfigFileEncryptor {
+
+    /** Marker for values to encrypt */
+    static final String PLAIN_PREFIX = "HCPLAIN(";
+
+    /** Maximum number of values per bulk call */
+    private static final int MAX_CHUNK_SIZE = 64;
+
+    /** Number of files whose values are processed together before they are written */
+    private static final int FILES_PER_ROUND = 64;
+
+    private final String markerPrefix;
+    private final Function<List<String>, List<BatchResult>> bulkOperation;
+    private final ProgressCheckpoint checkpoint;
+
+    /**
+     * Creates an encryptor for HCPLAIN(...) values.
+     * 
+     * @param hsmCryptHelper
+     *                       the helper encrypting values
+     * @param threads
+     *                       the number of chunks encrypted concurrently
+     */
+    public ConfigFileEncryptor(HsmCryptHelper hsmCryptHelper, int threads) {
+        this(PLAIN_PREFIX, plainTexts -> ParallelBatch.apply(plainTexts, threads, MAX_CHUNK_SIZE,
+                "hsmcrypt-enc-files-", hsmCryptHelper::encryptAllWithFormat), null);
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be greater than zero");
+        }
+    }
+
+    private ConfigFileEncryptor(String markerPrefix, Function<List<String>, List<BatchResult>> bulkOperation,
+            ProgressCheckpoint checkpoint) {
+        this.markerPrefix = markerPrefix;
+        this.bulkOperation = bulkOperation;
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Creates an encryptor that re-encrypts HCENC(...) values with another key.
+     * 
+     * @param rekeyer
+     *                   the re-keyer; its source helper's prefix marks the values
+     * @param checkpoint
+     *                   the checkpoint recording completed files, or null
+     * @return the encryptor
+     */
+    static ConfigFileEncryptor rekeying(HsmCryptRekeyer rekeyer, ProgressCheckpoint checkpoint) {
+        String prefix = rekeyer.getSource().getPrefix();
+        String suffix = rekeyer.getSource().getSuffix();
+        if (!")".equals(suffix) || !prefix.endsWith("(")) {
+            throw new IllegalArgumentException("Only parenthesized formats such as HCENC(...) are supported");
+        }
+        return new ConfigFileEncryptor(prefix, contents -> {
+            List<String> values = new ArrayList<>(contents.size());
+            for (String content : contents) {
+                values.add(prefix + content + suffix);
+            }
+            return rekeyer.rekeyAll(values);
+        }, checkpoint);
+    }
+
+    /**
+     * Encrypts all marked values in a file or directory tree.
+     * 
+     * @param path
+     *             a configuration file, or a directory searched recursively for
+     *             configuration files
+     * @return one result per file containing markers, failing or skipped, in path
+     *         order
+     * @throws IOException
+     *                     if the directory cannot be searched
+     */
+    public List<FileResult> encrypt(Path path) throws IOException {
+        List<Path> paths = findConfigFiles(path);
+        List<FileResult> results = new ArrayList<>();
+        for (int from = 0; from < paths.size(); from += FILES_PER_ROUND) {
+            processRound(paths.subList(from, Math.min(from + FILES_PER_ROUND, paths.size())), results);
+        }
+        return results;
+    }
+
+    private void processRound(List<Path> paths, List<FileResult> results) {
+        List<ConfigFile> files = new ArrayList<>();
+        for (Path file : paths) {
+            try {
+                ConfigFile configFile = ConfigFile.read(file, markerPrefix);
+                if (checkpoint != null && checkpoint.isDone(file, configFile.content)) {
+                    results.add(FileResult.skipped(file));
+                } else if (!configFile.markers.isEmpty()) {
+                    files.add(configFile);
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                results.add(new FileResult(file, 0, e.getMessage()));
+            }
+        }
+
+        List<Marker> markers = new ArrayList<>();
+        for (ConfigFile file : files) {
+            markers.addAll(file.markers);
+        }
+        transformAll(markers);
+
+        for (ConfigFile file : files) {
+            results.add(file.write(checkpoint));
+        }
+        results.sort((a, b) -> a.getPath().compareTo(b.getPath()));
+    }
+
+    /**
+     * Finds the configuration files to process.
+     * 
+     * @param path
+     *             a file, or a directory to search recursively
+     * @return the files in path order
+     * @throws IOException
+     *                     if the directory cannot be searched
+     */
+    static List<Path> findConfigFiles(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return Collections.singletonList(path);
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(ConfigFileEncryptor::isConfigFile)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static boolean isConfigFile(Path file) {
+        String name = file.getFileName().toString();
+        return name.startsWith("application")
+                && (name.endsWith(".yml") || name.endsWith(".yaml") || name.endsWith(".properties"));
+    }
+
+    /**
+     * Runs the bulk operation over the marker contents and stores each result on
+     * its marker.
+     */
+    private void transformAll(List<Marker> markers) {
+        List<String> contents = new ArrayList<>(markers.size());
+        for (Marker marker : markers) {
+            contents.add(marker.content);
+        }
+        List<BatchResult> results = bulkOperation.apply(contents);
+        for (int i = 0; i < markers.size(); i++) {
+            markers.get(i).result = results.get(i);
+        }
+    }
+
+    /**
+     * Writes the content to a temporary file next to the target and moves it over
+     * the target, so readers never see a partially written file.
+     */
+    private static void writeAtomically(Path file, String content) throws IOException {
+        Path absolute = file.toAbsolutePath();
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName() + ".", ".tmp");
+        try {
+            Files.write(temp, content.getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(absolute));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system, the default permissions apply
+            }
+            try {
+                Files.move(temp, absolute, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Outcome of processing one file.
+     */
+    static final class FileResult {
+        private final Path path;
+        private final int encryptedCount;
+        private final String error;
+        private final boolean skipped;
+
+        FileResult(Path path, int encryptedCount, String error) {
+            this(path, encryptedCount, error, false);
+        }
+
+        private FileResult(Path path, int encryptedCount, String error, boolean skipped) {
+            this.path = path;
+            this.encryptedCount = encryptedCount;
+            this.error = error;
+            this.skipped = skipped;
+        }
+
+        static FileResult skipped(Path path) {
+            return new FileResult(path, 0, null, true);
+        }
+
+        /**
+         * Gets the file path.
+         * 
+         * @return the path
+         */
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * Gets the number of values encrypted in the file.
+         * 
+         * @return the count, 0 if the file was not written
+         */
+        public int getEncryptedCount() {
+            return encryptedCount;
+        }
+
+        /**
+         * Checks whether the file was processed successfully.
+         * 
+         * @return true if the file was rewritten
+         */
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        /**
+         * Checks whether the file was skipped because an earlier run completed
+         * it.
+         * 
+         * @return true if the file was skipped
+         */
+        public boolean isSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Gets the reason the file was left unchanged.
+         * 
+         * @return the error message, or null on success
+         */
+        public String getError() {
+            return error;
+        }
+    }
+
+    /**
+     * A configuration file and the markers found in it.
+     */
+    private static final class ConfigFile {
+        private final Path path;
+        private final String content;
+        private final List<Marker> markers;
+
+        private ConfigFile(Path path, String content, List<Marker> markers) {
+            this.path = path;
+            this.content = content;
+            this.markers = markers;
+        }
+
+        static ConfigFile read(Path path, String markerPrefix) throws IOException {
+            String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+            List<Marker> markers = new ArrayList<>();
+            int from = 0;
+            int start;
+            while ((start = content.indexOf(markerPrefix, from)) >= 0) {
+                int end = findMarkerEnd(content, start + markerPrefix.length());
+                if (end < 0) {
+                    throw new IllegalArgumentException(
+                            "Unterminated " + markerPrefix + " marker at line " + lineOf(content, start));
+                }
+                markers.add(new Marker(start, end, content.substring(start + markerPrefix.length(), end - 1)));
+                from = end;
+            }
+            return new ConfigFile(path, content, markers);
+        }
+
+        /**
+         * Finds the index after the parenthesis closing a marker.
+         * 
+         * @return the end index, or -1 if the marker is not closed on its line
+         */
+        private static int findMarkerEnd(String content, int from) {
+            int depth = 1;
+            for (int i = from; i < content.length(); i++) {
+                char c = content.charAt(i);
+                if (c == '(') {
+                    depth++;
+                } else if (c == ')' && --depth == 0) {
+                    return i + 1;
+                } else if (c == '\n' || c == '\r') {
+                    break;
+                }
+            }
+            return -1;
+        }
+
+        private static int lineOf(String content, int index) {
+            int line = 1;
+            for (int i = 0; i < index; i++) {
+                if (content.charAt(i) == '\n') {
+                    line++;
+                }
+            }
+            return line;
+        }
+
+        FileResult write(ProgressCheckpoint checkpoint) {
+            StringBuilder sb = new StringBuilder(content.length() + markers.size() * 64);
+            int from = 0;
+            for (Marker marker : markers) {
+                if (!marker.result.isSuccess()) {
+                    return new FileResult(path, 0, "Line " + lineOf(content, marker.start) + ": "
+                            + marker.result.getError().getMessage());
+                }
+                sb.append(content, from, marker.start).append(marker.result.getValue());
+                from = marker.end;
+            }
+            sb.append(content, from, content.length());
+
+            try {
+                String newContent = sb.toString();
+                if (checkpoint != null) {
+                    // Recorded first, so a restart recognises the file if the move happened
+                    checkpoint.recordFile(path, newContent);
+                }
+                writeAtomically(path, newContent);
+            } catch (IOException e) {
+                log.debug("Failed to write {}", path, e);
+                return new FileResult(path, 0, "Failed to write file: " + e.getMessage());
+            }
+            return new FileResult(path, markers.size(), null);
+        }
+    }
+
+    /**
+     * One marked value, from the marker prefix to its closing parenthesis.
+     */
+    private static final class Marker {
+        private final int start;
+        private final int end;
+        /** Text between the parentheses */
+        private final String content;
+        private BatchResult result;
+
+        private Marker(int start, int end, String content) {
+            this.start = start;
+            this.end = end;
+            this.content = content;
+        }
+    }
+}
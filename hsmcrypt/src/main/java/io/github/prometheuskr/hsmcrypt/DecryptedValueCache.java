@@ -0,0 +1,273 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of decrypted property values.
+ * <p>
+ * Entries are keyed by property source name, property name and the raw
+ * encrypted value, so a changed ciphertext is always a cache miss and goes back
+ * to the HSM, while repeated reads of an unchanged value are served from memory.
+ * The least recently used entry is evicted once the size limit is reached, and
+ * entries older than the configured TTL are decrypted again.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ * @see EncryptablePropertyResolver
+ */
+class DecryptedValueCache {
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final Map<Key, CachedValue> entries;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Creates a cache from the given configuration.
+     * 
+     * @param config
+     *               the cache configuration
+     */
+    public DecryptedValueCache(HsmCryptProperties.Cache config) {
+        this(config.getMaxSize(), config.getTtl() == null ? 0L : config.getTtl().toNanos());
+    }
+
+    /**
+     * Creates a cache with the given limits.
+     * 
+     * @param maxSize
+     *                 the maximum number of entries
+     * @param ttlNanos
+     *                 the entry time-to-live in nanoseconds, zero or negative for
+     *                 no expiry
+     */
+    public DecryptedValueCache(int maxSize, long ttlNanos) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be greater than zero");
+        }
+
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlNanos;
+        this.entries = new LinkedHashMap<Key, CachedValue>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedValue> eldest) {
+                return size() > DecryptedValueCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached decrypted value, decrypting and caching it on a miss.
+     * <p>
+     * The decryptor runs outside the cache lock so a slow HSM call does not block
+     * readers of other properties.
+     * 
+     * @param sourceName
+     *                     the property source name
+     * @param propertyName
+     *                     the property name
+     * @param encrypted
+     *                     the raw encrypted value
+     * @param decryptor
+     *                     the function decrypting the raw value
+     * @return the decrypted value
+     */
+    public String get(String sourceName, String propertyName, String encrypted,
+            Function<String, String> decryptor) {
+        Key key = new Key(sourceName, propertyName, encrypted);
+        long now = System.nanoTime();
+
+        synchronized (entries) {
+            CachedValue entry = entries.get(key);
+            if (entry != null && !entry.isExpired(now, ttlNanos)) {
+                hitCount.incrementAndGet();
+                return entry.value;
+            }
+        }
+
+        missCount.incrementAndGet();
+        String decrypted = decryptor.apply(encrypted);
+        put(key, decrypted, now);
+        return decrypted;
+    }
+
+    /**
+     * Stores an already decrypted value.
+     * 
+     * @param sourceName
+     *                     the property source name
+     * @param propertyName
+     *                     the property name
+     * @param encrypted
+     *                     the raw encrypted value
+     * @param decrypted
+     *                     the decrypted value
+     */
+    public void put(String sourceName, String propertyName, String encrypted, String decrypted) {
+        put(new Key(sourceName, propertyName, encrypted), decrypted, System.nanoTime());
+    }
+
+    /**
+     * Checks whether a decrypted value is cached and not expired.
+     * 
+     * @param sourceName
+     *                     the property source name
+     * @param propertyName
+     *                     the property name
+     * @param encrypted
+     *                     the raw encrypted value
+     * @return true if a read would be served from the cache
+     */
+    public boolean contains(String sourceName, String propertyName, String encrypted) {
+        Key key = new Key(sourceName, propertyName, encrypted);
+        long now = System.nanoTime();
+        synchronized (entries) {
+            CachedValue entry = entries.get(key);
+            return entry != null && !entry.isExpired(now, ttlNanos);
+        }
+    }
+
+    /**
+     * Removes the values whose property no longer holds the encrypted value
+     * they were decrypted from, because it changed or is gone.
+     * 
+     * @param currentValue
+     *                     gives the raw value a property source holds for a
+     *                     property now, or null if it has none
+     * @return the number of values removed
+     */
+    public int removeStale(BiFunction<String, String, Object> currentValue) {
+        int removed = 0;
+        synchronized (entries) {
+            Iterator<Key> keys = entries.keySet().iterator();
+            while (keys.hasNext()) {
+                Key key = keys.next();
+                if (!key.encrypted.equals(currentValue.apply(key.sourceName, key.propertyName))) {
+                    keys.remove();
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all cached values.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Gets the number of reads served from the cache.
+     * 
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Gets the number of reads that required decryption.
+     * 
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Gets the maximum number of cached values.
+     * 
+     * @return the maximum cache size
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Gets the number of cached values.
+     * 
+     * @return the current cache size
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void put(Key key, String value, long now) {
+        synchronized (entries) {
+            entries.put(key, new CachedValue(value, now));
+        }
+    }
+
+    /**
+     * Cache key: property source name, property name and raw encrypted value.
+     */
+    private static final class Key {
+        private final String sourceName;
+        private final String propertyName;
+        private final String encrypted;
+        private final int hash;
+
+        Key(String sourceName, String propertyName, String encrypted) {
+            this.sourceName = sourceName;
+            this.propertyName = propertyName;
+            this.encrypted = encrypted;
+            int h = sourceName.hashCode();
+            h = 31 * h + propertyName.hashCode();
+            h = 31 * h + encrypted.hashCode();
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash
+                    && sourceName.equals(other.sourceName)
+                    && propertyName.equals(other.propertyName)
+                    && encrypted.equals(other.encrypted);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Cached decrypted value with its creation time.
+     */
+    private static final class CachedValue {
+        private final String value;
+        private final long createdNanos;
+
+        CachedValue(String value, long createdNanos) {
+            this.value = value;
+            this.createdNanos = createdNanos;
+        }
+
+        boolean isExpired(long now, long ttlNanos) {
+            return ttlNanos > 0 && now - createdNanos >= ttlNanos;
+        }
+    }
+}
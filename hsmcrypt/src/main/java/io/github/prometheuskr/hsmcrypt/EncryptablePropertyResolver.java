@@ -1,11 +1,27 @@
 package io.github.prometheuskr.hsmcrypt;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.boot.context.properties.bind.Binder;
 import org.springframework.core.Ordered;
 import org.springframework.core.env.ConfigurableEnvironment;
 import org.springframework.core.env.EnumerablePropertySource;
+import org.springframework.core.env.PropertySource;
+
+import lombok.extern.slf4j.Slf4j;
 
 /**
  * Property resolver that automatically decrypts HCENC() formatted property
@@ -17,6 +33,26 @@ import org.springframework.core.env.EnumerablePropertySource;
  * initialized,
  * avoiding circular dependency issues during Spring context initialization.
  * <p>
+ * Decrypted values are kept in a {@link DecryptedValueCache} configured by
+ * <code>hsmcrypt.encryption.cache.*</code>, so repeated reads of the same
+ * property do not go back to the HSM.
+ * <p>
+ * When <code>hsmcrypt.encryption.eager.enabled</code> is true, all encrypted
+ * values of the wrapped sources are decrypted concurrently into the cache when
+ * the HsmCryptHelper bean is initialized, on the thread creating it and before
+ * it is handed out, instead of one at a time on first read. Beans created after
+ * it read cached values. Eager mode requires the cache.
+ * <p>
+ * When <code>hsmcrypt.encryption.early.enabled</code> is true,
+ * {@link HsmCryptEnvironmentPostProcessor} has already decrypted the values, and
+ * only sources still holding encrypted values are wrapped; all others are read
+ * directly.
+ * <p>
+ * When the environment's property sources are replaced at runtime,
+ * {@link #refresh()} wraps the new sources and decrypts only the values whose
+ * ciphertext changed. Property bundles reloaded by the refresh are decrypted
+ * again, as {@link HsmCryptEnvironmentPostProcessor} does at startup.
+ * <p>
  * Package-private: Only accessible within hsmcrypt package.
  * Automatically registered by {@link HsmCryptAutoConfiguration} when encryption
  * is enabled.
@@ -24,28 +60,323 @@ import org.springframework.core.env.EnumerablePropertySource;
  * @author Prometheus
  * @see HsmCryptAutoConfiguration#encryptablePropertyResolver()
  */
+@Slf4j
 class EncryptablePropertyResolver implements BeanFactoryPostProcessor, Ordered {
 
+    private ConfigurableListableBeanFactory beanFactory;
+    private ConfigurableEnvironment environment;
+    private HsmCryptProperties.Eager eagerConfig;
+    private boolean eager;
+    private boolean early;
+    private final Object helperLock = new Object();
+    private volatile DecryptedValueCache cache;
+    private volatile HsmCryptHelper helper;
+
     @Override
     public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) throws BeansException {
-        ConfigurableEnvironment environment = beanFactory.getBean(ConfigurableEnvironment.class);
+        this.beanFactory = beanFactory;
+        this.environment = beanFactory.getBean(ConfigurableEnvironment.class);
+
+        // Properties are bound directly since configuration properties beans are not
+        // bound yet at this point
+        HsmCryptProperties properties = Binder.get(environment)
+                .bind("hsmcrypt", HsmCryptProperties.class)
+                .orElseGet(HsmCryptProperties::new);
+        HsmCryptProperties.Cache cacheConfig = properties.getEncryption().getCache();
+        eagerConfig = properties.getEncryption().getEager();
+        eager = Boolean.TRUE.equals(eagerConfig.getEnabled());
+        if (eager) {
+            if (eagerConfig.getThreads() == null || eagerConfig.getThreads() <= 0) {
+                throw new IllegalArgumentException("hsmcrypt.encryption.eager.threads must be greater than zero");
+            }
+            if (!Boolean.TRUE.equals(cacheConfig.getEnabled())) {
+                throw new IllegalArgumentException("hsmcrypt.encryption.eager.enabled requires "
+                        + "hsmcrypt.encryption.cache.enabled, pre-decrypted values are kept in the cache");
+            }
+        }
+        if (Boolean.TRUE.equals(cacheConfig.getEnabled())) {
+            cache = new DecryptedValueCache(cacheConfig);
+        }
+        beanFactory.addBeanPostProcessor(new HelperInitializedPostProcessor());
 
         // Wrap all PropertySources with EncryptablePropertySourceWrapper
         // HsmCryptHelper is obtained lazily at actual usage time
-        environment.getPropertySources().forEach(propertySource -> {
+        early = Boolean.TRUE.equals(properties.getEncryption().getEarly().getEnabled());
+        wrapPropertySources();
+    }
+
+    @Override
+    public int getOrder() {
+        return Ordered.LOWEST_PRECEDENCE;
+    }
+
+    /**
+     * Reconciles the wrapped property sources with the environment after its
+     * property sources were replaced, for example by a Spring Cloud refresh.
+     * <p>
+     * Reloaded property bundles are decrypted first, one HSM call each. New
+     * and replaced sources are wrapped, cached values whose ciphertext changed
+     * or disappeared are dropped, and the encrypted values not cached yet are
+     * decrypted in parallel into the cache. Unchanged values stay cached, so a
+     * refresh costs one HSM call per changed value. Without a cache, sources
+     * are only wrapped.
+     * 
+     * @throws HsmCryptException
+     *                           if a reloaded property bundle cannot be
+     *                           decrypted, since its properties would
+     *                           otherwise silently disappear
+     * @see HsmCryptRefreshListener
+     */
+    synchronized void refresh() {
+        if (environment == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        int bundles = decryptBundles();
+        int wrapped = wrapPropertySources();
+        int dropped = cache != null ? cache.removeStale(this::rawValue) : 0;
+        HsmCryptHelper current = getHelper();
+        int decrypted = current != null && cache != null ? preDecrypt(current, true) : 0;
+        log.info("Environment refresh: decrypted {} property bundle(s), wrapped {} property source(s), "
+                + "decrypted {} changed value(s), dropped {} stale cached value(s) in {} ms", bundles, wrapped,
+                decrypted, dropped, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Replaces the property bundles still encrypted, such as those a refresh
+     * reloaded from their <code>hsmcrypt:</code> import, with their decrypted
+     * properties.
+     * 
+     * @return the number of bundles decrypted
+     * @throws HsmCryptException
+     *                           if a bundle cannot be decrypted
+     */
+    private int decryptBundles() {
+        int decrypted = 0;
+        for (PropertySource<?> propertySource : environment.getPropertySources()) {
+            if (propertySource instanceof HsmCryptBundlePropertySource) {
+                HsmCryptHelper current = getHelper();
+                if (current == null) {
+                    throw new HsmCryptException(
+                            "HsmCryptHelper is not available to decrypt " + propertySource.getName());
+                }
+                environment.getPropertySources().replace(propertySource.getName(),
+                        ((HsmCryptBundlePropertySource) propertySource).decrypt(current));
+                decrypted++;
+            }
+        }
+        return decrypted;
+    }
+
+    /**
+     * Wraps the enumerable property sources not wrapped yet; in early mode only
+     * those still holding encrypted values.
+     * 
+     * @return the number of sources wrapped
+     */
+    private int wrapPropertySources() {
+        int wrapped = 0;
+        for (PropertySource<?> propertySource : environment.getPropertySources()) {
             if (propertySource instanceof EnumerablePropertySource &&
-                    !(propertySource instanceof EncryptablePropertySourceWrapper)) {
+                    !(propertySource instanceof EncryptablePropertySourceWrapper) &&
+                    (!early || !HsmCryptEnvironmentPostProcessor.encryptedPropertyNames(
+                            (EnumerablePropertySource<?>) propertySource).isEmpty())) {
                 environment.getPropertySources().replace(
                         propertySource.getName(),
-                        new EncryptablePropertySourceWrapper<>((EnumerablePropertySource<?>) propertySource,
-                                beanFactory));
+                        new EncryptablePropertySourceWrapper<>((EnumerablePropertySource<?>) propertySource, this));
+                wrapped++;
+            }
+        }
+        return wrapped;
+    }
+
+    /**
+     * Gets the raw value a property source holds for a property.
+     * 
+     * @return the undecrypted value, or null if the source or property is gone
+     */
+    private Object rawValue(String sourceName, String propertyName) {
+        PropertySource<?> propertySource = environment.getPropertySources().get(sourceName);
+        if (propertySource instanceof EncryptablePropertySourceWrapper) {
+            return ((EncryptablePropertySourceWrapper<?>) propertySource).delegate.getProperty(propertyName);
+        }
+        return propertySource != null ? propertySource.getProperty(propertyName) : null;
+    }
+
+    /**
+     * Gets the decrypted value cache shared by all wrapped property sources.
+     * 
+     * @return the cache, or null if caching is disabled or the resolver has not
+     *         run yet
+     */
+    DecryptedValueCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Gets the HsmCryptHelper bean, creating it on first use if the context has
+     * not yet.
+     * 
+     * @return the helper, or null if it is not available yet
+     */
+    private HsmCryptHelper getHelper() {
+        HsmCryptHelper current = helper;
+        if (current == null) {
+            HsmCryptHelper resolved;
+            try {
+                // Initializing the bean publishes it through helperInitialized
+                resolved = beanFactory.getBean(HsmCryptHelper.class);
+            } catch (BeansException e) {
+                // Helper not yet available
+                return null;
+            }
+            // Bean created before the post-processor was added
+            helperInitialized(resolved);
+            current = helper;
+        }
+        return current;
+    }
+
+    /**
+     * Publishes the helper once its bean is initialized. In eager mode all
+     * encrypted values are decrypted first, so no property is read through the
+     * helper before they are cached. The cache is bound to the metrics, if any,
+     * at the same point.
+     * 
+     * @param initialized
+     *                    the initialized helper bean
+     */
+    private void helperInitialized(HsmCryptHelper initialized) {
+        synchronized (helperLock) {
+            if (helper == null) {
+                if (eager) {
+                    preDecrypt(initialized, false);
+                }
+                if (cache != null) {
+                    beanFactory.getBeanProvider(HsmCryptMetrics.class)
+                            .ifAvailable(metrics -> metrics.bindPropertyCache(cache));
+                }
+                helper = initialized;
+            }
+        }
+    }
+
+    /**
+     * Decrypts all distinct encrypted values of the wrapped property sources on a
+     * bounded worker pool and stores them in the cache.
+     * <p>
+     * Failures are logged and left to the lazy path, which reports them when the
+     * property is actually read.
+     * 
+     * @param helper
+     *                     the helper to decrypt with
+     * @param uncachedOnly
+     *                     whether to skip values already in the cache
+     * @return the number of distinct values decrypted or failed
+     */
+    private int preDecrypt(HsmCryptHelper helper, boolean uncachedOnly) {
+        // Distinct encrypted value -> every (source, property) that holds it
+        Map<String, List<String[]>> targets = new LinkedHashMap<>();
+        environment.getPropertySources().forEach(propertySource -> {
+            if (propertySource instanceof EncryptablePropertySourceWrapper) {
+                EnumerablePropertySource<?> delegate = ((EncryptablePropertySourceWrapper<?>) propertySource).delegate;
+                for (String name : delegate.getPropertyNames()) {
+                    Object value = delegate.getProperty(name);
+                    if (value instanceof String && helper.isEncrypted((String) value)
+                            && !(uncachedOnly && cache.contains(propertySource.getName(), name, (String) value))) {
+                        targets.computeIfAbsent((String) value, k -> new ArrayList<>())
+                                .add(new String[] { propertySource.getName(), name });
+                    }
+                }
             }
         });
+        if (targets.isEmpty()) {
+            return 0;
+        }
+        String mode = uncachedOnly ? "Refresh" : "Eager";
+        int locations = 0;
+        for (List<String[]> target : targets.values()) {
+            locations += target.size();
+        }
+        if (locations > cache.getMaxSize()) {
+            log.warn("{} decryption of {} property value(s) exceeds hsmcrypt.encryption.cache.max-size ({}), values "
+                    + "evicted from the cache are decrypted again when read", mode, locations, cache.getMaxSize());
+        }
+
+        // Refresh also runs without eager mode, where the thread count is not validated
+        int configuredThreads = eagerConfig.getThreads() != null ? eagerConfig.getThreads() : 1;
+        int threads = Math.max(1, Math.min(configuredThreads, targets.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new EagerThreadFactory());
+        long start = System.nanoTime();
+        try {
+            Map<String, Future<Long>> futures = new LinkedHashMap<>();
+            for (Map.Entry<String, List<String[]>> target : targets.entrySet()) {
+                futures.put(target.getKey(), executor.submit(() -> {
+                    long t0 = System.nanoTime();
+                    String decrypted = helper.decryptIfEncrypted(target.getKey());
+                    for (String[] location : target.getValue()) {
+                        cache.put(location[0], location[1], target.getKey(), decrypted);
+                    }
+                    return System.nanoTime() - t0;
+                }));
+            }
+
+            int failed = 0;
+            long slowestNanos = -1;
+            String slowestKey = null;
+            for (Map.Entry<String, Future<Long>> future : futures.entrySet()) {
+                String key = targets.get(future.getKey()).get(0)[1];
+                try {
+                    long elapsed = future.getValue().get();
+                    if (elapsed > slowestNanos) {
+                        slowestNanos = elapsed;
+                        slowestKey = key;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return targets.size();
+                } catch (Exception e) {
+                    failed++;
+                    log.warn("{} decryption of property '{}' failed, it will be decrypted on first read", mode, key,
+                            e.getCause() != null ? e.getCause() : e);
+                }
+            }
+
+            log.info("{} decryption of {} value(s) on {} thread(s) took {} ms ({} failed), slowest key: {} ({} ms)",
+                    mode, targets.size(), threads, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), failed,
+                    slowestKey, TimeUnit.NANOSECONDS.toMillis(Math.max(slowestNanos, 0)));
+            return targets.size();
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
-    @Override
-    public int getOrder() {
-        return Ordered.LOWEST_PRECEDENCE;
+    /**
+     * Runs eager pre-decryption at a defined point: right after the
+     * HsmCryptHelper bean is initialized, on the thread creating the beans.
+     */
+    private class HelperInitializedPostProcessor implements BeanPostProcessor {
+        @Override
+        public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+            if (bean instanceof HsmCryptHelper) {
+                helperInitialized((HsmCryptHelper) bean);
+            }
+            return bean;
+        }
+    }
+
+    /**
+     * Thread factory for the eager pre-decryption worker pool.
+     */
+    private static class EagerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "hsmcrypt-eager-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 
     /**
@@ -58,20 +389,19 @@ class EncryptablePropertyResolver implements BeanFactoryPostProcessor, Ordered {
      */
     private static class EncryptablePropertySourceWrapper<T> extends EnumerablePropertySource<T> {
         private final EnumerablePropertySource<T> delegate;
-        private final ConfigurableListableBeanFactory beanFactory;
-        private volatile HsmCryptHelper helper;
+        private final EncryptablePropertyResolver resolver;
 
         /**
          * Creates a new wrapper for the given property source.
          * 
-         * @param delegate    the original property source to wrap
-         * @param beanFactory the bean factory to obtain HsmCryptHelper from
+         * @param delegate the original property source to wrap
+         * @param resolver the resolver providing HsmCryptHelper and the cache
          */
         public EncryptablePropertySourceWrapper(EnumerablePropertySource<T> delegate,
-                ConfigurableListableBeanFactory beanFactory) {
+                EncryptablePropertyResolver resolver) {
             super(delegate.getName(), delegate.getSource());
             this.delegate = delegate;
-            this.beanFactory = beanFactory;
+            this.resolver = resolver;
         }
 
         @Override
@@ -79,19 +409,20 @@ class EncryptablePropertyResolver implements BeanFactoryPostProcessor, Ordered {
             Object value = delegate.getProperty(name);
             if (value instanceof String) {
                 // Lazy initialization of helper
+                HsmCryptHelper helper = resolver.getHelper();
                 if (helper == null) {
-                    synchronized (this) {
-                        if (helper == null) {
-                            try {
-                                helper = beanFactory.getBean(HsmCryptHelper.class);
-                            } catch (BeansException e) {
-                                // Helper not yet available, return raw value
-                                return value;
-                            }
-                        }
-                    }
+                    // Helper not yet available, return raw value
+                    return value;
+                }
+                String text = (String) value;
+                if (!helper.isEncrypted(text)) {
+                    return text;
+                }
+                DecryptedValueCache cache = resolver.cache;
+                if (cache == null) {
+                    return helper.decryptIfEncrypted(text);
                 }
-                return helper.decryptIfEncrypted((String) value);
+                return cache.get(getName(), name, text, helper::decryptIfEncrypted);
             }
             return value;
         }
@@ -0,0 +1,302 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Envelope encryption with HSM-wrapped data keys and AES-GCM in the JVM.
+ * <p>
+ * The HSM key only wraps and unwraps random AES-256 data keys; values are
+ * encrypted and decrypted with AES-GCM through JCE, which uses the CPU's AES
+ * instructions, so throughput scales with cores instead of HSM capacity. A data
+ * key encrypts values until its time to live or use count runs out, so one HSM
+ * call covers many values. Unwrapped data keys are cached under the same limits,
+ * and a bulk decryption unwraps each missing data key once.
+ * <p>
+ * Payload format: <code>e1.&lt;wrapped key&gt;.&lt;iv&gt;.&lt;ciphertext and
+ * tag&gt;</code>, all hexadecimal. The wrapped key is authenticated as
+ * additional data. IVs are a random per-key salt followed by a counter, so they
+ * never repeat under one data key. A legacy hexadecimal payload never contains
+ * '.', so the two formats cannot be confused.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ * @see HsmCrypt
+ */
+final class EnvelopeCipher {
+
+    /** Prefix of envelope payloads */
+    static final String PAYLOAD_PREFIX = "e1.";
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int DATA_KEY_BYTES = 32;
+    private static final int IV_BYTES = 12;
+    private static final int IV_SALT_BYTES = 4;
+    private static final int TAG_BITS = 128;
+
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(TRANSFORMATION + " is not available", e);
+        }
+    });
+
+    private final Function<List<String>, List<BatchResult>> wrapper;
+    private final Function<List<String>, List<BatchResult>> unwrapper;
+    private final long ttlNanos;
+    private final long maxUses;
+    private final Map<String, DataKey> cache;
+    private volatile DataKey current;
+
+    /**
+     * Creates an envelope cipher.
+     * 
+     * @param config
+     *                  the data key limits
+     * @param wrapper
+     *                  the HSM operation encrypting hexadecimal data keys, one
+     *                  result per key
+     * @param unwrapper
+     *                  the HSM operation decrypting wrapped data keys to
+     *                  hexadecimal, one result per key
+     */
+    EnvelopeCipher(HsmCryptProperties.Envelope config, Function<List<String>, List<BatchResult>> wrapper,
+            Function<List<String>, List<BatchResult>> unwrapper) {
+        if (config.getDataKeyMaxUses() <= 0) {
+            throw new IllegalArgumentException("dataKeyMaxUses must be greater than zero");
+        }
+        this.wrapper = wrapper;
+        this.unwrapper = unwrapper;
+        this.ttlNanos = config.getDataKeyTtl().toNanos();
+        this.maxUses = config.getDataKeyMaxUses();
+        int cacheMaxSize = config.getCacheMaxSize();
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<String, DataKey>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DataKey> eldest) {
+                return size() > cacheMaxSize;
+            }
+        });
+    }
+
+    /**
+     * Checks whether a payload is in envelope format.
+     * 
+     * @param payload
+     *                the payload
+     * @return true if the payload starts with {@value #PAYLOAD_PREFIX}
+     */
+    static boolean isEnvelope(String payload) {
+        return payload != null && payload.startsWith(PAYLOAD_PREFIX);
+    }
+
+    /**
+     * Encrypts the plaintexts with the current data key, wrapping a new one first
+     * if it is used up.
+     * 
+     * @param plainTexts
+     *                   the texts to encrypt
+     * @return one result per input, in input order, holding the envelope payload
+     *         or the error for that item
+     */
+    List<BatchResult> encryptAll(Collection<String> plainTexts) {
+        List<BatchResult> results = new ArrayList<>(plainTexts.size());
+        DataKey dataKey = null;
+        for (String plainText : plainTexts) {
+            if (plainText == null) {
+                results.add(BatchResult.success(null));
+                continue;
+            }
+            try {
+                long counter;
+                while (dataKey == null || (counter = dataKey.tryUse()) < 0) {
+                    dataKey = currentKey(dataKey);
+                }
+                results.add(BatchResult.success(encrypt(dataKey, counter, plainText)));
+            } catch (HsmCryptException e) {
+                results.add(BatchResult.failure(e));
+            } catch (GeneralSecurityException | RuntimeException e) {
+                results.add(BatchResult.failure(new HsmCryptException("Unexpected error during encryption", e)));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Decrypts envelope payloads, unwrapping each data key missing from the cache
+     * once.
+     * 
+     * @param payloads
+     *                 the envelope payloads
+     * @return one result per input, in input order, holding the plaintext or the
+     *         error for that item
+     */
+    List<BatchResult> decryptAll(Collection<String> payloads) {
+        List<String[]> parts = new ArrayList<>(payloads.size());
+        List<String> missing = new ArrayList<>();
+        Map<String, DataKey> keys = new LinkedHashMap<>();
+        for (String payload : payloads) {
+            String[] fields = payload == null ? null : payload.split("\\.", -1);
+            if (fields != null && fields.length == 4) {
+                DataKey dataKey = cache.get(fields[1]);
+                if (dataKey != null && dataKey.tryUse() >= 0) {
+                    keys.put(fields[1], dataKey);
+                } else if (!keys.containsKey(fields[1])) {
+                    keys.put(fields[1], null);
+                    missing.add(fields[1]);
+                }
+            }
+            parts.add(fields);
+        }
+
+        Map<String, RuntimeException> unwrapFailures = new LinkedHashMap<>();
+        if (!missing.isEmpty()) {
+            List<BatchResult> unwrapped = unwrapper.apply(missing);
+            for (int i = 0; i < missing.size(); i++) {
+                BatchResult result = unwrapped.get(i);
+                byte[] keyBytes = result.isSuccess() ? decodeDataKey(result.getValue()) : null;
+                if (keyBytes != null && keyBytes.length == DATA_KEY_BYTES) {
+                    DataKey dataKey = new DataKey(missing.get(i), keyBytes, System.nanoTime() + ttlNanos, maxUses);
+                    dataKey.tryUse();
+                    cache.put(missing.get(i), dataKey);
+                    keys.put(missing.get(i), dataKey);
+                } else {
+                    unwrapFailures.put(missing.get(i), result.isSuccess()
+                            ? new HsmCryptException("Failed to decrypt data: invalid wrapped data key")
+                            : result.getError());
+                }
+            }
+        }
+
+        List<BatchResult> results = new ArrayList<>(parts.size());
+        for (String[] fields : parts) {
+            if (fields == null) {
+                results.add(BatchResult.success(null));
+            } else if (fields.length != 4) {
+                results.add(BatchResult.failure(new HsmCryptException("Malformed envelope payload")));
+            } else if (unwrapFailures.containsKey(fields[1])) {
+                results.add(BatchResult.failure(unwrapFailures.get(fields[1])));
+            } else {
+                results.add(decrypt(keys.get(fields[1]), fields));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Gets a usable data key for encryption, replacing the current one if the
+     * given key is it and it is used up.
+     */
+    private DataKey currentKey(DataKey usedUp) {
+        DataKey dataKey = current;
+        if (dataKey != null && dataKey != usedUp && !dataKey.isExpired()) {
+            return dataKey;
+        }
+        synchronized (this) {
+            dataKey = current;
+            if (dataKey == null || dataKey == usedUp || dataKey.isExpired()) {
+                dataKey = newDataKey();
+                current = dataKey;
+            }
+            return dataKey;
+        }
+    }
+
+    private DataKey newDataKey() {
+        byte[] keyBytes = new byte[DATA_KEY_BYTES];
+        RandomPrefixSource.nextSharedBytes(keyBytes);
+        BatchResult wrapped = wrapper.apply(Collections.singletonList(Hex.encode(keyBytes))).get(0);
+        if (!wrapped.isSuccess()) {
+            throw wrapped.getError();
+        }
+        long expiresAtNanos = System.nanoTime() + ttlNanos;
+        // Values encrypted with the key decrypt without an unwrap call while it is cached
+        cache.put(wrapped.getValue(), new DataKey(wrapped.getValue(), keyBytes, expiresAtNanos, maxUses));
+        return new DataKey(wrapped.getValue(), keyBytes, expiresAtNanos, maxUses);
+    }
+
+    private static byte[] decodeDataKey(String hex) {
+        try {
+            return Hex.decode(hex);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String encrypt(DataKey dataKey, long counter, String plainText) throws GeneralSecurityException {
+        byte[] iv = ByteBuffer.allocate(IV_BYTES).put(dataKey.ivSalt).putLong(counter).array();
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, dataKey.key, new GCMParameterSpec(TAG_BITS, iv));
+        cipher.updateAAD(dataKey.wrapped.getBytes(StandardCharsets.US_ASCII));
+        byte[] cipherText = cipher.doFinal(plainText.getBytes(StandardCharsets.UTF_8));
+        return PAYLOAD_PREFIX + dataKey.wrapped + '.' + Hex.encode(iv) + '.' + Hex.encode(cipherText);
+    }
+
+    private static BatchResult decrypt(DataKey dataKey, String[] fields) {
+        try {
+            Cipher cipher = CIPHER.get();
+            cipher.init(Cipher.DECRYPT_MODE, dataKey.key, new GCMParameterSpec(TAG_BITS, Hex.decode(fields[2])));
+            cipher.updateAAD(fields[1].getBytes(StandardCharsets.US_ASCII));
+            return BatchResult.success(new String(cipher.doFinal(Hex.decode(fields[3])), StandardCharsets.UTF_8));
+        } catch (AEADBadTagException e) {
+            return BatchResult.failure(new HsmCryptException("Failed to decrypt data: authentication failed", e));
+        } catch (GeneralSecurityException | RuntimeException e) {
+            return BatchResult.failure(new HsmCryptException("Unexpected error during decryption", e));
+        }
+    }
+
+    /**
+     * An unwrapped data key with its wrapped form and usage limits.
+     */
+    private static final class DataKey {
+        private final String wrapped;
+        private final SecretKeySpec key;
+        private final byte[] ivSalt = new byte[IV_SALT_BYTES];
+        private final long expiresAtNanos;
+        private final long maxUses;
+        private final AtomicLong uses = new AtomicLong();
+
+        private DataKey(String wrapped, byte[] keyBytes, long expiresAtNanos, long maxUses) {
+            this.wrapped = wrapped;
+            this.key = new SecretKeySpec(keyBytes, "AES");
+            this.expiresAtNanos = expiresAtNanos;
+            this.maxUses = maxUses;
+            RandomPrefixSource.nextSharedBytes(ivSalt);
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - expiresAtNanos >= 0;
+        }
+
+        /**
+         * Counts one use.
+         * 
+         * @return the use number, unique for this key, or -1 if the key is used
+         *         up or expired
+         */
+        private long tryUse() {
+            if (isExpired()) {
+                return -1;
+            }
+            long use = uses.getAndIncrement();
+            return use < maxUses ? use : -1;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Lookup-table hexadecimal codec.
+ * <p>
+ * Encodes into a single <code>char[]</code> and decodes into a single
+ * <code>byte[]</code> without per-byte allocations. Encoding produces lowercase
+ * digits; decoding accepts both cases.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ */
+final class Hex {
+
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Nibble value per ASCII character, -1 for non-hex characters */
+    private static final byte[] NIBBLES = new byte[128];
+
+    static {
+        Arrays.fill(NIBBLES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            NIBBLES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            NIBBLES['a' + i] = (byte) (10 + i);
+            NIBBLES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private Hex() {
+    }
+
+    /**
+     * Encodes bytes to a lowercase hexadecimal string.
+     * 
+     * @param bytes
+     *              the bytes to encode
+     * @return the hexadecimal string
+     */
+    static String encode(byte[] bytes) {
+        return encode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Encodes a byte range to a lowercase hexadecimal string.
+     * 
+     * @param bytes
+     *               the source bytes
+     * @param offset
+     *               the start of the range
+     * @param length
+     *               the number of bytes to encode
+     * @return the hexadecimal string
+     */
+    static String encode(byte[] bytes, int offset, int length) {
+        char[] chars = new char[length * 2];
+        for (int i = 0, j = 0; i < length; i++) {
+            int b = bytes[offset + i];
+            chars[j++] = DIGITS[(b >>> 4) & 0x0f];
+            chars[j++] = DIGITS[b & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Encodes the remaining bytes of a buffer to a lowercase hexadecimal string
+     * and advances its position to the limit.
+     * 
+     * @param buffer
+     *               the source buffer, heap or direct
+     * @return the hexadecimal string
+     */
+    static String encode(ByteBuffer buffer) {
+        char[] chars = new char[buffer.remaining() * 2];
+        for (int j = 0; buffer.hasRemaining();) {
+            int b = buffer.get();
+            chars[j++] = DIGITS[(b >>> 4) & 0x0f];
+            chars[j++] = DIGITS[b & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Decodes a hexadecimal string to bytes.
+     * 
+     * @param hex
+     *            the hexadecimal string, upper or lower case
+     * @return the decoded bytes
+     * @throws IllegalArgumentException
+     *                                  if the length is odd or a character is not
+     *                                  a hexadecimal digit
+     */
+    static byte[] decode(CharSequence hex) {
+        byte[] bytes = new byte[decodedLength(hex)];
+        decode(hex, bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Decodes a hexadecimal string into an existing array.
+     * 
+     * @param hex
+     *               the hexadecimal string, upper or lower case
+     * @param target
+     *               the array to write to, with room for
+     *               {@link #decodedLength(CharSequence)} bytes
+     * @param offset
+     *               the position of the first byte written
+     * @return the number of bytes written
+     * @throws IllegalArgumentException
+     *                                  if the length is odd or a character is not
+     *                                  a hexadecimal digit
+     */
+    static int decode(CharSequence hex, byte[] target, int offset) {
+        int length = decodedLength(hex);
+        for (int i = 0, j = offset; i < hex.length(); i += 2, j++) {
+            target[j] = (byte) ((nibble(hex.charAt(i)) << 4) | nibble(hex.charAt(i + 1)));
+        }
+        return length;
+    }
+
+    /**
+     * Decodes a hexadecimal string into a buffer at its position, which is
+     * advanced past the decoded bytes.
+     * 
+     * @param hex
+     *               the hexadecimal string, upper or lower case
+     * @param target
+     *               the buffer to write to, heap or direct
+     * @throws IllegalArgumentException
+     *                                  if the length is odd or a character is not
+     *                                  a hexadecimal digit
+     * @throws java.nio.BufferOverflowException
+     *                                  if the buffer has too little room
+     */
+    static void decode(CharSequence hex, ByteBuffer target) {
+        if (target.remaining() < decodedLength(hex)) {
+            throw new BufferOverflowException();
+        }
+        for (int i = 0; i < hex.length(); i += 2) {
+            target.put((byte) ((nibble(hex.charAt(i)) << 4) | nibble(hex.charAt(i + 1))));
+        }
+    }
+
+    /**
+     * Gets the number of bytes a hexadecimal string decodes to.
+     * 
+     * @param hex
+     *            the hexadecimal string
+     * @return the decoded length
+     * @throws IllegalArgumentException
+     *                                  if the length is odd
+     */
+    static int decodedLength(CharSequence hex) {
+        int length = hex.length();
+        if ((length & 1) != 0) {
+            throw new IllegalArgumentException("Hex string must have an even length: " + length);
+        }
+        return length / 2;
+    }
+
+    private static int nibble(char c) {
+        int value = c < 128 ? NIBBLES[c] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid hex character: " + c);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,221 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Bounded executor for asynchronous HSM operations on one token.
+ * <p>
+ * At most the configured number of operations run at once, so callers never
+ * wait on the session pool's borrow timeout, and at most the queue capacity
+ * wait to run; further submissions fail immediately instead of piling up. On
+ * platform threads the limit is the size of a fixed thread pool whose threads
+ * time out when idle. On virtual threads, available from Java 21 and looked up
+ * reflectively since the library targets Java 8, every operation gets its own
+ * virtual thread and a semaphore enforces the limit.
+ * <p>
+ * Futures complete on the executor's threads, so dependent stages added
+ * without an executor also run there; heavy follow-up work should use the
+ * <code>*Async</code> stage methods. A future cancelled while queued skips its
+ * operation.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ * @see HsmSessionPool#getAsyncExecutor(HsmCryptProperties.Async)
+ */
+@Slf4j
+class HsmAsyncExecutor implements AutoCloseable {
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final String tokenLabel;
+    private final int queueCapacity;
+    private final HsmCryptMetrics metrics;
+    private final ExecutorService executor;
+    /** Limits running operations on virtual threads, null on platform threads */
+    private final Semaphore running;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * Creates an executor.
+     * 
+     * @param tokenLabel
+     *                       the token label, for thread names, errors and
+     *                       metrics
+     * @param threads
+     *                       the maximum number of operations running at once
+     * @param queueCapacity
+     *                       the maximum number of operations waiting to run
+     * @param virtualThreads
+     *                       whether to run operations on virtual threads when
+     *                       the runtime supports them
+     * @param metrics
+     *                       the metrics recording queue waits
+     */
+    HsmAsyncExecutor(String tokenLabel, int threads, int queueCapacity, boolean virtualThreads,
+            HsmCryptMetrics metrics) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be greater than zero");
+        }
+        if (queueCapacity < 0) {
+            throw new IllegalArgumentException("queueCapacity cannot be negative");
+        }
+        this.tokenLabel = tokenLabel;
+        this.queueCapacity = queueCapacity;
+        this.metrics = metrics;
+
+        ExecutorService virtual = virtualThreads ? newVirtualThreadPerTaskExecutor() : null;
+        if (virtualThreads && virtual == null) {
+            log.warn("Virtual threads are not available on Java {}, using {} platform threads for token: {}",
+                    System.getProperty("java.specification.version"), threads, tokenLabel);
+        }
+        if (virtual != null) {
+            this.executor = virtual;
+            this.running = new Semaphore(threads, true);
+        } else {
+            AtomicInteger counter = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable,
+                                "hsmcrypt-async-" + tokenLabel + "-" + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            this.executor = pool;
+            this.running = null;
+        }
+        metrics.bindAsyncExecutor(this);
+    }
+
+    /**
+     * Runs an operation asynchronously.
+     * 
+     * @param <T>
+     *                  the result type
+     * @param operation
+     *                  the blocking operation
+     * @return a future completed with the operation's result or exception, or
+     *         failed with HsmCryptException if the queue is full or the executor
+     *         is closed
+     */
+    <T> CompletableFuture<T> submit(Supplier<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new HsmCryptException("HSM executor is closed for token: " + tokenLabel));
+            return future;
+        }
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            HsmCryptException error = new HsmCryptException(String.format(
+                    "HSM executor queue is full (%d waiting) for token: %s", queueCapacity, tokenLabel));
+            metrics.recordAsyncQueueWait(tokenLabel, 0, error);
+            future.completeExceptionally(error);
+            return future;
+        }
+        long queuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> run(operation, future, queuedAt));
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            future.completeExceptionally(new HsmCryptException("HSM executor is closed for token: " + tokenLabel, e));
+        }
+        return future;
+    }
+
+    private <T> void run(Supplier<T> operation, CompletableFuture<T> future, long queuedAt) {
+        if (running != null) {
+            try {
+                running.acquire();
+            } catch (InterruptedException e) {
+                queued.decrementAndGet();
+                future.completeExceptionally(new HsmCryptException(
+                        "Interrupted while waiting to run an HSM operation on token: " + tokenLabel, e));
+                return;
+            }
+        }
+        queued.decrementAndGet();
+        try {
+            if (future.isDone()) {
+                // Cancelled while queued
+                return;
+            }
+            active.incrementAndGet();
+            metrics.recordAsyncQueueWait(tokenLabel, System.nanoTime() - queuedAt, null);
+            try {
+                future.complete(operation.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            } finally {
+                active.decrementAndGet();
+            }
+        } finally {
+            if (running != null) {
+                running.release();
+            }
+        }
+    }
+
+    /**
+     * Gets the token label.
+     * 
+     * @return the token label
+     */
+    public String getTokenLabel() {
+        return tokenLabel;
+    }
+
+    /**
+     * Gets the number of operations waiting to run.
+     * 
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * Gets the number of operations running.
+     * 
+     * @return the active count
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * Stops accepting operations. Queued operations still run, and fail fast
+     * once the session pool is closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdown();
+    }
+
+    /**
+     * Creates a virtual thread per task executor through reflection.
+     * 
+     * @return the executor, or null before Java 21
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
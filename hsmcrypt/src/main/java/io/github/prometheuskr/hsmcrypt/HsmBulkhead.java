@@ -0,0 +1,167 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrency limit for HSM operations on one token.
+ * <p>
+ * Every operation holds a permit while it uses a session, so no more sessions
+ * are in use than the token allows and excess callers queue in arrival order
+ * instead of failing with PKCS#11 errors. Callers wait at most the maximum wait
+ * time; when the configured number of callers is already waiting, or in
+ * fast-fail mode whenever no permit is free, they are rejected immediately.
+ * Under overload throughput stays at what the permits allow and the excess is
+ * shed at the door.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ * @see HsmSessionPool
+ */
+class HsmBulkhead {
+
+    /**
+     * Reasons a caller is turned away.
+     */
+    enum Rejection {
+        /** No permit was free in fast-fail mode */
+        FAST_FAIL,
+        /** The maximum number of callers was already waiting */
+        QUEUE_FULL,
+        /** No permit became free within the maximum wait */
+        TIMEOUT;
+
+        /**
+         * Gets the name used in metric tags.
+         * 
+         * @return the lowercase, hyphenated name
+         */
+        String tag() {
+            return name().toLowerCase(Locale.ROOT).replace('_', '-');
+        }
+    }
+
+    private final String tokenLabel;
+    /** Number of permits, Integer.MAX_VALUE if unlimited */
+    private final int permitCount;
+    private final Semaphore permits;
+    private final long maxWaitNanos;
+    private final int maxWaiting;
+    private final boolean fastFail;
+    private final HsmCryptMetrics metrics;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates a bulkhead.
+     * 
+     * @param tokenLabel
+     *                     the token label, for errors and metrics
+     * @param permits
+     *                     the number of operations running at once, or
+     *                     Integer.MAX_VALUE for no limit
+     * @param maxWaitNanos
+     *                     the longest a caller waits for a permit
+     * @param maxWaiting
+     *                     the number of callers allowed to wait, 0 for no limit
+     * @param fastFail
+     *                     whether to reject callers instead of waiting
+     * @param metrics
+     *                     the metrics recording rejections
+     */
+    HsmBulkhead(String tokenLabel, int permits, long maxWaitNanos, int maxWaiting, boolean fastFail,
+            HsmCryptMetrics metrics) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits must be greater than zero");
+        }
+        if (maxWaiting < 0) {
+            throw new IllegalArgumentException("maxWaiting cannot be negative");
+        }
+        this.tokenLabel = tokenLabel;
+        this.permitCount = permits;
+        this.permits = new Semaphore(permits, true);
+        this.maxWaitNanos = maxWaitNanos;
+        this.maxWaiting = maxWaiting;
+        this.fastFail = fastFail;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Takes a permit, waiting in arrival order if none is free.
+     * 
+     * @throws HsmCryptException
+     *                           if the caller is rejected or interrupted
+     */
+    void acquire() {
+        try {
+            // A zero timeout, unlike tryAcquire(), does not overtake waiting callers
+            if (permits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                return;
+            }
+            if (fastFail) {
+                throw reject(Rejection.FAST_FAIL, "No HSM session available on token: " + tokenLabel);
+            }
+            if (waiting.incrementAndGet() > maxWaiting && maxWaiting > 0) {
+                waiting.decrementAndGet();
+                throw reject(Rejection.QUEUE_FULL, String.format(
+                        "Too many callers (%d) waiting for an HSM session on token: %s", maxWaiting, tokenLabel));
+            }
+            try {
+                if (!permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS)) {
+                    throw reject(Rejection.TIMEOUT, String.format(
+                            "Timed out after %d ms waiting for an HSM session on token: %s",
+                            TimeUnit.NANOSECONDS.toMillis(maxWaitNanos), tokenLabel));
+                }
+            } finally {
+                waiting.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HsmCryptException("Interrupted while waiting for an HSM session on token: " + tokenLabel, e);
+        }
+    }
+
+    /**
+     * Returns a permit taken with {@link #acquire()}.
+     */
+    void release() {
+        permits.release();
+    }
+
+    private HsmCryptException reject(Rejection reason, String message) {
+        rejected.incrementAndGet();
+        metrics.recordBulkheadRejection(tokenLabel, reason);
+        return new HsmCryptException(message);
+    }
+
+    /**
+     * Gets the number of permits.
+     * 
+     * @return the permit count, Integer.MAX_VALUE if unlimited
+     */
+    public int getPermitCount() {
+        return permitCount;
+    }
+
+    /**
+     * Gets the number of callers waiting for a permit.
+     * 
+     * @return the queue length
+     */
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    /**
+     * Gets the number of callers rejected so far.
+     * 
+     * @return the rejection count
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+}
@@ -1,10 +1,27 @@
 package io.github.prometheuskr.hsmcrypt;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
 import iaik.pkcs.pkcs11.TokenException;
-import io.github.prometheuskr.sipwon.constant.HsmKeyType;
 import io.github.prometheuskr.sipwon.constant.HsmMechanism;
 import io.github.prometheuskr.sipwon.key.HsmKey;
-import io.github.prometheuskr.sipwon.session.HsmSession;
 import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
 
 /**
@@ -18,23 +35,47 @@ import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
  * <p>
  * Only supports AES encryption with CBC mechanism.
  * <p>
+ * In envelope mode the HSM key only wraps data keys and values are encrypted
+ * with AES-GCM in the JVM by an {@link EnvelopeCipher}. Envelope payloads are
+ * decrypted in either mode.
+ * <p>
+ * Sessions are borrowed from an {@link HsmSessionPool}, so long-lived sessions
+ * and the key handles resolved on them are reused across operations. With
+ * several tokens holding the key, an {@link HsmTokenBalancer} picks the pool. A session
+ * the HSM reports as dead is discarded, and a key handle the HSM reports as
+ * invalid is searched again; in both cases the operation is retried once.
+ * <p>
  * Package-private: Only accessible within hsmcrypt package.
  * External applications should use property resolver feature (HCENC values in
  * properties).
  * 
  * @author Prometheus
  */
-class HsmCrypt implements StringEncryptor {
+class HsmCrypt implements StringEncryptor, AutoCloseable {
 
     /** Random prefix size in bytes for non-deterministic encryption */
     private static final int RANDOM_PREFIX_BYTES = 8;
-    /** Random prefix size in hexadecimal characters (2 chars per byte) */
-    private static final int RANDOM_PREFIX_HEX_LENGTH = RANDOM_PREFIX_BYTES * 2;
+    /** AES block size in bytes, the unit padding is applied to */
+    private static final int AES_BLOCK_BYTES = 16;
+    /** Largest block buffer kept per thread; larger blocks get their own array */
+    private static final int MAX_RETAINED_BLOCK_BYTES = 16 * 1024;
+
+    /** Per-thread buffer plaintext blocks are assembled and decoded in */
+    private static final ThreadLocal<byte[]> BLOCK_BUFFER = ThreadLocal.withInitial(() -> new byte[256]);
 
-    private final HsmSessionFactory sessionFactory;
+    /** Per-thread UTF-8 encoder replacing malformed input like String.getBytes */
+    private static final ThreadLocal<CharsetEncoder> UTF8_ENCODER = ThreadLocal
+            .withInitial(() -> StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    private final HsmTokenBalancer tokens;
     private final String keyLabel;
-    private final String tokenLabel;
     private final HsmMechanism mechanism;
+    private final RandomPrefixSource randomPrefixSource;
+    private final EnvelopeCipher envelopeCipher;
+    private final boolean envelopeEnabled;
+    private final HsmCryptProperties.Async async;
 
     /**
      * Creates a HsmCrypt with default AES CBC mechanism.
@@ -64,11 +105,30 @@ class HsmCrypt implements StringEncryptor {
      */
     public HsmCrypt(HsmSessionFactory sessionFactory, String tokenLabel, String keyLabel,
             HsmMechanism mechanism) {
-        if (sessionFactory == null) {
-            throw new IllegalArgumentException("sessionFactory cannot be null");
-        }
-        if (tokenLabel == null || tokenLabel.isEmpty()) {
-            throw new IllegalArgumentException("tokenLabel cannot be null or empty");
+        this(HsmTokenBalancer.single(new HsmSessionPool(sessionFactory, tokenLabel)), keyLabel, mechanism,
+                new HsmCryptProperties.Encryption());
+    }
+
+    /**
+     * Creates a HsmCrypt over the given tokens with the configured random
+     * prefix, envelope and asynchronous executor settings.
+     * Package-private: For the auto-configuration, CLI and tests; other callers
+     * use the session factory constructors and the default settings.
+     * 
+     * @param tokens
+     *                   the balancer over the tokens holding the key
+     * @param keyLabel
+     *                   the key label to use for encryption/decryption
+     * @param mechanism
+     *                   the AES encryption mechanism to use
+     * @param encryption
+     *                   the encryption configuration; its token and key labels
+     *                   are ignored
+     */
+    HsmCrypt(HsmTokenBalancer tokens, String keyLabel, HsmMechanism mechanism,
+            HsmCryptProperties.Encryption encryption) {
+        if (tokens == null) {
+            throw new IllegalArgumentException("tokens cannot be null");
         }
         if (keyLabel == null || keyLabel.isEmpty()) {
             throw new IllegalArgumentException("keyLabel cannot be null or empty");
@@ -76,11 +136,22 @@ class HsmCrypt implements StringEncryptor {
         if (mechanism == null) {
             throw new IllegalArgumentException("mechanism cannot be null");
         }
+        if (encryption == null) {
+            throw new IllegalArgumentException("encryption cannot be null");
+        }
+        HsmCryptProperties.RandomPrefix randomPrefix = encryption.getRandomPrefix();
+        HsmCryptProperties.Envelope envelope = encryption.getEnvelope();
+        if (randomPrefix == null || envelope == null || encryption.getAsync() == null) {
+            throw new IllegalArgumentException("randomPrefix, envelope and async cannot be null");
+        }
 
-        this.sessionFactory = sessionFactory;
-        this.tokenLabel = tokenLabel;
+        this.tokens = tokens;
         this.keyLabel = keyLabel;
         this.mechanism = mechanism;
+        this.randomPrefixSource = new RandomPrefixSource(RANDOM_PREFIX_BYTES, randomPrefix.getBufferSize());
+        this.envelopeCipher = new EnvelopeCipher(envelope, this::wrapAll, this::unwrapAll);
+        this.envelopeEnabled = envelope.getEnabled();
+        this.async = encryption.getAsync();
     }
 
     /**
@@ -99,16 +170,32 @@ class HsmCrypt implements StringEncryptor {
             return null;
         }
 
-        try (HsmSession session = sessionFactory.getHsmSession(tokenLabel)) {
-            HsmKey key = session.findHsmKey(keyLabel, HsmKeyType.AES);
-            // Convert plaintext to hex string with padding
-            String hexPlainText = encodeWithRandomizationAndPadding(plainText);
-            return key.encrypt(hexPlainText, mechanism);
-        } catch (TokenException e) {
-            throw new HsmCryptException("Failed to encrypt data", e);
-        } catch (Exception e) {
-            throw new HsmCryptException("Unexpected error during encryption", e);
+        return unwrap(encryptAll(Collections.singletonList(plainText)).get(0));
+    }
+
+    /**
+     * Encrypts all given plaintext strings on one session with one key lookup,
+     * or in the JVM with the current data key in envelope mode.
+     * Package-private: For internal use by HsmCryptHelper only.
+     * 
+     * @param plainTexts
+     *                   the texts to encrypt
+     * @return one result per input, in input order, holding the encrypted text as
+     *         a hexadecimal string or envelope payload, or the error for that item
+     */
+    List<BatchResult> encryptAll(Collection<String> plainTexts) {
+        if (envelopeEnabled) {
+            return envelopeCipher.encryptAll(plainTexts);
+        }
+        // Convert plaintexts to hex strings with padding before a session is
+        // borrowed, so sessions are held only for the HSM calls
+        List<String> hexPlainTexts = new ArrayList<>(plainTexts.size());
+        for (String plainText : plainTexts) {
+            hexPlainTexts.add(plainText == null ? null : encodeWithRandomizationAndPadding(plainText));
         }
+        return executeAll(hexPlainTexts, HsmCryptMetrics.Operation.ENCRYPT,
+                (key, hexPlainText) -> key.encrypt(hexPlainText, mechanism), UnaryOperator.identity(),
+                "Failed to encrypt data", "Unexpected error during encryption");
     }
 
     /**
@@ -126,25 +213,551 @@ class HsmCrypt implements StringEncryptor {
             return null;
         }
 
-        try (HsmSession session = sessionFactory.getHsmSession(tokenLabel)) {
-            HsmKey key = session.findHsmKey(keyLabel, HsmKeyType.AES);
-            String hexDecrypted = key.decrypt(encryptedText, mechanism);
-            // Convert hex string back to plaintext
-            return decodeWithRandomizationAndPadding(hexDecrypted);
-        } catch (TokenException e) {
-            throw new HsmCryptException("Failed to decrypt data", e);
-        } catch (Exception e) {
-            throw new HsmCryptException("Unexpected error during decryption", e);
+        return unwrap(decryptAll(Collections.singletonList(encryptedText)).get(0));
+    }
+
+    /**
+     * Decrypts all given encrypted strings on one session with one key lookup.
+     * Envelope payloads are decrypted in the JVM, unwrapping their data keys in
+     * the same way.
+     * 
+     * @param encryptedTexts
+     *                       the encrypted texts as hexadecimal strings or
+     *                       envelope payloads
+     * @return one result per input, in input order, holding the decrypted
+     *         plaintext or the error for that item
+     */
+    @Override
+    public List<BatchResult> decryptAll(Collection<String> encryptedTexts) {
+        List<String> direct = new ArrayList<>(encryptedTexts.size());
+        List<String> envelopes = new ArrayList<>();
+        for (String encryptedText : encryptedTexts) {
+            (EnvelopeCipher.isEnvelope(encryptedText) ? envelopes : direct).add(encryptedText);
+        }
+        // Hex output is converted back to plaintext after the HSM call
+        List<BatchResult> directResults = executeAll(direct, HsmCryptMetrics.Operation.DECRYPT,
+                (key, encryptedText) -> key.decrypt(encryptedText, mechanism),
+                this::decodeWithRandomizationAndPadding,
+                "Failed to decrypt data", "Unexpected error during decryption");
+        if (envelopes.isEmpty()) {
+            return directResults;
+        }
+
+        List<BatchResult> envelopeResults = envelopeCipher.decryptAll(envelopes);
+        List<BatchResult> results = new ArrayList<>(encryptedTexts.size());
+        int nextDirect = 0;
+        int nextEnvelope = 0;
+        for (String encryptedText : encryptedTexts) {
+            results.add(EnvelopeCipher.isEnvelope(encryptedText) ? envelopeResults.get(nextEnvelope++)
+                    : directResults.get(nextDirect++));
+        }
+        return results;
+    }
+
+    /**
+     * Encrypts the given plaintext string without blocking the caller.
+     * Package-private: For internal use by HsmCryptHelper only.
+     * 
+     * @param plainText
+     *                  the text to encrypt
+     * @return a future completed with the encrypted text as a hexadecimal
+     *         string, or failed with HsmCryptException
+     * @see HsmAsyncExecutor
+     */
+    CompletableFuture<String> encryptAsync(String plainText) {
+        return submit(() -> encrypt(plainText));
+    }
+
+    /**
+     * Decrypts the given encrypted string without blocking the caller.
+     * 
+     * @param encryptedText
+     *                      the encrypted text as a hexadecimal string
+     * @return a future completed with the decrypted plaintext, or failed with
+     *         HsmCryptException
+     * @see HsmAsyncExecutor
+     */
+    CompletableFuture<String> decryptAsync(String encryptedText) {
+        return submit(() -> decrypt(encryptedText));
+    }
+
+    /**
+     * Encrypts all given plaintext strings in one bulk operation without
+     * blocking the caller.
+     * Package-private: For internal use by HsmCryptHelper only.
+     * 
+     * @param plainTexts
+     *                   the texts to encrypt
+     * @return a future completed with one result per input, in input order
+     * @see #encryptAll(Collection)
+     */
+    CompletableFuture<List<BatchResult>> encryptAllAsync(Collection<String> plainTexts) {
+        return submit(() -> encryptAll(plainTexts));
+    }
+
+    /**
+     * Decrypts all given encrypted strings in one bulk operation without
+     * blocking the caller.
+     * 
+     * @param encryptedTexts
+     *                       the encrypted texts
+     * @return a future completed with one result per input, in input order
+     * @see #decryptAll(Collection)
+     */
+    CompletableFuture<List<BatchResult>> decryptAllAsync(Collection<String> encryptedTexts) {
+        return submit(() -> decryptAll(encryptedTexts));
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> operation) {
+        HsmAsyncExecutor executor;
+        try {
+            executor = tokens.getAsyncExecutor(async);
+        } catch (HsmCryptException e) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return executor.submit(operation);
+    }
+
+    /**
+     * Encrypts binary data without converting it to a string.
+     * <p>
+     * Binary data is always encrypted by the HSM key directly, also in envelope
+     * mode.
+     * Package-private: For internal use within the package only.
+     * 
+     * @param plainBytes
+     *                   the data to encrypt
+     * @return the encrypted data, {@link #encryptedLength(int)} bytes
+     * @throws HsmCryptException
+     *                           if encryption fails
+     */
+    byte[] encrypt(byte[] plainBytes) {
+        if (plainBytes == null) {
+            return null;
+        }
+        return Hex.decode(encryptBlock(encodeWithRandomizationAndPadding(ByteBuffer.wrap(plainBytes))));
+    }
+
+    /**
+     * Encrypts the remaining bytes of a heap or direct buffer into another
+     * buffer. The input position is advanced to its limit and the output
+     * position past the encrypted data.
+     * Package-private: For internal use within the package only.
+     * 
+     * @param plain
+     *              the data to encrypt
+     * @param out
+     *              the buffer receiving {@link #encryptedLength(int)} bytes
+     * @return the number of bytes written
+     * @throws HsmCryptException
+     *                                          if encryption fails
+     * @throws java.nio.BufferOverflowException
+     *                                          if the output has too little room
+     */
+    int encrypt(ByteBuffer plain, ByteBuffer out) {
+        if (out.remaining() < encryptedLength(plain.remaining())) {
+            throw new BufferOverflowException();
+        }
+        String encrypted = encryptBlock(encodeWithRandomizationAndPadding(plain));
+        Hex.decode(encrypted, out);
+        return Hex.decodedLength(encrypted);
+    }
+
+    /**
+     * Decrypts binary data produced by {@link #encrypt(byte[])}.
+     * Package-private: For internal use within the package only.
+     * 
+     * @param encryptedBytes
+     *                       the encrypted data
+     * @return the decrypted data
+     * @throws HsmCryptException
+     *                           if decryption fails
+     */
+    byte[] decrypt(byte[] encryptedBytes) {
+        if (encryptedBytes == null) {
+            return null;
+        }
+        return decodeWithRandomizationAndPadding(decryptBlock(Hex.encode(encryptedBytes)), null);
+    }
+
+    /**
+     * Decrypts the remaining bytes of a heap or direct buffer into another
+     * buffer. The input position is advanced to its limit and the output
+     * position past the decrypted data, which is at most
+     * {@value #RANDOM_PREFIX_BYTES} bytes shorter than the input.
+     * Package-private: For internal use within the package only.
+     * 
+     * @param encrypted
+     *                  the encrypted data
+     * @param out
+     *                  the buffer receiving the decrypted data
+     * @return the number of bytes written
+     * @throws HsmCryptException
+     *                                          if decryption fails
+     * @throws java.nio.BufferOverflowException
+     *                                          if the output has too little room
+     */
+    int decrypt(ByteBuffer encrypted, ByteBuffer out) {
+        int start = out.position();
+        decodeWithRandomizationAndPadding(decryptBlock(Hex.encode(encrypted)), out);
+        return out.position() - start;
+    }
+
+    /**
+     * Gets the size of binary data encrypted from a given size.
+     * 
+     * @param plainLength
+     *                    the plaintext size in bytes
+     * @return the encrypted size in bytes
+     */
+    static int encryptedLength(int plainLength) {
+        return paddedLength(plainLength);
+    }
+
+    private String encryptBlock(String hexBlock) {
+        return unwrap(executeAll(Collections.singletonList(hexBlock), HsmCryptMetrics.Operation.ENCRYPT,
+                (key, input) -> key.encrypt(input, mechanism), UnaryOperator.identity(),
+                "Failed to encrypt data", "Unexpected error during encryption").get(0));
+    }
+
+    private String decryptBlock(String hexBlock) {
+        return unwrap(executeAll(Collections.singletonList(hexBlock), HsmCryptMetrics.Operation.DECRYPT,
+                (key, input) -> key.decrypt(input, mechanism), UnaryOperator.identity(),
+                "Failed to decrypt data", "Unexpected error during decryption").get(0));
+    }
+
+    /**
+     * Encrypts a stream of any size in fixed-size chunks with a data key wrapped
+     * by the HSM key, so memory use does not grow with the payload.
+     * 
+     * @param in
+     *            the plaintext, read to its end but not closed
+     * @param out
+     *            the encrypted output, not closed
+     * @return the number of plaintext bytes encrypted
+     * @throws IOException
+     *                           if reading or writing fails
+     * @throws HsmCryptException
+     *                           if the data key cannot be wrapped
+     * @see StreamCipher
+     */
+    long encrypt(InputStream in, OutputStream out) throws IOException {
+        return StreamCipher.DEFAULT.encrypt(this, "", in, out);
+    }
+
+    /**
+     * Decrypts a stream produced by {@link #encrypt(InputStream, OutputStream)}.
+     * If decryption fails, the output written so far must be discarded.
+     * 
+     * @param in
+     *            the encrypted input, read to its end but not closed
+     * @param out
+     *            the plaintext output, not closed
+     * @return the number of plaintext bytes decrypted
+     * @throws IOException
+     *                           if reading or writing fails
+     * @throws HsmCryptException
+     *                           if the input is malformed, tampered with or
+     *                           truncated, or was encrypted with another key
+     */
+    long decrypt(InputStream in, OutputStream out) throws IOException {
+        return StreamCipher.DEFAULT.decrypt(this::forStreamKeyId, in, out);
+    }
+
+    /**
+     * Encrypts a file of any size, mapping it into memory region by region.
+     * 
+     * @param source
+     *               the plaintext file
+     * @param target
+     *               the encrypted file, replaced if it exists
+     * @return the number of plaintext bytes encrypted
+     * @throws IOException
+     *                           if reading or writing fails
+     * @throws HsmCryptException
+     *                           if the data key cannot be wrapped
+     */
+    long encrypt(Path source, Path target) throws IOException {
+        return StreamCipher.DEFAULT.encrypt(this, "", source, target);
+    }
+
+    /**
+     * Decrypts a file produced by {@link #encrypt(Path, Path)}, mapping it into
+     * memory region by region. The target is deleted if decryption fails.
+     * 
+     * @param source
+     *               the encrypted file
+     * @param target
+     *               the plaintext file, replaced if it exists
+     * @return the number of plaintext bytes decrypted
+     * @throws IOException
+     *                           if reading or writing fails
+     * @throws HsmCryptException
+     *                           if the file is malformed, tampered with or
+     *                           truncated, or was encrypted with another key
+     */
+    long decrypt(Path source, Path target) throws IOException {
+        return StreamCipher.DEFAULT.decrypt(this::forStreamKeyId, source, target);
+    }
+
+    private HsmCrypt forStreamKeyId(String keyId) {
+        if (!keyId.isEmpty()) {
+            throw new HsmCryptException("Stream was encrypted with key ID: " + keyId);
+        }
+        return this;
+    }
+
+    /**
+     * Wraps a data key with the HSM key.
+     * 
+     * @param dataKey
+     *                the data key, a whole number of AES blocks
+     * @return the wrapped data key as a hexadecimal string
+     * @throws HsmCryptException
+     *                           if wrapping fails
+     */
+    String wrapDataKey(byte[] dataKey) {
+        return unwrap(wrapAll(Collections.singletonList(Hex.encode(dataKey))).get(0));
+    }
+
+    /**
+     * Unwraps a data key wrapped by {@link #wrapDataKey(byte[])}.
+     * 
+     * @param wrappedKey
+     *                   the wrapped data key as a hexadecimal string
+     * @return the data key
+     * @throws HsmCryptException
+     *                           if unwrapping fails
+     */
+    byte[] unwrapDataKey(String wrappedKey) {
+        String hex = unwrap(unwrapAll(Collections.singletonList(wrappedKey)).get(0));
+        try {
+            return Hex.decode(hex);
+        } catch (IllegalArgumentException e) {
+            throw new HsmCryptException("Failed to decrypt data: invalid wrapped data key", e);
         }
     }
 
+    /**
+     * Wraps hexadecimal data keys; they are whole AES blocks, so no padding is
+     * added.
+     */
+    private List<BatchResult> wrapAll(List<String> hexDataKeys) {
+        return executeAll(hexDataKeys, HsmCryptMetrics.Operation.ENCRYPT,
+                (key, dataKey) -> key.encrypt(dataKey, mechanism), UnaryOperator.identity(),
+                "Failed to wrap data key", "Unexpected error during data key wrapping");
+    }
+
+    /**
+     * Unwraps data keys to hexadecimal.
+     */
+    private List<BatchResult> unwrapAll(List<String> wrappedKeys) {
+        return executeAll(wrappedKeys, HsmCryptMetrics.Operation.DECRYPT,
+                (key, wrappedKey) -> key.decrypt(wrappedKey, mechanism), UnaryOperator.identity(),
+                "Failed to decrypt data", "Unexpected error during decryption");
+    }
+
+    /**
+     * Resolves the key on a pooled session of every token so its handle is
+     * cached before the first operation. With several tokens, those where this
+     * fails are taken out of rotation as long as one succeeds.
+     * 
+     * @throws TokenException
+     *                           if the key search fails
+     * @throws HsmCryptException
+     *                           if the key does not exist
+     */
+    void resolveKey() throws TokenException {
+        tokens.resolveKey(keyLabel);
+    }
+
+    /**
+     * Opens sessions in parallel on every token and resolves the key on each,
+     * so the first operations find warm sessions with cached key handles.
+     * 
+     * @param sessions
+     *                 the number of sessions to have open per token
+     * @return the number of sessions warmed up
+     * @throws TokenException
+     *                           if a session cannot be opened or the key search
+     *                           fails
+     * @throws HsmCryptException
+     *                           if the key does not exist
+     */
+    int warmUp(int sessions) throws TokenException {
+        return tokens.warmUp(keyLabel, sessions);
+    }
+
+    /**
+     * Encrypts and decrypts random blocks with the HSM key and times each round
+     * trip. The data is binary, so the HSM key is used also in envelope mode.
+     * 
+     * @param iterations
+     *                   the number of round trips
+     * @return the round-trip times in nanoseconds, in ascending order
+     * @throws HsmCryptException
+     *                           if a round trip fails or returns other data
+     */
+    long[] selfTest(int iterations) {
+        byte[] probe = new byte[AES_BLOCK_BYTES];
+        long[] nanos = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            RandomPrefixSource.nextSharedBytes(probe);
+            long start = System.nanoTime();
+            byte[] roundTrip = decrypt(encrypt(probe));
+            nanos[i] = System.nanoTime() - start;
+            if (!Arrays.equals(probe, roundTrip)) {
+                throw new HsmCryptException("HSM self-test failed: decrypted data does not match on token: "
+                        + getTokenLabel());
+            }
+        }
+        Arrays.sort(nanos);
+        return nanos;
+    }
+
+    /**
+     * Closes the session pools.
+     */
+    @Override
+    public void close() {
+        tokens.close();
+    }
+
+    /**
+     * Runs an HSM operation for each input with the key resolved once on a pooled
+     * session.
+     * <p>
+     * Null inputs yield null results. If the HSM reports that the session is
+     * dead, it is discarded and the item is retried once on a fresh session. If it
+     * reports that the key handle is invalid, the cached handle is dropped and the
+     * item is retried once with a new key search. Any other error is recorded for
+     * that item and processing continues; if no session can be obtained at all,
+     * the remaining items fail with that error.
+     * 
+     * @param inputs
+     *                          the inputs to process
+     * @param operationType
+     *                          the operation type recorded in the metrics
+     * @param operation
+     *                          the HSM operation to run per input
+     * @param resultMapper
+     *                          the conversion applied to each HSM output
+     * @param failureMessage
+     *                          the message used when the HSM reports an error
+     * @param unexpectedMessage
+     *                          the message used for any other error
+     * @return one result per input, in input order
+     */
+    private List<BatchResult> executeAll(Collection<String> inputs, HsmCryptMetrics.Operation operationType,
+            ItemOperation operation, UnaryOperator<String> resultMapper, String failureMessage,
+            String unexpectedMessage) {
+        List<BatchResult> results = new ArrayList<>(inputs.size());
+        HsmSessionPool.PooledSession pooled = null;
+        RuntimeException sessionFailure = null;
+        try {
+            for (String input : inputs) {
+                if (input == null) {
+                    results.add(BatchResult.success(null));
+                    continue;
+                }
+                if (sessionFailure != null) {
+                    results.add(BatchResult.failure(sessionFailure));
+                    continue;
+                }
+
+                for (int attempt = 1;; attempt++) {
+                    if (pooled == null) {
+                        try {
+                            pooled = tokens.borrow();
+                        } catch (TokenException e) {
+                            sessionFailure = new HsmCryptException(failureMessage, e);
+                        } catch (HsmCryptException e) {
+                            sessionFailure = e;
+                        }
+                        if (sessionFailure != null) {
+                            results.add(BatchResult.failure(sessionFailure));
+                            break;
+                        }
+                    }
+
+                    try {
+                        HsmKey key = pooled.getKey(keyLabel);
+                        String output = timed(operationType, operation, pooled.getPool(), key, input);
+                        tokens.recordSuccess(pooled);
+                        results.add(BatchResult.success(resultMapper.apply(output)));
+                        break;
+                    } catch (TokenException e) {
+                        boolean retry = attempt == 1;
+                        if (TokenErrors.isSessionInvalid(e)) {
+                            // Counts as a failure of the token
+                            tokens.invalidate(pooled);
+                            pooled = null;
+                        } else {
+                            if (TokenErrors.isKeyHandleInvalid(e)) {
+                                pooled.forgetKey(keyLabel);
+                            } else {
+                                retry = false;
+                            }
+                            if (!retry) {
+                                tokens.recordFailure(pooled, e);
+                            }
+                        }
+                        if (!retry) {
+                            results.add(BatchResult.failure(new HsmCryptException(failureMessage, e)));
+                            break;
+                        }
+                    } catch (HsmCryptException e) {
+                        results.add(BatchResult.failure(e));
+                        break;
+                    } catch (Exception e) {
+                        results.add(BatchResult.failure(new HsmCryptException(unexpectedMessage, e)));
+                        break;
+                    }
+                }
+            }
+        } finally {
+            if (pooled != null) {
+                tokens.release(pooled);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Runs one HSM operation and records its duration and outcome.
+     */
+    private String timed(HsmCryptMetrics.Operation operationType, ItemOperation operation, HsmSessionPool pool,
+            HsmKey key, String input) throws TokenException {
+        HsmCryptMetrics metrics = pool.getMetrics();
+        long start = System.nanoTime();
+        try {
+            String output = operation.apply(key, input);
+            metrics.recordOperation(operationType, pool.getTokenLabel(), keyLabel,
+                    System.nanoTime() - start, null);
+            return output;
+        } catch (TokenException | RuntimeException e) {
+            metrics.recordOperation(operationType, pool.getTokenLabel(), keyLabel,
+                    System.nanoTime() - start, e);
+            throw e;
+        }
+    }
+
+    private static String unwrap(BatchResult result) {
+        if (!result.isSuccess()) {
+            throw result.getError();
+        }
+        return result.getValue();
+    }
+
     /**
      * Gets the token label being used.
      * 
-     * @return the token label
+     * @return the token label, or the comma-separated labels of balanced tokens
      */
     public String getTokenLabel() {
-        return tokenLabel;
+        return tokens.getTokenLabel();
     }
 
     /**
@@ -165,77 +778,165 @@ class HsmCrypt implements StringEncryptor {
         return mechanism;
     }
 
+    /**
+     * Gets the token balancer, so other keys on the same tokens can share it.
+     * Package-private: For internal use within the package only.
+     * 
+     * @return the token balancer
+     */
+    HsmTokenBalancer getTokens() {
+        return tokens;
+    }
+
     /**
      * Encodes a string to hexadecimal with random prefix and padding.
      * Adds a random prefix block at the beginning for randomization, then applies
      * ISO/IEC 9797-1 Padding Method 2: append 0x80 followed by 0x00 bytes.
+     * <p>
+     * The string is UTF-8 encoded straight into the per-thread block buffer.
      * 
      * @param str the string to encode
      * @return hexadecimal string with random prefix and padding
      */
     private String encodeWithRandomizationAndPadding(String str) {
-        StringBuilder hex = new StringBuilder();
-
-        // Add random first block
-        java.security.SecureRandom random = new java.security.SecureRandom();
-        byte[] randomBlock = new byte[RANDOM_PREFIX_BYTES];
-        random.nextBytes(randomBlock);
-        for (byte b : randomBlock) {
-            hex.append(String.format("%02x", b));
-        }
+        // At most three UTF-8 bytes per UTF-16 char
+        byte[] block = blockBuffer(paddedLength(str.length() * 3));
+        ByteBuffer data = ByteBuffer.wrap(block, RANDOM_PREFIX_BYTES, block.length - RANDOM_PREFIX_BYTES);
+        CharsetEncoder encoder = UTF8_ENCODER.get().reset();
+        encoder.encode(CharBuffer.wrap(str), data, true);
+        encoder.flush(data);
+        return encodeBlock(block, data.position() - RANDOM_PREFIX_BYTES);
+    }
 
-        // Add actual data
-        byte[] bytes = str.getBytes(java.nio.charset.StandardCharsets.UTF_8);
-        for (byte b : bytes) {
-            hex.append(String.format("%02x", b));
-        }
+    /**
+     * Encodes the remaining bytes of a buffer to hexadecimal with random prefix
+     * and padding, advancing its position to the limit.
+     * 
+     * @param plain the bytes to encode
+     * @return hexadecimal string with random prefix and padding
+     */
+    private String encodeWithRandomizationAndPadding(ByteBuffer plain) {
+        int length = plain.remaining();
+        byte[] block = blockBuffer(paddedLength(length));
+        plain.get(block, RANDOM_PREFIX_BYTES, length);
+        return encodeBlock(block, length);
+    }
 
-        // Add padding: 80 followed by 00s to make it multiple of 32 hex chars (16 bytes
-        // for AES)
-        hex.append("80");
-        while (hex.length() % 32 != 0) {
-            hex.append("00");
+    /**
+     * Adds the random prefix and padding around the data at
+     * {@value #RANDOM_PREFIX_BYTES} in a block buffer, encodes the block to
+     * hexadecimal and clears it.
+     */
+    private String encodeBlock(byte[] block, int dataLength) {
+        // Random first block, data, then 0x80 and zero fill up to the AES block size;
+        // block buffers are cleared after use, so only the marker byte is written
+        int paddedLength = paddedLength(dataLength);
+        randomPrefixSource.nextPrefix(block, 0);
+        block[RANDOM_PREFIX_BYTES + dataLength] = (byte) 0x80;
+        try {
+            return Hex.encode(block, 0, paddedLength);
+        } finally {
+            Arrays.fill(block, 0, paddedLength, (byte) 0);
         }
-
-        return hex.toString();
     }
 
     /**
      * Decodes a hexadecimal string by removing random prefix and padding.
      * Removes the random prefix block and ISO/IEC 9797-1 Padding Method 2:
      * 0x80 and trailing 0x00 bytes.
+     * <p>
+     * Padding is located on byte boundaries in a single backward scan over the
+     * decoded bytes. If the trailing bytes are not valid padding, the data is
+     * kept as-is.
      * 
      * @param hex the hexadecimal string to decode
      * @return decoded string
      */
     private String decodeWithRandomizationAndPadding(String hex) {
-        // Remove first random block
-        if (hex.length() > RANDOM_PREFIX_HEX_LENGTH) {
-            hex = hex.substring(RANDOM_PREFIX_HEX_LENGTH);
-        }
-
-        // Remove padding: find last 80 and remove it and all trailing 00s
-        int paddingStart = hex.lastIndexOf("80");
-        if (paddingStart > 0) {
-            // Check if everything after 80 is 00
-            boolean validPadding = true;
-            for (int i = paddingStart + 2; i < hex.length(); i += 2) {
-                if (!hex.substring(i, i + 2).equals("00")) {
-                    validPadding = false;
-                    break;
-                }
-            }
-            if (validPadding) {
-                hex = hex.substring(0, paddingStart);
+        int length = Hex.decodedLength(hex);
+        byte[] block = blockBuffer(length);
+        try {
+            Hex.decode(hex, block, 0);
+            int start = dataStart(length);
+            return new String(block, start, dataEnd(block, start, length) - start, StandardCharsets.UTF_8);
+        } finally {
+            Arrays.fill(block, 0, length, (byte) 0);
+        }
+    }
+
+    /**
+     * Decodes a hexadecimal string by removing random prefix and padding into a
+     * buffer.
+     * 
+     * @param hex the hexadecimal string to decode
+     * @param out the buffer receiving the data at its position, or null to
+     *            return a new array
+     * @return the data, or null if it was written to the buffer
+     */
+    private byte[] decodeWithRandomizationAndPadding(String hex, ByteBuffer out) {
+        int length = Hex.decodedLength(hex);
+        byte[] block = blockBuffer(length);
+        try {
+            Hex.decode(hex, block, 0);
+            int start = dataStart(length);
+            int end = dataEnd(block, start, length);
+            if (out == null) {
+                return Arrays.copyOfRange(block, start, end);
             }
+            out.put(block, start, end - start);
+            return null;
+        } finally {
+            Arrays.fill(block, 0, length, (byte) 0);
+        }
+    }
+
+    /**
+     * Gets the start of the data after the first random block.
+     */
+    private static int dataStart(int length) {
+        return length > RANDOM_PREFIX_BYTES ? RANDOM_PREFIX_BYTES : 0;
+    }
+
+    /**
+     * Gets the end of the data before the padding: trailing 0x00 bytes preceded
+     * by 0x80.
+     */
+    private static int dataEnd(byte[] block, int start, int length) {
+        int i = length - 1;
+        while (i >= start && block[i] == 0) {
+            i--;
         }
+        return i >= start && block[i] == (byte) 0x80 ? i : length;
+    }
+
+    /**
+     * Gets the length of a padded block holding the random prefix and data.
+     */
+    private static int paddedLength(int dataLength) {
+        return (RANDOM_PREFIX_BYTES + dataLength) / AES_BLOCK_BYTES * AES_BLOCK_BYTES + AES_BLOCK_BYTES;
+    }
 
-        int len = hex.length();
-        byte[] bytes = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            bytes[i / 2] = (byte) ((Character.digit(hex.charAt(i), 16) << 4)
-                    + Character.digit(hex.charAt(i + 1), 16));
+    /**
+     * Gets this thread's block buffer, or a new array if the block is larger
+     * than a buffer is kept for. Block buffers are all zero between uses.
+     */
+    private static byte[] blockBuffer(int size) {
+        byte[] buffer = BLOCK_BUFFER.get();
+        if (buffer.length >= size) {
+            return buffer;
         }
-        return new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+        buffer = new byte[size];
+        if (size <= MAX_RETAINED_BLOCK_BYTES) {
+            BLOCK_BUFFER.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * HSM operation run on one input with a key resolved on a borrowed session.
+     */
+    @FunctionalInterface
+    private interface ItemOperation {
+        String apply(HsmKey key, String input) throws TokenException;
     }
 }
@@ -1,5 +1,17 @@
 package io.github.prometheuskr.hsmcrypt;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
@@ -7,10 +19,10 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import iaik.pkcs.pkcs11.TokenException;
-import io.github.prometheuskr.sipwon.constant.HsmKeyType;
 import io.github.prometheuskr.sipwon.constant.HsmMechanism;
-import io.github.prometheuskr.sipwon.session.HsmSession;
 import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
 
 /**
  * Auto-configuration class for HsmCrypt.
@@ -21,38 +33,260 @@ import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
  * 
  * @author Prometheus
  */
+@Slf4j
 @Configuration
 @EnableConfigurationProperties(HsmCryptProperties.class)
+@AutoConfigureAfter(
+        name = "org.springframework.boot.actuate.autoconfigure.metrics.CompositeMeterRegistryAutoConfiguration")
 public class HsmCryptAutoConfiguration {
 
+    /**
+     * Micrometer instrumentation, active when Micrometer is on the classpath and
+     * a MeterRegistry bean exists.
+     */
+    @Configuration(proxyBeanMethods = false)
+    @ConditionalOnClass(name = "io.micrometer.core.instrument.MeterRegistry")
+    static class MetricsConfiguration {
+
+        /**
+         * Creates the Micrometer metrics for HSM operations.
+         * 
+         * @param meterRegistry
+         *                      the meter registry
+         * @return the metrics
+         */
+        @Bean
+        @ConditionalOnBean(MeterRegistry.class)
+        @ConditionalOnMissingBean(HsmCryptMetrics.class)
+        public HsmCryptMetrics hsmCryptMetrics(MeterRegistry meterRegistry) {
+            return new MicrometerHsmCryptMetrics(meterRegistry);
+        }
+    }
+
+    /**
+     * Creates the in-JVM HSM simulator.
+     * <p>
+     * This bean is only created when the 'hsmcrypt.simulator.enabled' property is
+     * set to true, typically from a load-test profile.
+     * 
+     * @param properties
+     *                   the HsmCrypt properties
+     * @return the simulator
+     */
+    @Bean
+    @ConditionalOnMissingBean(SimulatedHsm.class)
+    @ConditionalOnProperty(prefix = "hsmcrypt.simulator", name = "enabled", havingValue = "true")
+    public SimulatedHsm simulatedHsm(HsmCryptProperties properties) {
+        log.warn("HSM simulator enabled: values are encrypted in the JVM and are NOT protected by an HSM");
+        return new SimulatedHsm(properties.getSimulator());
+    }
+
     /**
      * Creates an HsmCrypt bean.
      * <p>
      * This bean is only created when the 'hsmcrypt.encryption.enabled' property is
      * set to true.
      * HsmSessionFactory is auto-configured by sipwon-spring-boot-starter.
+     * Sessions are pooled according to <code>hsmcrypt.encryption.pool.*</code>,
+     * limited according to <code>hsmcrypt.encryption.bulkhead.*</code>, and
+     * closed when the context shuts down. When
+     * <code>hsmcrypt.encryption.token-labels</code> lists several tokens,
+     * operations are balanced across them according to
+     * <code>hsmcrypt.encryption.balancer.*</code>. The HSM is checked or warmed
+     * up according to <code>hsmcrypt.encryption.startup</code>. HSM operations
+     * are recorded in the metrics when instrumentation is available.
+     * <p>
+     * When the simulator is enabled, its session factory is used instead. It is
+     * not exposed as a bean, so other users of HsmSessionFactory never get it.
      * 
      * @param sessionFactory
      *                       the HSM session factory (provided by
      *                       sipwon-spring-boot-starter)
+     * @param simulatedHsm
+     *                       the HSM simulator, if enabled
      * @param properties
      *                       the HsmCrypt properties
+     * @param metrics
+     *                       the HSM operation metrics, if available
      * @return a configured HsmCrypt instance
      */
     @Bean
     @ConditionalOnMissingBean(HsmCrypt.class)
     @ConditionalOnProperty(prefix = "hsmcrypt.encryption", name = "enabled", havingValue = "true")
-    public HsmCrypt hsmCrypt(HsmSessionFactory sessionFactory, HsmCryptProperties properties) {
+    public HsmCrypt hsmCrypt(ObjectProvider<HsmSessionFactory> sessionFactory,
+            ObjectProvider<SimulatedHsm> simulatedHsm, HsmCryptProperties properties,
+            ObjectProvider<HsmCryptMetrics> metrics) {
+        return createHsmCrypt(sessionFactory(sessionFactory, simulatedHsm), properties, metrics);
+    }
+
+    /**
+     * Creates an HsmCrypt over the given session factory, as the HsmCrypt bean.
+     * 
+     * @param sessionFactory
+     *                       the HSM session factory
+     * @param properties
+     *                       the HsmCrypt properties
+     * @param metrics
+     *                       the HSM operation metrics, if available
+     * @return a configured HsmCrypt instance
+     */
+    HsmCrypt createHsmCrypt(HsmSessionFactory sessionFactory, HsmCryptProperties properties,
+            ObjectProvider<HsmCryptMetrics> metrics) {
+        return createHsmCrypt(sessionFactory, properties, properties.getEncryption().getKeyLabel(), metrics);
+    }
+
+    /**
+     * Creates an HsmCrypt for another key over the given session factory, with
+     * its own session pools and otherwise configured as the HsmCrypt bean.
+     * 
+     * @param sessionFactory
+     *                       the HSM session factory
+     * @param properties
+     *                       the HsmCrypt properties
+     * @param keyLabel
+     *                       the key label to use instead of the configured one
+     * @param metrics
+     *                       the HSM operation metrics, if available
+     * @return a configured HsmCrypt instance, to be closed by the caller
+     */
+    HsmCrypt createHsmCrypt(HsmSessionFactory sessionFactory, HsmCryptProperties properties, String keyLabel,
+            ObjectProvider<HsmCryptMetrics> metrics) {
+        HsmCryptProperties.Encryption encConfig = properties.getEncryption();
+
+        HsmCryptMetrics hsmCryptMetrics = metrics.getIfAvailable(() -> HsmCryptMetrics.NOOP);
+        List<String> tokenLabels = encConfig.getTokenLabels().isEmpty()
+                ? Collections.singletonList(encConfig.getTokenLabel())
+                : encConfig.getTokenLabels();
+        List<HsmSessionPool> pools = new ArrayList<>(tokenLabels.size());
+        HsmTokenBalancer tokens;
+        try {
+            for (String tokenLabel : tokenLabels) {
+                pools.add(new HsmSessionPool(
+                        sessionFactory,
+                        tokenLabel,
+                        keyLabel,
+                        encConfig.getPool(),
+                        encConfig.getBulkhead(),
+                        hsmCryptMetrics));
+            }
+            tokens = pools.size() == 1 ? HsmTokenBalancer.single(pools.get(0))
+                    : new HsmTokenBalancer(pools, keyLabel, encConfig.getBalancer(), hsmCryptMetrics);
+        } catch (RuntimeException e) {
+            for (HsmSessionPool pool : pools) {
+                pool.close();
+            }
+            throw e;
+        }
+        HsmCrypt hsmCrypt = new HsmCrypt(tokens, keyLabel, HsmMechanism.AES_CBC, encConfig);
+
+        // Check the AES key, and warm up sessions, as the startup mode says
+        startUp(hsmCrypt, encConfig);
+
+        return hsmCrypt;
+    }
+
+    /**
+     * Creates the registry of HsmCrypt instances by key ID.
+     * <p>
+     * Holds the HsmCrypt bean as default key for legacy values, and one instance
+     * per <code>hsmcrypt.encryption.keys.&lt;keyId&gt;</code> entry. Keys without
+     * a token label are balanced across the HsmCrypt bean's tokens, and keys on
+     * one of its tokens share that token's session pool; each other token gets
+     * one pool, closed with the registry. Every configured key must exist.
+     * 
+     * @param hsmCrypt
+     *                       the HsmCrypt instance for values without a key ID
+     * @param sessionFactory
+     *                       the HSM session factory
+     * @param simulatedHsm
+     *                       the HSM simulator, if enabled
+     * @param properties
+     *                       the HsmCrypt properties
+     * @param metrics
+     *                       the HSM operation metrics, if available
+     * @return the registry
+     */
+    @Bean
+    @ConditionalOnMissingBean(HsmCryptRegistry.class)
+    @ConditionalOnProperty(prefix = "hsmcrypt.encryption", name = "enabled", havingValue = "true")
+    public HsmCryptRegistry hsmCryptRegistry(HsmCrypt hsmCrypt, ObjectProvider<HsmSessionFactory> sessionFactory,
+            ObjectProvider<SimulatedHsm> simulatedHsm, HsmCryptProperties properties,
+            ObjectProvider<HsmCryptMetrics> metrics) {
+        return createHsmCryptRegistry(hsmCrypt, sessionFactory(sessionFactory, simulatedHsm), properties, metrics);
+    }
+
+    /**
+     * Creates the registry over the given session factory, as the registry bean.
+     * 
+     * @param hsmCrypt
+     *                       the HsmCrypt instance for values without a key ID
+     * @param sessionFactory
+     *                       the HSM session factory
+     * @param properties
+     *                       the HsmCrypt properties
+     * @param metrics
+     *                       the HSM operation metrics, if available
+     * @return the registry
+     */
+    HsmCryptRegistry createHsmCryptRegistry(HsmCrypt hsmCrypt, HsmSessionFactory sessionFactory,
+            HsmCryptProperties properties, ObjectProvider<HsmCryptMetrics> metrics) {
         HsmCryptProperties.Encryption encConfig = properties.getEncryption();
 
-        // Ensure AES key exists in HSM
-        ensureKeyExists(sessionFactory, encConfig.getTokenLabel(), encConfig.getKeyLabel());
+        HsmTokenBalancer defaultTokens = hsmCrypt.getTokens();
+        Map<String, HsmSessionPool> pools = new HashMap<>();
+        for (HsmSessionPool pool : defaultTokens.getPools()) {
+            pools.put(pool.getTokenLabel(), pool);
+        }
+        List<HsmSessionPool> ownedPools = new ArrayList<>();
+        Map<String, HsmCrypt> crypts = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, HsmCryptProperties.Key> entry : encConfig.getKeys().entrySet()) {
+                HsmCryptProperties.Key key = entry.getValue();
+                if (key.getKeyLabel() == null || key.getKeyLabel().isEmpty()) {
+                    throw new IllegalArgumentException(
+                            "hsmcrypt.encryption.keys." + entry.getKey() + ".key-label is required");
+                }
+                HsmTokenBalancer tokens = defaultTokens;
+                if (key.getTokenLabel() != null && !key.getTokenLabel().equals(defaultTokens.getTokenLabel())) {
+                    HsmSessionPool pool = pools.get(key.getTokenLabel());
+                    if (pool == null) {
+                        pool = new HsmSessionPool(sessionFactory, key.getTokenLabel(), key.getKeyLabel(),
+                                encConfig.getPool(), encConfig.getBulkhead(),
+                                metrics.getIfAvailable(() -> HsmCryptMetrics.NOOP));
+                        pools.put(key.getTokenLabel(), pool);
+                        ownedPools.add(pool);
+                    }
+                    tokens = HsmTokenBalancer.single(pool);
+                }
+                HsmCrypt crypt = tokens == defaultTokens && key.getKeyLabel().equals(hsmCrypt.getKeyLabel())
+                        ? hsmCrypt
+                        : new HsmCrypt(tokens, key.getKeyLabel(), HsmMechanism.AES_CBC, encConfig);
+                if (crypt != hsmCrypt) {
+                    prepare(crypt, encConfig);
+                }
+                crypts.put(entry.getKey(), crypt);
+            }
+            HsmCryptRegistry registry = new HsmCryptRegistry(hsmCrypt, crypts, encConfig.getActiveKeyId(),
+                    ownedPools);
+            log.info("HsmCrypt keys: {}, active: {}", crypts.keySet(),
+                    registry.getActiveKeyId() != null ? registry.getActiveKeyId() : hsmCrypt.getKeyLabel());
+            return registry;
+        } catch (RuntimeException e) {
+            for (HsmSessionPool pool : ownedPools) {
+                pool.close();
+            }
+            throw e;
+        }
+    }
 
-        return new HsmCrypt(
-                sessionFactory,
-                encConfig.getTokenLabel(),
-                encConfig.getKeyLabel(),
-                HsmMechanism.AES_CBC);
+    /**
+     * Picks the simulator's session factory when it is enabled, sipwon's
+     * otherwise.
+     */
+    static HsmSessionFactory sessionFactory(ObjectProvider<HsmSessionFactory> sessionFactory,
+            ObjectProvider<SimulatedHsm> simulatedHsm) {
+        SimulatedHsm simulator = simulatedHsm.getIfAvailable();
+        return simulator != null ? simulator.getSessionFactory() : sessionFactory.getObject();
     }
 
     /**
@@ -60,15 +294,18 @@ public class HsmCryptAutoConfiguration {
      * <p>
      * This bean is only created when HsmCrypt is available.
      * 
-     * @param hsmCrypt
-     *                 the HsmCrypt instance
+     * @param registry
+     *                   the HsmCrypt instances by key ID
+     * @param properties
+     *                   the HsmCrypt properties
      * @return an HsmCryptHelper instance
      */
     @Bean
     @ConditionalOnMissingBean(HsmCryptHelper.class)
     @ConditionalOnProperty(prefix = "hsmcrypt.encryption", name = "enabled", havingValue = "true")
-    public HsmCryptHelper hsmCryptHelper(HsmCrypt hsmCrypt) {
-        return new HsmCryptHelper(hsmCrypt);
+    public HsmCryptHelper hsmCryptHelper(HsmCryptRegistry registry, HsmCryptProperties properties) {
+        return new HsmCryptHelper(registry, HsmCryptProperties.DEFAULT_PREFIX, HsmCryptProperties.DEFAULT_SUFFIX,
+                properties.getEncryption().getPayloadEncoding());
     }
 
     /**
@@ -84,23 +321,145 @@ public class HsmCryptAutoConfiguration {
     }
 
     /**
-     * Ensures that the AES encryption key exists in HSM.
+     * Creates the listener reconciling encrypted properties on Spring Cloud
+     * environment refreshes.
+     * <p>
+     * This bean is only created when Spring Cloud Context is on the classpath.
      * 
-     * @param sessionFactory
-     *                       the HSM session factory
-     * @param tokenLabel
-     *                       the token label
-     * @param keyLabel
-     *                       the key label to check
+     * @param resolver
+     *                 the resolver wrapping the property sources
+     * @return the refresh listener
+     */
+    @Bean
+    @ConditionalOnClass(name = HsmCryptRefreshListener.ENVIRONMENT_CHANGE_EVENT)
+    @ConditionalOnMissingBean(HsmCryptRefreshListener.class)
+    @ConditionalOnProperty(prefix = "hsmcrypt.encryption", name = "enabled", havingValue = "true")
+    public HsmCryptRefreshListener hsmCryptRefreshListener(EncryptablePropertyResolver resolver) {
+        return new HsmCryptRefreshListener(resolver);
+    }
+
+    /**
+     * Prepares the HSM for the HsmCrypt bean according to
+     * <code>hsmcrypt.encryption.startup</code>, closing it if that fails.
+     * <p>
+     * In <code>verify</code> mode the key is resolved on a pooled session, so
+     * its handle is already cached when the first operation runs. In
+     * <code>warm</code> mode sessions are opened in parallel with the key
+     * resolved on each, and a timed round-trip self-test checks the HSM.
+     * 
+     * @param hsmCrypt
+     *                  the HsmCrypt to prepare
+     * @param encConfig
+     *                  the encryption configuration
      */
-    private void ensureKeyExists(HsmSessionFactory sessionFactory, String tokenLabel,
-            String keyLabel) {
+    private void startUp(HsmCrypt hsmCrypt, HsmCryptProperties.Encryption encConfig) {
         try {
-            // Try to find the AES key
-            try (HsmSession session = sessionFactory.getHsmSession(tokenLabel)) {
-                session.findHsmKey(keyLabel, HsmKeyType.AES);
+            prepare(hsmCrypt, encConfig);
+            if (encConfig.getStartup() == HsmCryptProperties.Encryption.StartupMode.WARM
+                    && encConfig.getWarmup().getSelfTestIterations() > 0) {
+                selfTest(hsmCrypt, encConfig.getWarmup());
             }
-        } catch (TokenException e) {
+        } catch (RuntimeException e) {
+            hsmCrypt.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks the AES key, or warms up sessions with it, according to the
+     * startup mode, leaving the session pool open.
+     * 
+     * @param hsmCrypt
+     *                  the HsmCrypt whose key to prepare
+     * @param encConfig
+     *                  the encryption configuration
+     */
+    private void prepare(HsmCrypt hsmCrypt, HsmCryptProperties.Encryption encConfig) {
+        switch (encConfig.getStartup()) {
+            case LAZY:
+                break;
+            case WARM:
+                warmUp(hsmCrypt, encConfig.getWarmup());
+                break;
+            default:
+                checkKeyExists(hsmCrypt);
+                break;
+        }
+    }
+
+    /**
+     * Opens sessions on every token in parallel with the AES key resolved on
+     * each.
+     * 
+     * @param hsmCrypt
+     *                 the HsmCrypt whose sessions to warm up
+     * @param warmup
+     *                 the warm-up configuration
+     */
+    private void warmUp(HsmCrypt hsmCrypt, HsmCryptProperties.Warmup warmup) {
+        String tokenLabel = hsmCrypt.getTokenLabel();
+        String keyLabel = hsmCrypt.getKeyLabel();
+        long start = System.nanoTime();
+        int sessions;
+        try {
+            // The pool opens at most as many sessions as its bulkhead allows
+            sessions = hsmCrypt.warmUp(warmup.getSessions() > 0 ? warmup.getSessions() : Integer.MAX_VALUE);
+        } catch (TokenException | HsmCryptException e) {
+            throw new RuntimeException(
+                    String.format("Failed to warm up HSM sessions with AES key: %s in token: %s", keyLabel,
+                            tokenLabel),
+                    e);
+        }
+        log.info("Warmed up {} HSM session(s) with key {} on token: {} in {} ms", sessions, keyLabel, tokenLabel,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Runs the timed encrypt/decrypt self-test and logs its latency.
+     * 
+     * @param hsmCrypt
+     *                 the HsmCrypt to test
+     * @param warmup
+     *                 the warm-up configuration
+     * @throws HsmCryptException
+     *                           if a round trip fails or the 99th percentile
+     *                           exceeds the configured maximum
+     */
+    private void selfTest(HsmCrypt hsmCrypt, HsmCryptProperties.Warmup warmup) {
+        long[] nanos = hsmCrypt.selfTest(warmup.getSelfTestIterations());
+        long p50 = percentile(nanos, 50);
+        long p99 = percentile(nanos, 99);
+        log.info(String.format("HSM self-test on token: %s: %d round trips, p50 %.3f ms, p99 %.3f ms",
+                hsmCrypt.getTokenLabel(), nanos.length, p50 / 1e6, p99 / 1e6));
+        if (warmup.getMaxP99() != null && p99 > warmup.getMaxP99().toNanos()) {
+            throw new HsmCryptException(String.format(
+                    "HSM self-test p99 latency %.3f ms exceeds hsmcrypt.encryption.warmup.max-p99 of %d ms"
+                            + " on token: %s",
+                    p99 / 1e6, warmup.getMaxP99().toMillis(), hsmCrypt.getTokenLabel()));
+        }
+    }
+
+    /**
+     * Gets a nearest-rank percentile of sorted values.
+     */
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.max(0, (int) Math.ceil(percent / 100.0 * sorted.length) - 1)];
+    }
+
+    /**
+     * Checks that the AES encryption key exists in HSM, leaving the session pool
+     * open.
+     * 
+     * @param hsmCrypt
+     *                 the HsmCrypt whose key to check
+     */
+    private void checkKeyExists(HsmCrypt hsmCrypt) {
+        String tokenLabel = hsmCrypt.getTokenLabel();
+        String keyLabel = hsmCrypt.getKeyLabel();
+        try {
+            // Try to find the AES key
+            hsmCrypt.resolveKey();
+        } catch (TokenException | HsmCryptException e) {
             // Key not found - throw clear error message
             throw new RuntimeException(
                     String.format("HSM AES key not found: %s in token: %s. Please create the key manually.",
@@ -0,0 +1,43 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+import org.springframework.boot.context.config.ConfigData;
+import org.springframework.boot.context.config.ConfigDataLoader;
+import org.springframework.boot.context.config.ConfigDataLoaderContext;
+import org.springframework.boot.context.config.ConfigDataResourceNotFoundException;
+import org.springframework.util.FileCopyUtils;
+
+/**
+ * Loads encrypted property bundles imported through
+ * <code>spring.config.import=hsmcrypt:...</code>.
+ * <p>
+ * Configuration data is loaded before any HSM client can be configured, so the
+ * bundle is read as is into a {@link HsmCryptBundlePropertySource} holding no
+ * properties yet. {@link HsmCryptEnvironmentPostProcessor} decrypts it once all
+ * configuration has been loaded.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * Registered in <code>META-INF/spring.factories</code>.
+ * 
+ * @author Prometheus
+ * @see HsmCryptBundleLocationResolver
+ */
+class HsmCryptBundleLoader implements ConfigDataLoader<HsmCryptBundleResource> {
+
+    @Override
+    public ConfigData load(ConfigDataLoaderContext context, HsmCryptBundleResource resource) throws IOException {
+        ConfigDataResourceNotFoundException.throwIfDoesNotExist(resource, resource.getResource());
+        byte[] encrypted;
+        try (InputStream in = resource.getResource().getInputStream()) {
+            encrypted = FileCopyUtils.copyToByteArray(in);
+        }
+        if (!StreamCipher.hasHeader(encrypted)) {
+            throw new IllegalStateException("Not an HsmCrypt property bundle: " + resource);
+        }
+        return new ConfigData(Collections.singletonList(
+                new HsmCryptBundlePropertySource("HsmCrypt bundle '" + resource + "'", encrypted)));
+    }
+}
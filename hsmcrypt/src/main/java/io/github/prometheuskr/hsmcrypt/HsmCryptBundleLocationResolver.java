@@ -0,0 +1,58 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.boot.context.config.ConfigDataLocation;
+import org.springframework.boot.context.config.ConfigDataLocationResolver;
+import org.springframework.boot.context.config.ConfigDataLocationResolverContext;
+import org.springframework.core.io.ResourceLoader;
+
+/**
+ * Resolves <code>hsmcrypt:</code> locations in
+ * <code>spring.config.import</code> to encrypted property bundles.
+ * <p>
+ * The rest of the location is a Spring resource location, for example
+ * <code>hsmcrypt:classpath:secrets.hcbundle</code> or
+ * <code>hsmcrypt:file:/etc/app/secrets.hcbundle</code>. With the standard
+ * <code>optional:</code> prefix, a missing bundle is ignored.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * Registered in <code>META-INF/spring.factories</code>.
+ * 
+ * @author Prometheus
+ * @see HsmCryptBundleLoader
+ */
+class HsmCryptBundleLocationResolver implements ConfigDataLocationResolver<HsmCryptBundleResource> {
+
+    /** Prefix of bundle locations */
+    static final String PREFIX = "hsmcrypt:";
+
+    private final ResourceLoader resourceLoader;
+
+    /**
+     * Creates the resolver.
+     * 
+     * @param resourceLoader
+     *                       the loader for the bundle resources
+     */
+    HsmCryptBundleLocationResolver(ResourceLoader resourceLoader) {
+        this.resourceLoader = resourceLoader;
+    }
+
+    @Override
+    public boolean isResolvable(ConfigDataLocationResolverContext context, ConfigDataLocation location) {
+        return location.hasPrefix(PREFIX);
+    }
+
+    @Override
+    public List<HsmCryptBundleResource> resolve(ConfigDataLocationResolverContext context,
+            ConfigDataLocation location) {
+        String path = location.getNonPrefixedValue(PREFIX);
+        if (path.isEmpty()) {
+            throw new IllegalArgumentException("Missing resource in bundle location: " + location);
+        }
+        return Collections.singletonList(
+                new HsmCryptBundleResource(resourceLoader.getResource(path), location.isOptional()));
+    }
+}
@@ -0,0 +1,113 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.boot.env.OriginTrackedMapPropertySource;
+import org.springframework.boot.env.PropertiesPropertySourceLoader;
+import org.springframework.core.env.EnumerablePropertySource;
+import org.springframework.core.env.PropertySource;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+
+/**
+ * An encrypted property bundle that has not been decrypted yet.
+ * <p>
+ * A bundle is a properties file encrypted as one stream by
+ * {@link HsmCryptHelper#encryptStream}, so decrypting it costs a single HSM
+ * operation, unwrapping its data key, however many properties it holds. Until
+ * {@link #decrypt(HsmCryptHelper)} replaces it, the source exposes no
+ * properties.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ * @see HsmCryptBundleLoader
+ */
+class HsmCryptBundlePropertySource extends EnumerablePropertySource<byte[]> {
+
+    private static final String[] NO_NAMES = {};
+
+    /**
+     * Creates a bundle source.
+     * 
+     * @param name
+     *                  the property source name
+     * @param encrypted
+     *                  the encrypted bundle
+     */
+    HsmCryptBundlePropertySource(String name, byte[] encrypted) {
+        super(name, encrypted);
+    }
+
+    @Override
+    public String[] getPropertyNames() {
+        return NO_NAMES;
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    /**
+     * Decrypts the bundle into an immutable property source of the same name.
+     * The plaintext is cleared once parsed.
+     * 
+     * @param helper
+     *               the helper resolving the key named in the bundle
+     * @return the decrypted properties, with origins pointing into the bundle
+     * @throws HsmCryptException
+     *                           if the bundle cannot be decrypted or parsed
+     */
+    PropertySource<?> decrypt(HsmCryptHelper helper) {
+        byte[] encrypted = getSource();
+        ByteArrayOutputStream plain = new ByteArrayOutputStream(encrypted.length);
+        try {
+            helper.decryptStream(new ByteArrayInputStream(encrypted), plain);
+        } catch (IOException e) {
+            throw new HsmCryptException("Failed to decrypt " + getName(), e);
+        }
+        byte[] properties = plain.toByteArray();
+        try {
+            return parse(getName(), new ByteArrayResource(properties, getName()));
+        } finally {
+            Arrays.fill(properties, (byte) 0);
+        }
+    }
+
+    /**
+     * Parses the properties of a bundle. Bundles hold a single properties
+     * document.
+     * 
+     * @param name
+     *                 the property source name
+     * @param resource
+     *                 the plaintext properties
+     * @return an immutable property source, empty if there are no properties
+     * @throws HsmCryptException
+     *                           if the properties cannot be parsed or span
+     *                           several documents
+     */
+    static EnumerablePropertySource<?> parse(String name, Resource resource) {
+        List<PropertySource<?>> documents;
+        try {
+            documents = new PropertiesPropertySourceLoader().load(name, resource);
+        } catch (IOException | RuntimeException e) {
+            throw new HsmCryptException("Failed to parse the properties of " + name, e);
+        }
+        if (documents.isEmpty()) {
+            return new OriginTrackedMapPropertySource(name, Collections.emptyMap(), true);
+        }
+        if (documents.size() > 1) {
+            throw new HsmCryptException(name + " holds " + documents.size()
+                    + " documents, property bundles must hold a single one");
+        }
+        // Properties documents are always loaded as map sources
+        return (EnumerablePropertySource<?>) documents.get(0);
+    }
+}
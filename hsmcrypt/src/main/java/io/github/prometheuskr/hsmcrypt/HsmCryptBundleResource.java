@@ -0,0 +1,61 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import org.springframework.boot.context.config.ConfigDataResource;
+import org.springframework.core.io.Resource;
+
+/**
+ * An encrypted property bundle resolved from a <code>hsmcrypt:</code>
+ * location.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ * @see HsmCryptBundleLocationResolver
+ */
+class HsmCryptBundleResource extends ConfigDataResource {
+
+    private final Resource resource;
+
+    /**
+     * Creates a bundle resource.
+     * 
+     * @param resource
+     *                 the encrypted bundle
+     * @param optional
+     *                 whether a missing bundle is ignored
+     */
+    HsmCryptBundleResource(Resource resource, boolean optional) {
+        super(optional);
+        this.resource = resource;
+    }
+
+    /**
+     * Gets the encrypted bundle.
+     * 
+     * @return the resource
+     */
+    Resource getResource() {
+        return resource;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        return resource.equals(((HsmCryptBundleResource) obj).resource);
+    }
+
+    @Override
+    public int hashCode() {
+        return resource.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return resource.toString();
+    }
+}
@@ -1,15 +1,30 @@
 package io.github.prometheuskr.hsmcrypt;
 
+import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.ComponentScan;
+import org.springframework.core.io.FileSystemResource;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Command-line interface for HsmCrypt encryption/verification operations.
@@ -27,8 +42,28 @@ import java.nio.file.StandardOpenOption;
  * <pre>
  * java -jar hsmcrypt-1.8.0-exec.jar enc "myPassword"
  * java -jar hsmcrypt-1.8.0-exec.jar vrf "myPassword:HCENC(ABC123...)"
+ * java -jar hsmcrypt-1.8.0-exec.jar enc --batch secrets.txt
+ * java -jar hsmcrypt-1.8.0-exec.jar enc-files config/ --threads 8
+ * java -jar hsmcrypt-1.8.0-exec.jar rekey --to HsmCryptKey2 config/ --checkpoint rekey.ckpt
+ * java -jar hsmcrypt-1.8.0-exec.jar enc-file keystore.p12 keystore.p12.hcs
+ * java -jar hsmcrypt-1.8.0-exec.jar bundle secrets.properties secrets.hcbundle
  * </pre>
  * <p>
+ * With <code>--batch</code>, <code>enc</code> and <code>vrf</code> read one
+ * record per line from a file or stdin and write one tab-separated
+ * <code>STATUS\tresult</code> line per record to stdout, in input order, so a
+ * whole run costs one JVM startup and one HSM login.
+ * <p>
+ * <code>enc-files</code> replaces every <code>HCPLAIN(...)</code> marker in a
+ * configuration file or directory tree with its encrypted value in place.
+ * <code>rekey</code> re-encrypts <code>HCENC(...)</code> values with another key
+ * of the same token, in files or in batch input, and can resume an interrupted
+ * run from a checkpoint file.
+ * <code>enc-file</code> and <code>dec-file</code> encrypt and decrypt whole
+ * files of any size, such as certificate bundles and keystores, in chunks.
+ * <code>bundle</code> encrypts a properties file into a property bundle,
+ * imported with <code>spring.config.import=hsmcrypt:...</code>.
+ * <p>
  * Requires application.yml with HSM configuration in the current directory.
  * If not found, a template will be generated automatically.
  * 
@@ -41,15 +76,41 @@ public class HsmCryptCli implements CommandLineRunner {
 
     private static final String VERSION = "1.8.0";
 
+    /** Option switching enc and vrf to newline-delimited batch input */
+    private static final String BATCH_OPTION = "--batch";
+
+    /** Records sent to the HSM per bulk call in batch mode */
+    private static final int BATCH_CHUNK_SIZE = 256;
+
+    /** Default number of values enc-files encrypts concurrently */
+    private static final int DEFAULT_FILE_THREADS = 4;
+
+    private static final String REKEY_USAGE = "Usage: rekey --to <key> [--from <key>] [--threads N]"
+            + " [--checkpoint <file>] (<file|directory> | --batch [file])";
+
     private final HsmCryptHelper hsmCryptHelper;
+    private final HsmCryptProperties properties;
+    private final ObjectProvider<HsmSessionFactory> sessionFactory;
+    private final ObjectProvider<SimulatedHsm> simulatedHsm;
+    private final ObjectProvider<HsmCryptMetrics> metrics;
 
     /**
      * Creates a new CLI instance with the given helper.
      * 
      * @param hsmCryptHelper the helper for encryption operations
+     * @param properties     the HsmCrypt properties, for the keys rekey opens
+     * @param sessionFactory the HSM session factory
+     * @param simulatedHsm   the HSM simulator, if enabled
+     * @param metrics        the HSM operation metrics, if available
      */
-    public HsmCryptCli(HsmCryptHelper hsmCryptHelper) {
+    public HsmCryptCli(HsmCryptHelper hsmCryptHelper, HsmCryptProperties properties,
+            ObjectProvider<HsmSessionFactory> sessionFactory, ObjectProvider<SimulatedHsm> simulatedHsm,
+            ObjectProvider<HsmCryptMetrics> metrics) {
         this.hsmCryptHelper = hsmCryptHelper;
+        this.properties = properties;
+        this.sessionFactory = sessionFactory;
+        this.simulatedHsm = simulatedHsm;
+        this.metrics = metrics;
     }
 
     /**
@@ -132,6 +193,10 @@ public class HsmCryptCli implements CommandLineRunner {
      * <ul>
      * <li>enc - Encrypts text and outputs HCENC(...) format</li>
      * <li>vrf - Verifies plaintext:encrypted pair</li>
+     * <li>enc-files - Encrypts HCPLAIN(...) values in configuration files</li>
+     * <li>rekey - Re-encrypts HCENC(...) values with another key</li>
+     * <li>enc-file / dec-file - Encrypts or decrypts a whole file</li>
+     * <li>bundle - Encrypts a properties file into a property bundle</li>
      * <li>help - Displays usage information</li>
      * <li>version - Displays version information</li>
      * </ul>
@@ -155,6 +220,19 @@ public class HsmCryptCli implements CommandLineRunner {
             case "vrf":
                 handleVerify(args);
                 break;
+            case "enc-files":
+                handleEncryptFiles(args);
+                break;
+            case "rekey":
+                handleRekey(args);
+                break;
+            case "enc-file":
+            case "dec-file":
+                handleFile(args, "enc-file".equals(command));
+                break;
+            case "bundle":
+                handleBundle(args);
+                break;
             case "help":
             case "-h":
             case "--help":
@@ -181,6 +259,11 @@ public class HsmCryptCli implements CommandLineRunner {
      * @throws Exception if encryption fails
      */
     private void handleEncrypt(String[] args) throws Exception {
+        if (isBatch(args)) {
+            runBatch(args, this::encryptChunk);
+            return;
+        }
+
         String input = parseArgs(args);
 
         if (input == null || input.isEmpty()) {
@@ -203,6 +286,11 @@ public class HsmCryptCli implements CommandLineRunner {
      * @throws Exception if verification fails
      */
     private void handleVerify(String[] args) throws Exception {
+        if (isBatch(args)) {
+            runBatch(args, this::verifyChunk);
+            return;
+        }
+
         String input = parseArgs(args);
 
         if (input == null || input.isEmpty()) {
@@ -212,29 +300,13 @@ public class HsmCryptCli implements CommandLineRunner {
         }
 
         try {
-            // Find the last HCENC( position (encrypted text is always at the end)
-            int hcencIndex = input.lastIndexOf("HCENC(");
-            if (hcencIndex == -1) {
-                System.out.println("Invalid: HCENC() format not found");
-                System.exit(1);
-            }
-
-            // Find the last colon before HCENC(
-            int colonIndex = input.lastIndexOf(":", hcencIndex);
-            if (colonIndex == -1) {
-                System.out.println("Invalid: Input must be in 'plaintext:HCENC(...) format");
-                System.exit(1);
-            }
-
-            // Split plaintext and encrypted parts
-            String plaintext = input.substring(0, colonIndex);
-            String encrypted = input.substring(colonIndex + 1);
-
-            // Verify HCENC() format
-            if (!encrypted.endsWith(")")) {
-                System.out.println("Invalid: Encrypted part is not in HCENC() format");
+            String[] pair = splitVerifyInput(input);
+            if (pair.length == 1) {
+                System.out.println("Invalid: " + pair[0]);
                 System.exit(1);
             }
+            String plaintext = pair[0];
+            String encrypted = pair[1];
 
             // Decrypt and compare
             String decrypted = hsmCryptHelper.decryptIfEncrypted(encrypted);
@@ -251,6 +323,591 @@ public class HsmCryptCli implements CommandLineRunner {
         }
     }
 
+    /**
+     * Handles the enc-files command.
+     * <p>
+     * Encrypts all HCPLAIN(...) values in the given configuration file or
+     * directory tree in place and prints one status line per file. Exits with
+     * status 1 if any file was left unchanged because of an error.
+     * 
+     * @param args command line arguments: path and optional --threads N
+     * @throws Exception if the directory cannot be searched
+     */
+    private void handleEncryptFiles(String[] args) throws Exception {
+        if (args.length != 2 && !(args.length == 4 && "--threads".equals(args[2]))) {
+            System.err.println("Error: Usage: enc-files <file|directory> [--threads N]");
+            System.exit(1);
+        }
+        Path path = Paths.get(args[1]);
+        if (!Files.exists(path)) {
+            System.err.println("Error: Path not found: " + path);
+            System.exit(1);
+        }
+        int threads = args.length == 4 ? parseThreads(args[3]) : DEFAULT_FILE_THREADS;
+
+        List<ConfigFileEncryptor.FileResult> results = new ConfigFileEncryptor(hsmCryptHelper, threads)
+                .encrypt(path);
+
+        int encryptedCount = 0;
+        int failedCount = 0;
+        for (ConfigFileEncryptor.FileResult result : results) {
+            if (result.isSuccess()) {
+                System.out.println("OK\t" + result.getPath() + "\t" + result.getEncryptedCount() + " value(s)");
+                encryptedCount += result.getEncryptedCount();
+            } else {
+                System.out.println("ERROR\t" + result.getPath() + "\t" + result.getError());
+                failedCount++;
+            }
+        }
+        System.out.println("Encrypted " + encryptedCount + " value(s) in " + (results.size() - failedCount)
+                + " file(s)" + (failedCount > 0 ? ", " + failedCount + " file(s) failed" : ""));
+
+        if (failedCount > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Handles the rekey command.
+     * <p>
+     * Re-encrypts HCENC(...) values to the key given with --to: a configured
+     * key ID, written in the v2 format, or a key label on the configured token.
+     * Values with a key ID are decrypted with that key, legacy values with the
+     * configured key or the key label given with --from. In file mode the values
+     * in the given configuration file or directory tree are replaced in place
+     * and one status line is printed per file. In batch mode one value is read
+     * per line and one <code>OK\tHCENC(...)</code> or
+     * <code>ERROR\tmessage</code> line is written per value.
+     * <p>
+     * With --checkpoint, completed files and batch lines are recorded, and a
+     * restarted run skips them; batch output for skipped lines is not repeated.
+     * Prints the throughput when done and exits with status 1 if anything
+     * failed.
+     * 
+     * @param args command line arguments
+     * @throws Exception if the input cannot be read or the checkpoint written
+     */
+    private void handleRekey(String[] args) throws Exception {
+        String from = hsmCryptHelper.getHsmCrypt().getKeyLabel();
+        String to = null;
+        int threads = DEFAULT_FILE_THREADS;
+        String checkpointFile = null;
+        String path = null;
+        String batchFile = null;
+        boolean batch = false;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            boolean hasValue = i + 1 < args.length;
+            if ("--to".equals(arg) && hasValue) {
+                to = args[++i];
+            } else if ("--from".equals(arg) && hasValue) {
+                from = args[++i];
+            } else if ("--threads".equals(arg) && hasValue) {
+                threads = parseThreads(args[++i]);
+            } else if ("--checkpoint".equals(arg) && hasValue) {
+                checkpointFile = args[++i];
+            } else if (BATCH_OPTION.equals(arg) && !batch && path == null) {
+                batch = true;
+                if (hasValue && !args[i + 1].startsWith("--")) {
+                    batchFile = args[++i];
+                }
+            } else if (!arg.startsWith("--") && path == null && !batch) {
+                path = arg;
+            } else {
+                System.err.println("Error: " + REKEY_USAGE);
+                System.exit(1);
+            }
+        }
+        if (to == null || (path == null && !batch)) {
+            System.err.println("Error: " + REKEY_USAGE);
+            System.exit(1);
+        }
+        HsmCryptRegistry registry = hsmCryptHelper.getRegistry();
+        boolean toKeyId = registry.getKeyIds().contains(to);
+        if (!toKeyId && to.equals(from)) {
+            System.err.println("Error: --to must name a different key than " + from);
+            System.exit(1);
+        }
+        if (path != null && !Files.exists(Paths.get(path))) {
+            System.err.println("Error: Path not found: " + path);
+            System.exit(1);
+        }
+
+        // Values with a key ID are decrypted with that key; --from applies to legacy values
+        HsmCrypt current = registry.getDefault();
+        HsmCrypt source = null;
+        HsmCrypt target = null;
+        boolean allSucceeded;
+        try {
+            source = from.equals(current.getKeyLabel()) ? current : createHsmCrypt(from);
+            // A configured key ID writes v2 values with that key, a key label legacy values
+            target = toKeyId ? registry.withActiveKey(to).getActive() : createHsmCrypt(to);
+            for (HsmCrypt hsmCrypt : new HsmCrypt[] { source, target }) {
+                try {
+                    hsmCrypt.resolveKey();
+                } catch (Exception e) {
+                    System.err.println("Error: HSM AES key not found: " + hsmCrypt.getKeyLabel() + " in token: "
+                            + hsmCrypt.getTokenLabel());
+                    System.exit(1);
+                }
+            }
+            HsmCryptRegistry targetRegistry = toKeyId ? registry.withActiveKey(to) : HsmCryptRegistry.single(target);
+            HsmCryptRekeyer rekeyer = new HsmCryptRekeyer(
+                    new HsmCryptHelper(registry.withDefault(source), hsmCryptHelper.getPrefix(),
+                            hsmCryptHelper.getSuffix()),
+                    new HsmCryptHelper(targetRegistry, hsmCryptHelper.getPrefix(), hsmCryptHelper.getSuffix(),
+                            hsmCryptHelper.getPayloadEncoding()),
+                    threads);
+            allSucceeded = rekey(rekeyer, from, to, path, batch, batchFile, checkpointFile);
+        } finally {
+            // Only the instances opened for --from and --to own their session pools
+            if (source != null && source != current) {
+                source.close();
+            }
+            if (target != null && !toKeyId) {
+                target.close();
+            }
+        }
+
+        if (!allSucceeded) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Creates an HsmCrypt for another key of the configured tokens, with its
+     * own session pools and otherwise configured as the HsmCrypt bean.
+     * 
+     * @param keyLabel the key label
+     * @return the HsmCrypt, to be closed by the caller
+     */
+    private HsmCrypt createHsmCrypt(String keyLabel) {
+        try {
+            return new HsmCryptAutoConfiguration().createHsmCrypt(
+                    HsmCryptAutoConfiguration.sessionFactory(sessionFactory, simulatedHsm), properties, keyLabel,
+                    metrics);
+        } catch (RuntimeException e) {
+            System.err.println("Error: HSM AES key not available: " + keyLabel + ": " + e.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+
+    /**
+     * Re-encrypts the values in the given files or batch input and prints a
+     * summary.
+     * 
+     * @param rekeyer        the rekeyer
+     * @param from           the source key, for the summary
+     * @param to             the target key, for the summary
+     * @param path           the file or directory, or null in batch mode
+     * @param batch          whether to read batch input
+     * @param batchFile      the batch input file, or null for stdin
+     * @param checkpointFile the checkpoint file, or null
+     * @return true if every value was re-encrypted
+     * @throws Exception if reading or writing fails
+     */
+    private boolean rekey(HsmCryptRekeyer rekeyer, String from, String to, String path, boolean batch,
+            String batchFile, String checkpointFile) throws Exception {
+        long startNanos = System.nanoTime();
+        long[] rekeyedCount = new long[1];
+        boolean allSucceeded;
+        try (ProgressCheckpoint checkpoint = checkpointFile != null
+                ? new ProgressCheckpoint(Paths.get(checkpointFile)) : null) {
+            if (batch) {
+                allSucceeded = runBatch(batchFile == null ? "-" : batchFile,
+                        (lines, out) -> rekeyChunk(rekeyer, lines, out, rekeyedCount), checkpoint);
+            } else {
+                allSucceeded = rekeyFiles(ConfigFileEncryptor.rekeying(rekeyer, checkpoint), Paths.get(path),
+                        rekeyedCount);
+            }
+        }
+
+        double seconds = Math.max(1, System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        // Batch results go to stdout, so the summary goes to stderr there
+        (batch ? System.err : System.out).println(String.format("Re-keyed %d value(s) from %s to %s in %.1f s"
+                + " (%.0f values/s)", rekeyedCount[0], from, to, seconds, rekeyedCount[0] / seconds));
+        return allSucceeded;
+    }
+
+    /**
+     * Handles the enc-file and dec-file commands.
+     * <p>
+     * Encrypts or decrypts a file in fixed-size chunks, so files of any size
+     * are processed with bounded memory. '-' reads stdin or writes stdout;
+     * otherwise the source file is memory-mapped. The byte count goes to stderr.
+     * 
+     * @param args    command line arguments: source and target
+     * @param encrypt true to encrypt, false to decrypt
+     * @throws Exception if reading or writing fails
+     */
+    private void handleFile(String[] args, boolean encrypt) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Error: Usage: " + args[0] + " <source|-> <target|->");
+            System.exit(1);
+        }
+        Path source = "-".equals(args[1]) ? null : Paths.get(args[1]);
+        Path target = "-".equals(args[2]) ? null : Paths.get(args[2]);
+        if (source != null && !Files.isRegularFile(source)) {
+            System.err.println("Error: File not found: " + source);
+            System.exit(1);
+        }
+        if (source != null && target != null && Files.exists(target) && Files.isSameFile(source, target)) {
+            System.err.println("Error: Source and target must be different files");
+            System.exit(1);
+        }
+
+        long bytes;
+        try {
+            if (source != null && target != null) {
+                bytes = encrypt ? hsmCryptHelper.encryptFile(source, target)
+                        : hsmCryptHelper.decryptFile(source, target);
+            } else {
+                try (InputStream in = source != null ? Files.newInputStream(source) : System.in;
+                        OutputStream out = new BufferedOutputStream(
+                                target != null ? Files.newOutputStream(target) : System.out)) {
+                    bytes = encrypt ? hsmCryptHelper.encryptStream(in, out) : hsmCryptHelper.decryptStream(in, out);
+                }
+            }
+        } catch (HsmCryptException | IOException e) {
+            if (target != null) {
+                // Partial output of a failed stream is useless and may be misleading
+                Files.deleteIfExists(target);
+            }
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        System.err.println((encrypt ? "Encrypted " : "Decrypted ") + bytes + " byte(s)");
+    }
+
+    /**
+     * Handles the bundle command.
+     * <p>
+     * Checks that the source is a single-document properties file, then
+     * encrypts it as a whole, so the application decrypts all its properties
+     * with one HSM operation. The property count goes to stderr.
+     * 
+     * @param args command line arguments: properties file and target bundle
+     * @throws Exception if reading or writing fails
+     */
+    private void handleBundle(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Error: Usage: bundle <properties-file> <target.hcbundle>");
+            System.exit(1);
+        }
+        Path source = Paths.get(args[1]);
+        Path target = Paths.get(args[2]);
+        if (!Files.isRegularFile(source)) {
+            System.err.println("Error: File not found: " + source);
+            System.exit(1);
+        }
+
+        if (Files.exists(target) && Files.isSameFile(source, target)) {
+            System.err.println("Error: Source and target must be different files");
+            System.exit(1);
+        }
+
+        int count;
+        try {
+            count = HsmCryptBundlePropertySource.parse(source.toString(), new FileSystemResource(source))
+                    .getPropertyNames().length;
+            // Deletes its partial target if encryption fails
+            hsmCryptHelper.encryptFile(source, target);
+        } catch (HsmCryptException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        System.err.println("Bundled " + count + " property(ies) into " + target);
+    }
+
+    /**
+     * Re-encrypts the values in configuration files and prints one status line
+     * per file.
+     * 
+     * @param encryptor    the re-keying encryptor
+     * @param path         the file or directory
+     * @param rekeyedCount incremented by the number of values re-encrypted
+     * @return true if no file failed
+     * @throws IOException if the directory cannot be searched
+     */
+    private boolean rekeyFiles(ConfigFileEncryptor encryptor, Path path, long[] rekeyedCount) throws IOException {
+        boolean allSucceeded = true;
+        for (ConfigFileEncryptor.FileResult result : encryptor.encrypt(path)) {
+            if (result.isSkipped()) {
+                System.out.println("SKIPPED\t" + result.getPath() + "\tcompleted by an earlier run");
+            } else if (result.isSuccess()) {
+                System.out.println("OK\t" + result.getPath() + "\t" + result.getEncryptedCount() + " value(s)");
+                rekeyedCount[0] += result.getEncryptedCount();
+            } else {
+                System.out.println("ERROR\t" + result.getPath() + "\t" + result.getError());
+                allSucceeded = false;
+            }
+        }
+        return allSucceeded;
+    }
+
+    /**
+     * Re-encrypts a chunk of HCENC(...) records.
+     * <p>
+     * Writes <code>OK\tHCENC(...)</code> or <code>ERROR\tmessage</code> per
+     * record.
+     * 
+     * @param rekeyer      the re-keyer
+     * @param lines        the encrypted records
+     * @param out          the output
+     * @param rekeyedCount incremented by the number of values re-encrypted
+     * @return true if every record was re-encrypted
+     */
+    private static boolean rekeyChunk(HsmCryptRekeyer rekeyer, List<String> lines, PrintWriter out,
+            long[] rekeyedCount) {
+        List<BatchResult> results = rekeyer.rekeyAll(lines);
+        boolean allSucceeded = true;
+        for (BatchResult result : results) {
+            if (result.isSuccess()) {
+                out.println("OK\t" + result.getValue());
+                rekeyedCount[0]++;
+            } else {
+                out.println("ERROR\t" + result.getError().getMessage());
+                allSucceeded = false;
+            }
+        }
+        return allSucceeded;
+    }
+
+    /**
+     * Parses a --threads value, exiting with an error if it is not a positive
+     * number.
+     * 
+     * @param value the option value
+     * @return the thread count
+     */
+    private static int parseThreads(String value) {
+        int threads;
+        try {
+            threads = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            threads = 0;
+        }
+        if (threads <= 0) {
+            System.err.println("Error: --threads must be a positive number");
+            System.exit(1);
+        }
+        return threads;
+    }
+
+    /**
+     * Splits a verify record into its plaintext and encrypted parts.
+     * 
+     * @param input the record in 'plaintext:HCENC(...)' format
+     * @return the plaintext and encrypted parts, or a single element holding the
+     *         reason the record is invalid
+     */
+    private static String[] splitVerifyInput(String input) {
+        // Find the last HCENC( position (encrypted text is always at the end)
+        int hcencIndex = input.lastIndexOf("HCENC(");
+        if (hcencIndex == -1) {
+            return new String[] { "HCENC() format not found" };
+        }
+
+        // Find the last colon before HCENC(
+        int colonIndex = input.lastIndexOf(":", hcencIndex);
+        if (colonIndex == -1) {
+            return new String[] { "Input must be in 'plaintext:HCENC(...) format" };
+        }
+
+        // Split plaintext and encrypted parts
+        String plaintext = input.substring(0, colonIndex);
+        String encrypted = input.substring(colonIndex + 1);
+
+        // Verify HCENC() format
+        if (!encrypted.endsWith(")")) {
+            return new String[] { "Encrypted part is not in HCENC() format" };
+        }
+        return new String[] { plaintext, encrypted };
+    }
+
+    /**
+     * Checks whether the command runs in batch mode.
+     * 
+     * @param args the command line arguments
+     * @return true if the first option is --batch
+     */
+    private static boolean isBatch(String[] args) {
+        return args.length >= 2 && BATCH_OPTION.equals(args[1]);
+    }
+
+    /**
+     * Runs a batch command.
+     * <p>
+     * Records are read from the file given after --batch, or from stdin when no
+     * file or '-' is given, and handed to the processor in chunks of
+     * {@value #BATCH_CHUNK_SIZE}. Each chunk's results are flushed before the next
+     * chunk is read, so output streams while input is still being produced.
+     * Exits with status 1 if any record failed.
+     * 
+     * @param args      the command line arguments
+     * @param processor the processor writing one status line per record
+     * @throws IOException if the input cannot be read
+     */
+    private void runBatch(String[] args, BatchProcessor processor) throws IOException {
+        if (args.length > 3) {
+            throw new IllegalArgumentException("Too many arguments. Usage: <command> --batch [file]");
+        }
+        if (!runBatch(args.length == 3 ? args[2] : "-", processor, null)) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads batch records and hands them to the processor in chunks.
+     * <p>
+     * With a checkpoint, the lines completed by an earlier run are skipped and
+     * the line count is recorded after each chunk's results are flushed.
+     * 
+     * @param file       the input file, or '-' for stdin
+     * @param processor  the processor writing one status line per record
+     * @param checkpoint the checkpoint, or null
+     * @return true if every record succeeded
+     * @throws IOException if the input cannot be read or the checkpoint written
+     */
+    private boolean runBatch(String file, BatchProcessor processor, ProgressCheckpoint checkpoint)
+            throws IOException {
+        long skipLines = checkpoint != null ? checkpoint.getLines() : 0;
+        long lineCount = 0;
+        boolean allSucceeded = true;
+        PrintWriter out = new PrintWriter(
+                new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+        try (BufferedReader in = "-".equals(file)
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            List<String> chunk = new ArrayList<>(BATCH_CHUNK_SIZE);
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (++lineCount <= skipLines) {
+                    continue;
+                }
+                chunk.add(line);
+                if (chunk.size() == BATCH_CHUNK_SIZE) {
+                    allSucceeded &= processor.process(chunk, out);
+                    out.flush();
+                    chunk.clear();
+                    if (checkpoint != null) {
+                        checkpoint.recordLines(lineCount);
+                    }
+                }
+            }
+            if (!chunk.isEmpty()) {
+                allSucceeded &= processor.process(chunk, out);
+                out.flush();
+                if (checkpoint != null) {
+                    checkpoint.recordLines(lineCount);
+                }
+            }
+        } finally {
+            out.flush();
+        }
+        return allSucceeded;
+    }
+
+    /**
+     * Encrypts a chunk of plaintext records with one bulk call.
+     * <p>
+     * Writes <code>OK\tHCENC(...)</code> or <code>ERROR\tmessage</code> per
+     * record.
+     * 
+     * @param lines the plaintext records
+     * @param out   the output
+     * @return true if every record was encrypted
+     */
+    private boolean encryptChunk(List<String> lines, PrintWriter out) {
+        List<String> plainTexts = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            if (!line.isEmpty()) {
+                plainTexts.add(line);
+            }
+        }
+        List<BatchResult> results = hsmCryptHelper.encryptAllWithFormat(plainTexts);
+
+        boolean allSucceeded = true;
+        int next = 0;
+        for (String line : lines) {
+            if (line.isEmpty()) {
+                out.println("ERROR\tInput text is required");
+                allSucceeded = false;
+                continue;
+            }
+            BatchResult result = results.get(next++);
+            if (result.isSuccess()) {
+                out.println("OK\t" + result.getValue());
+            } else {
+                out.println("ERROR\t" + result.getError().getMessage());
+                allSucceeded = false;
+            }
+        }
+        return allSucceeded;
+    }
+
+    /**
+     * Verifies a chunk of 'plaintext:HCENC(...)' records with one bulk call.
+     * <p>
+     * Writes <code>VALID</code>, <code>INVALID</code>,
+     * <code>INVALID\treason</code> or <code>ERROR\tmessage</code> per record.
+     * 
+     * @param lines the records to verify
+     * @param out   the output
+     * @return true if every record was valid
+     */
+    private boolean verifyChunk(List<String> lines, PrintWriter out) {
+        List<String[]> pairs = new ArrayList<>(lines.size());
+        List<String> encryptedTexts = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            String[] pair = line.isEmpty() ? new String[] { "Input text is required" } : splitVerifyInput(line);
+            pairs.add(pair);
+            if (pair.length == 2) {
+                encryptedTexts.add(pair[1]);
+            }
+        }
+        List<BatchResult> results = hsmCryptHelper.decryptAllIfEncrypted(encryptedTexts);
+
+        boolean allSucceeded = true;
+        int next = 0;
+        for (String[] pair : pairs) {
+            if (pair.length == 1) {
+                out.println("INVALID\t" + pair[0]);
+                allSucceeded = false;
+                continue;
+            }
+            BatchResult result = results.get(next++);
+            if (!result.isSuccess()) {
+                out.println("ERROR\t" + result.getError().getMessage());
+                allSucceeded = false;
+            } else if (pair[0].equals(result.getValue())) {
+                out.println("VALID");
+            } else {
+                out.println("INVALID");
+                allSucceeded = false;
+            }
+        }
+        return allSucceeded;
+    }
+
+    /**
+     * Processes one chunk of batch records.
+     */
+    @FunctionalInterface
+    private interface BatchProcessor {
+        /**
+         * Processes the records and writes one status line per record.
+         * 
+         * @param lines the records
+         * @param out   the output
+         * @return true if every record succeeded
+         */
+        boolean process(List<String> lines, PrintWriter out);
+    }
+
     /**
      * Parses command line arguments.
      * 
@@ -277,10 +934,22 @@ public class HsmCryptCli implements CommandLineRunner {
         System.out.println();
         System.out.println("Usage:");
         System.out.println("  java -jar hsmcrypt.jar <command> <text>");
+        System.out.println("  java -jar hsmcrypt.jar <command> --batch [file]");
         System.out.println();
         System.out.println("Commands:");
         System.out.println("  enc <text>                Encrypt text (outputs in HCENC(...) format)");
         System.out.println("  vrf <plaintext:encrypted> Verify plaintext:encrypted pair");
+        System.out.println("  enc --batch [file]        Encrypt one value per line from file or stdin");
+        System.out.println("  vrf --batch [file]        Verify one plaintext:encrypted pair per line");
+        System.out.println("  enc-files <path> [--threads N]");
+        System.out.println("                            Encrypt HCPLAIN(...) values in application*.yml/.properties");
+        System.out.println("  rekey --to <key> [--from <key>] [--threads N] [--checkpoint <file>]");
+        System.out.println("        (<path> | --batch [file])");
+        System.out.println("                            Re-encrypt HCENC(...) values with another key");
+        System.out.println("  enc-file <source> <target> Encrypt a file of any size ('-' for stdin/stdout)");
+        System.out.println("  dec-file <source> <target> Decrypt a file encrypted with enc-file");
+        System.out.println("  bundle <properties> <target>");
+        System.out.println("                            Encrypt a properties file into a property bundle");
         System.out.println("  help                      Show this help message");
         System.out.println("  version                   Show version information");
         System.out.println();
@@ -293,5 +962,21 @@ public class HsmCryptCli implements CommandLineRunner {
         System.out.println();
         System.out.println("  # Verify plaintext and encrypted value match");
         System.out.println("  java -jar hsmcrypt.jar vrf \"Hello World:HCENC(...)\"");
+        System.out.println();
+        System.out.println("  # Encrypt many values in one run (output: OK<TAB>HCENC(...) or ERROR<TAB>message)");
+        System.out.println("  java -jar hsmcrypt.jar enc --batch secrets.txt");
+        System.out.println();
+        System.out.println("  # Encrypt all HCPLAIN(...) values in a config directory in place");
+        System.out.println("  java -jar hsmcrypt.jar enc-files src/main/resources --threads 8");
+        System.out.println();
+        System.out.println("  # Re-encrypt all values in a config directory with a new key, resumable");
+        System.out.println("  java -jar hsmcrypt.jar rekey --to HsmCryptKey2 config --checkpoint rekey.ckpt");
+        System.out.println();
+        System.out.println("  # Encrypt a keystore and decrypt it again");
+        System.out.println("  java -jar hsmcrypt.jar enc-file keystore.p12 keystore.p12.hcs");
+        System.out.println("  java -jar hsmcrypt.jar dec-file keystore.p12.hcs keystore.p12");
+        System.out.println();
+        System.out.println("  # Build a property bundle (spring.config.import=hsmcrypt:classpath:secrets.hcbundle)");
+        System.out.println("  java -jar hsmcrypt.jar bundle secrets.properties src/main/resources/secrets.hcbundle");
     }
 }
@@ -0,0 +1,461 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.AutoConfiguration;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.boot.context.annotation.ImportCandidates;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.env.EnvironmentPostProcessor;
+import org.springframework.boot.env.OriginTrackedMapPropertySource;
+import org.springframework.boot.logging.DeferredLogFactory;
+import org.springframework.boot.origin.OriginTrackedValue;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.EnumerablePropertySource;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.MutablePropertySources;
+import org.springframework.core.env.PropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.core.env.SystemEnvironmentPropertySource;
+import org.springframework.core.io.support.SpringFactoriesLoader;
+import org.springframework.util.ClassUtils;
+
+import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
+
+/**
+ * Environment post-processor that decrypts HCENC() property values before the
+ * application context is created.
+ * <p>
+ * Active when <code>hsmcrypt.encryption.enabled</code> and
+ * <code>hsmcrypt.encryption.early.enabled</code> are true. Runs after all
+ * configuration data has been loaded and, if any value is encrypted, builds its
+ * own HSM client from the <code>sipwon.*</code> and <code>hsmcrypt.*</code>
+ * properties: sipwon's auto-configuration runs in a small bootstrap context for
+ * the session factory (or the simulator supplies it), and HsmCrypt instances
+ * are created as {@link HsmCryptAutoConfiguration} would. All distinct values
+ * are decrypted in one bulk call per key, after which the client is closed.
+ * <p>
+ * The bootstrap context is kept rather than closed, so the HSM library is
+ * initialized and logged in to only once: the beans sipwon's
+ * auto-configuration created are registered as singletons in the application
+ * context, sipwon's auto-configuration is excluded there, and the bootstrap
+ * context is closed with the application context.
+ * <p>
+ * Each property source holding encrypted values is replaced by a copy of the
+ * same kind with the decrypted values, keeping origins and system environment
+ * name mapping, so values are read directly, with no wrapper. Sources of other
+ * kinds get a decrypted overlay just before them. Values that fail to decrypt,
+ * and sources added after this runs, are left to
+ * {@link EncryptablePropertyResolver}.
+ * <p>
+ * Property bundles imported with <code>spring.config.import=hsmcrypt:...</code>
+ * are decrypted here too, whether early decryption is enabled or not, each
+ * replaced by an immutable source of its properties. The same client serves
+ * both. A bundle has no later fallback, so one that cannot be decrypted fails
+ * startup.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * Registered in <code>META-INF/spring.factories</code>.
+ * 
+ * @author Prometheus
+ * @see HsmCryptProperties.Early
+ * @see HsmCryptBundleLoader
+ */
+class HsmCryptEnvironmentPostProcessor implements EnvironmentPostProcessor, Ordered {
+
+    /** Package of sipwon's auto-configuration, run in the bootstrap context */
+    static final String SIPWON_PACKAGE = "io.github.prometheuskr.sipwon.";
+
+    /** Source excluding sipwon's auto-configuration once its beans are handed over */
+    static final String HANDOVER_SOURCE = "hsmcrypt-sipwon-handover";
+
+    /** Property listing the auto-configurations Spring Boot skips */
+    private static final String EXCLUDE_PROPERTY = "spring.autoconfigure.exclude";
+
+    /** Suffix of overlay sources holding decrypted values */
+    private static final String OVERLAY_SUFFIX = "-hsmcrypt-decrypted";
+
+    private final Log log;
+
+    /**
+     * Creates the post-processor.
+     * 
+     * @param logFactory
+     *                   the factory for logs replayed once logging is set up
+     */
+    HsmCryptEnvironmentPostProcessor(DeferredLogFactory logFactory) {
+        this.log = logFactory.getLog(HsmCryptEnvironmentPostProcessor.class);
+    }
+
+    @Override
+    public void postProcessEnvironment(ConfigurableEnvironment environment, SpringApplication application) {
+        HsmCryptProperties properties = Binder.get(environment)
+                .bind("hsmcrypt", HsmCryptProperties.class)
+                .orElseGet(HsmCryptProperties::new);
+        HsmCryptProperties.Encryption encConfig = properties.getEncryption();
+        List<HsmCryptBundlePropertySource> bundles = new ArrayList<>();
+        for (PropertySource<?> propertySource : environment.getPropertySources()) {
+            if (propertySource instanceof HsmCryptBundlePropertySource) {
+                bundles.add((HsmCryptBundlePropertySource) propertySource);
+            }
+        }
+        if (!Boolean.TRUE.equals(encConfig.getEnabled())) {
+            if (!bundles.isEmpty()) {
+                throw new HsmCryptException("Property bundles were imported but hsmcrypt.encryption.enabled is false");
+            }
+            return;
+        }
+
+        // Encrypted property names per source, and the distinct encrypted values
+        Map<EnumerablePropertySource<?>, List<String>> targets = new LinkedHashMap<>();
+        Set<String> values = new LinkedHashSet<>();
+        if (Boolean.TRUE.equals(encConfig.getEarly().getEnabled())) {
+            for (PropertySource<?> propertySource : environment.getPropertySources()) {
+                if (propertySource instanceof EnumerablePropertySource) {
+                    EnumerablePropertySource<?> source = (EnumerablePropertySource<?>) propertySource;
+                    List<String> names = encryptedPropertyNames(source);
+                    if (!names.isEmpty()) {
+                        targets.put(source, names);
+                        for (String name : names) {
+                            values.add((String) source.getProperty(name));
+                        }
+                    }
+                }
+            }
+        }
+        if (bundles.isEmpty() && values.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Client client;
+        try {
+            client = new Client(environment, properties);
+        } catch (RuntimeException e) {
+            if (!bundles.isEmpty()) {
+                throw new HsmCryptException("Failed to create the HSM client decrypting property bundles", e);
+            }
+            log.warn("Early decryption failed, encrypted properties will be decrypted when they are read", e);
+            return;
+        }
+        Map<String, String> decrypted = null;
+        try (Client c = client) {
+            // Bundles have no fallback: a bundle that cannot be decrypted fails startup
+            for (HsmCryptBundlePropertySource bundle : bundles) {
+                environment.getPropertySources().replace(bundle.getName(), bundle.decrypt(c.helper));
+            }
+            if (!values.isEmpty()) {
+                try {
+                    decrypted = decryptAll(c.helper, new ArrayList<>(values));
+                } catch (RuntimeException e) {
+                    log.warn("Early decryption failed, encrypted properties will be decrypted when they are read",
+                            e);
+                }
+            }
+            if (!Boolean.TRUE.equals(properties.getSimulator().getEnabled()) && application != null) {
+                handOver(environment, application, c.keepContext());
+            }
+        }
+        if (decrypted != null) {
+            replaceDecrypted(environment.getPropertySources(), targets, decrypted);
+        }
+        log.info(String.format("Decrypted %d property bundle(s) and %d of %d property value(s)"
+                + " before context refresh in %d ms", bundles.size(), decrypted == null ? 0 : decrypted.size(),
+                values.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+
+    @Override
+    public int getOrder() {
+        // After every other post-processor has contributed its property sources
+        return Ordered.LOWEST_PRECEDENCE;
+    }
+
+    /**
+     * Finds the properties of a source whose values are in the default
+     * encrypted format.
+     * 
+     * @param source
+     *               the property source
+     * @return the property names, empty if none is encrypted
+     */
+    static List<String> encryptedPropertyNames(EnumerablePropertySource<?> source) {
+        List<String> names = new ArrayList<>();
+        for (String name : source.getPropertyNames()) {
+            Object value = source.getProperty(name);
+            if (value instanceof String && ((String) value).startsWith(HsmCryptProperties.DEFAULT_PREFIX)
+                    && ((String) value).endsWith(HsmCryptProperties.DEFAULT_SUFFIX)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Replaces encrypted values with their decrypted values, in place for map
+     * sources and through an overlay for others.
+     */
+    private static void replaceDecrypted(MutablePropertySources propertySources,
+            Map<EnumerablePropertySource<?>, List<String>> targets, Map<String, String> decrypted) {
+        for (Map.Entry<EnumerablePropertySource<?>, List<String>> target : targets.entrySet()) {
+            EnumerablePropertySource<?> source = target.getKey();
+            Map<String, String> sourceValues = new LinkedHashMap<>();
+            for (String name : target.getValue()) {
+                String value = decrypted.get((String) source.getProperty(name));
+                if (value != null) {
+                    sourceValues.put(name, value);
+                }
+            }
+            if (sourceValues.isEmpty()) {
+                continue;
+            }
+            if (source instanceof MapPropertySource) {
+                propertySources.replace(source.getName(), decryptedCopy((MapPropertySource) source, sourceValues));
+            } else {
+                propertySources.addBefore(source.getName(),
+                        new MapPropertySource(source.getName() + OVERLAY_SUFFIX, new LinkedHashMap<>(sourceValues)));
+            }
+        }
+    }
+
+    /**
+     * Decrypts values in one bulk call per key.
+     * 
+     * @return the decrypted value per encrypted value, for successful ones only
+     */
+    private Map<String, String> decryptAll(HsmCryptHelper helper, List<String> values) {
+        List<BatchResult> results = helper.decryptAllIfEncrypted(values);
+        Map<String, String> decrypted = new LinkedHashMap<>();
+        for (int i = 0; i < values.size(); i++) {
+            BatchResult result = results.get(i);
+            if (result.isSuccess()) {
+                decrypted.put(values.get(i), result.getValue());
+            } else {
+                log.warn("Early decryption of a property value failed, it will be decrypted when read: "
+                        + result.getError().getMessage());
+            }
+        }
+        return decrypted;
+    }
+
+    /**
+     * Hands the beans of the bootstrap context to the application context as
+     * singletons and excludes sipwon's auto-configuration there, so the HSM
+     * library is not initialized and logged in to a second time. The bootstrap
+     * context is closed with the application context, or at JVM shutdown if the
+     * application context never starts.
+     */
+    private void handOver(ConfigurableEnvironment environment, SpringApplication application,
+            AnnotationConfigApplicationContext bootstrap) {
+        Map<String, Object> beans = new LinkedHashMap<>();
+        try {
+            ConfigurableListableBeanFactory beanFactory = bootstrap.getBeanFactory();
+            for (String name : beanFactory.getBeanDefinitionNames()) {
+                BeanDefinition definition = beanFactory.getBeanDefinition(name);
+                // Infrastructure and the configuration classes themselves stay behind
+                if (definition.getRole() == BeanDefinition.ROLE_APPLICATION && definition.isSingleton()
+                        && !AnnotatedElementUtils.hasAnnotation(beanFactory.getType(name), Configuration.class)) {
+                    beans.put(name, beanFactory.getBean(name));
+                }
+            }
+        } catch (RuntimeException e) {
+            // The application context then runs sipwon's auto-configuration itself
+            log.warn("Failed to hand the HSM session factory over to the application context", e);
+            bootstrap.close();
+            return;
+        }
+
+        List<String> excluded = new ArrayList<>(Binder.get(environment)
+                .bind(EXCLUDE_PROPERTY, Bindable.listOf(String.class))
+                .orElseGet(Collections::emptyList));
+        excluded.addAll(sipwonAutoConfigurations());
+        environment.getPropertySources().addFirst(new MapPropertySource(HANDOVER_SOURCE,
+                Collections.singletonMap(EXCLUDE_PROPERTY, String.join(",", excluded))));
+        bootstrap.registerShutdownHook();
+        application.addInitializers(context -> {
+            beans.forEach(context.getBeanFactory()::registerSingleton);
+            context.addApplicationListener(new BootstrapCloser(context, bootstrap));
+        });
+        log.debug("Handed " + beans.keySet() + " over to the application context");
+    }
+
+    /**
+     * Finds sipwon's auto-configuration classes.
+     * 
+     * @return the class names, empty if sipwon is not on the classpath
+     */
+    private static Set<String> sipwonAutoConfigurations() {
+        ClassLoader classLoader = HsmCryptEnvironmentPostProcessor.class.getClassLoader();
+        Set<String> names = new LinkedHashSet<>(
+                SpringFactoriesLoader.loadFactoryNames(EnableAutoConfiguration.class, classLoader));
+        ImportCandidates.load(AutoConfiguration.class, classLoader).forEach(names::add);
+        names.removeIf(name -> !name.startsWith(SIPWON_PACKAGE));
+        return names;
+    }
+
+    /**
+     * Creates a context running sipwon's auto-configuration over a copy of the
+     * environment, so the main environment's sources are not touched. Nothing is
+     * registered when the simulator is enabled.
+     * 
+     * @throws IllegalStateException
+     *                               if sipwon's auto-configuration is not on the
+     *                               classpath
+     */
+    private static AnnotationConfigApplicationContext bootstrapContext(ConfigurableEnvironment environment,
+            HsmCryptProperties properties) {
+        StandardEnvironment bootstrapEnvironment = new StandardEnvironment();
+        MutablePropertySources sources = bootstrapEnvironment.getPropertySources();
+        for (PropertySource<?> source : sources) {
+            sources.remove(source.getName());
+        }
+        for (PropertySource<?> source : environment.getPropertySources()) {
+            sources.addLast(source);
+        }
+        bootstrapEnvironment.setActiveProfiles(environment.getActiveProfiles());
+
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.setEnvironment(bootstrapEnvironment);
+        if (!Boolean.TRUE.equals(properties.getSimulator().getEnabled())) {
+            ClassLoader classLoader = HsmCryptEnvironmentPostProcessor.class.getClassLoader();
+            Set<String> names = sipwonAutoConfigurations();
+            if (names.isEmpty()) {
+                throw new IllegalStateException("sipwon auto-configuration not found on the classpath");
+            }
+            for (String name : names) {
+                context.register(ClassUtils.resolveClassName(name, classLoader));
+            }
+        }
+        context.refresh();
+        return context;
+    }
+
+    /**
+     * Copies a map source with some values replaced, keeping the kind of source
+     * and the origins of the replaced values.
+     */
+    private static PropertySource<?> decryptedCopy(MapPropertySource source, Map<String, String> values) {
+        Map<String, Object> map = new LinkedHashMap<>(source.getSource());
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            Object raw = map.get(value.getKey());
+            map.put(value.getKey(), raw instanceof OriginTrackedValue
+                    ? OriginTrackedValue.of(value.getValue(), ((OriginTrackedValue) raw).getOrigin())
+                    : value.getValue());
+        }
+        if (source instanceof SystemEnvironmentPropertySource) {
+            return new SystemEnvironmentPropertySource(source.getName(), map);
+        }
+        if (source instanceof OriginTrackedMapPropertySource) {
+            return new OriginTrackedMapPropertySource(source.getName(), map, true);
+        }
+        return new MapPropertySource(source.getName(), map);
+    }
+
+    /**
+     * Closes the bootstrap context when the application context it handed its
+     * beans to is closed.
+     */
+    private static final class BootstrapCloser implements ApplicationListener<ContextClosedEvent> {
+
+        private final ConfigurableApplicationContext applicationContext;
+        private final ConfigurableApplicationContext bootstrap;
+
+        BootstrapCloser(ConfigurableApplicationContext applicationContext,
+                ConfigurableApplicationContext bootstrap) {
+            this.applicationContext = applicationContext;
+            this.bootstrap = bootstrap;
+        }
+
+        @Override
+        public void onApplicationEvent(ContextClosedEvent event) {
+            // Closed events of child contexts are propagated here too
+            if (event.getApplicationContext() == applicationContext) {
+                bootstrap.close();
+            }
+        }
+    }
+
+    /**
+     * Short-lived HSM client, created as {@link HsmCryptAutoConfiguration} would
+     * and closed once the environment is decrypted. Its bootstrap context is
+     * closed with it unless it is kept for the application context.
+     */
+    private static final class Client implements AutoCloseable {
+
+        private final AnnotationConfigApplicationContext context;
+        private final HsmCrypt hsmCrypt;
+        private final HsmCryptRegistry registry;
+        private final HsmCryptHelper helper;
+        private boolean contextKept;
+
+        Client(ConfigurableEnvironment environment, HsmCryptProperties properties) {
+            HsmCryptAutoConfiguration configuration = new HsmCryptAutoConfiguration();
+            if (properties.getEncryption().getStartup() == HsmCryptProperties.Encryption.StartupMode.WARM) {
+                // The client is used once and closed, so warming up its sessions is wasted
+                properties.getEncryption().setStartup(HsmCryptProperties.Encryption.StartupMode.VERIFY);
+            }
+            this.context = bootstrapContext(environment, properties);
+            HsmCrypt crypt = null;
+            try {
+                HsmSessionFactory sessionFactory = Boolean.TRUE.equals(properties.getSimulator().getEnabled())
+                        ? configuration.simulatedHsm(properties).getSessionFactory()
+                        : context.getBean(HsmSessionFactory.class);
+                crypt = configuration.createHsmCrypt(sessionFactory, properties,
+                        context.getBeanProvider(HsmCryptMetrics.class));
+                this.registry = configuration.createHsmCryptRegistry(crypt, sessionFactory, properties,
+                        context.getBeanProvider(HsmCryptMetrics.class));
+                this.hsmCrypt = crypt;
+            } catch (RuntimeException e) {
+                if (crypt != null) {
+                    crypt.close();
+                }
+                context.close();
+                throw e;
+            }
+            this.helper = configuration.hsmCryptHelper(registry, properties);
+        }
+
+        /**
+         * Keeps the bootstrap context open when the client is closed.
+         * 
+         * @return the bootstrap context, to be closed by the caller
+         */
+        AnnotationConfigApplicationContext keepContext() {
+            contextKept = true;
+            return context;
+        }
+
+        @Override
+        public void close() {
+            try {
+                registry.close();
+            } finally {
+                try {
+                    hsmCrypt.close();
+                } finally {
+                    if (!contextKept) {
+                        context.close();
+                    }
+                }
+            }
+        }
+    }
+}
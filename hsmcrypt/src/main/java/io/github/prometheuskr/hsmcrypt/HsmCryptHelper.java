@@ -1,11 +1,36 @@
 package io.github.prometheuskr.hsmcrypt;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import io.github.prometheuskr.hsmcrypt.HsmCryptProperties.Encryption.PayloadEncoding;
+
 /**
  * Helper class for encryption operations with HCENC(...) format support.
  * <p>
  * Provides utility methods for encrypting and decrypting strings
  * with a consistent format similar to Jasypt's ENC(...) notation.
  * <p>
+ * Values encrypted with an identified key carry a versioned header,
+ * <code>HCENC(v2:keyId:payload)</code>, which is parsed in one pass to pick the
+ * key from the {@link HsmCryptRegistry}; no key is tried in turn. Legacy
+ * <code>HCENC(payload)</code> values use the registry's default key. The
+ * payload is hexadecimal, so it never starts with the version tag.
+ * <p>
+ * With {@link PayloadEncoding#BASE64URL}, new payloads are written as
+ * <code>b64:</code> followed by unpadded Base64url (see {@link PayloadCodec}).
+ * The encoding is detected from that tag in the same pass as the key ID, so
+ * hexadecimal and Base64url values decrypt side by side.
+ * <p>
  * Package-private: Only accessible within hsmcrypt package.
  * External applications should use property resolver feature (HCENC values in
  * properties).
@@ -14,9 +39,13 @@ package io.github.prometheuskr.hsmcrypt;
  */
 class HsmCryptHelper {
 
-    private final HsmCrypt hsmCrypt;
+    /** Version tag of values carrying a key ID */
+    static final String VERSION_2 = "v2:";
+
+    private final HsmCryptRegistry registry;
     private final String prefix;
     private final String suffix;
+    private final PayloadEncoding payloadEncoding;
 
     /**
      * Creates a new HsmCryptHelper with default HCENC(...) format.
@@ -39,8 +68,51 @@ class HsmCryptHelper {
      *                 the suffix for encrypted values
      */
     public HsmCryptHelper(HsmCrypt hsmCrypt, String prefix, String suffix) {
-        if (hsmCrypt == null) {
-            throw new IllegalArgumentException("hsmCrypt cannot be null");
+        this(HsmCryptRegistry.single(nonNull(hsmCrypt)), prefix, suffix);
+    }
+
+    /**
+     * Creates a new HsmCryptHelper with default HCENC(...) format over several
+     * keys.
+     * 
+     * @param registry
+     *                 the HsmCrypt instances by key ID
+     */
+    public HsmCryptHelper(HsmCryptRegistry registry) {
+        this(registry, HsmCryptProperties.DEFAULT_PREFIX, HsmCryptProperties.DEFAULT_SUFFIX);
+    }
+
+    /**
+     * Creates a new HsmCryptHelper with custom format over several keys.
+     * 
+     * @param registry
+     *                 the HsmCrypt instances by key ID
+     * @param prefix
+     *                 the prefix for encrypted values
+     * @param suffix
+     *                 the suffix for encrypted values
+     */
+    public HsmCryptHelper(HsmCryptRegistry registry, String prefix, String suffix) {
+        this(registry, prefix, suffix, PayloadEncoding.HEX);
+    }
+
+    /**
+     * Creates a new HsmCryptHelper with custom format and payload encoding over
+     * several keys.
+     * 
+     * @param registry
+     *                        the HsmCrypt instances by key ID
+     * @param prefix
+     *                        the prefix for encrypted values
+     * @param suffix
+     *                        the suffix for encrypted values
+     * @param payloadEncoding
+     *                        the encoding of new payloads
+     */
+    public HsmCryptHelper(HsmCryptRegistry registry, String prefix, String suffix,
+            PayloadEncoding payloadEncoding) {
+        if (registry == null) {
+            throw new IllegalArgumentException("registry cannot be null");
         }
         if (prefix == null) {
             throw new IllegalArgumentException("prefix cannot be null");
@@ -48,10 +120,21 @@ class HsmCryptHelper {
         if (suffix == null) {
             throw new IllegalArgumentException("suffix cannot be null");
         }
+        if (payloadEncoding == null) {
+            throw new IllegalArgumentException("payloadEncoding cannot be null");
+        }
 
-        this.hsmCrypt = hsmCrypt;
+        this.registry = registry;
         this.prefix = prefix;
         this.suffix = suffix;
+        this.payloadEncoding = payloadEncoding;
+    }
+
+    private static HsmCrypt nonNull(HsmCrypt hsmCrypt) {
+        if (hsmCrypt == null) {
+            throw new IllegalArgumentException("hsmCrypt cannot be null");
+        }
+        return hsmCrypt;
     }
 
     /**
@@ -66,8 +149,7 @@ class HsmCryptHelper {
         if (plainText == null) {
             return null;
         }
-        String encrypted = hsmCrypt.encrypt(plainText);
-        return prefix + encrypted + suffix;
+        return format(registry.getActive().encrypt(plainText));
     }
 
     /**
@@ -83,14 +165,227 @@ class HsmCryptHelper {
             return null;
         }
 
-        if (text.startsWith(prefix) && text.endsWith(suffix)) {
-            String encryptedValue = text.substring(prefix.length(), text.length() - suffix.length());
-            return hsmCrypt.decrypt(encryptedValue);
+        if (isEncrypted(text)) {
+            String body = text.substring(prefix.length(), text.length() - suffix.length());
+            return resolve(body).decrypt(decodePayload(payloadOf(body)));
         }
 
         return text;
     }
 
+    /**
+     * Encrypts multiple plain texts in one pass and wraps each with configured
+     * format.
+     * 
+     * @param plainTexts
+     *                   the texts to encrypt
+     * @return one result per text, in input order, holding the formatted
+     *         encrypted text or the error for that item
+     */
+    public List<BatchResult> encryptAllWithFormat(Collection<String> plainTexts) {
+        List<BatchResult> results = registry.getActive().encryptAll(plainTexts);
+        List<BatchResult> formatted = new ArrayList<>(results.size());
+        for (BatchResult result : results) {
+            if (result.isSuccess() && result.getValue() != null) {
+                formatted.add(BatchResult.success(format(result.getValue())));
+            } else {
+                formatted.add(result);
+            }
+        }
+        return formatted;
+    }
+
+    /**
+     * Decrypts multiple texts in one pass. Texts that are not in the configured
+     * format are returned as-is; only encrypted texts go to the HSM, with one
+     * bulk call per key.
+     * 
+     * @param texts
+     *              the texts to decrypt
+     * @return one result per text, in input order, holding the decrypted or
+     *         original text or the error for that item
+     */
+    public List<BatchResult> decryptAllIfEncrypted(Collection<String> texts) {
+        List<BatchResult> results = new ArrayList<>(texts.size());
+        // Payloads and their result positions, grouped by key
+        Map<HsmCrypt, List<String>> payloads = new IdentityHashMap<>();
+        Map<HsmCrypt, List<Integer>> positions = new IdentityHashMap<>();
+        for (String text : texts) {
+            if (!isEncrypted(text)) {
+                results.add(BatchResult.success(text));
+                continue;
+            }
+            String body = text.substring(prefix.length(), text.length() - suffix.length());
+            HsmCrypt hsmCrypt;
+            String payload;
+            try {
+                hsmCrypt = resolve(body);
+                payload = decodePayload(payloadOf(body));
+            } catch (HsmCryptException e) {
+                results.add(BatchResult.failure(e));
+                continue;
+            }
+            payloads.computeIfAbsent(hsmCrypt, k -> new ArrayList<>()).add(payload);
+            positions.computeIfAbsent(hsmCrypt, k -> new ArrayList<>()).add(results.size());
+            results.add(null);
+        }
+
+        for (Map.Entry<HsmCrypt, List<String>> group : payloads.entrySet()) {
+            List<BatchResult> decrypted = group.getKey().decryptAll(group.getValue());
+            List<Integer> groupPositions = positions.get(group.getKey());
+            for (int i = 0; i < decrypted.size(); i++) {
+                results.set(groupPositions.get(i), decrypted.get(i));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Encrypts a plain text without blocking the caller and wraps it with
+     * configured format.
+     * 
+     * @param plainText
+     *                  the text to encrypt
+     * @return a future completed with the encrypted text in configured format,
+     *         or failed with HsmCryptException
+     * @see HsmAsyncExecutor
+     */
+    public CompletableFuture<String> encryptWithFormatAsync(String plainText) {
+        if (plainText == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return registry.getActive().encryptAsync(plainText).thenApply(this::format);
+    }
+
+    /**
+     * Decrypts a text that may or may not be in the configured format without
+     * blocking the caller. Texts that are not encrypted complete immediately,
+     * without using the HSM executor.
+     * 
+     * @param text
+     *             the text to decrypt
+     * @return a future completed with the decrypted text or original text if not
+     *         encrypted, or failed with HsmCryptException
+     * @see HsmAsyncExecutor
+     */
+    public CompletableFuture<String> decryptIfEncryptedAsync(String text) {
+        if (!isEncrypted(text)) {
+            return CompletableFuture.completedFuture(text);
+        }
+        String body = text.substring(prefix.length(), text.length() - suffix.length());
+        try {
+            return resolve(body).decryptAsync(decodePayload(payloadOf(body)));
+        } catch (HsmCryptException e) {
+            CompletableFuture<String> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * Encrypts a stream of any size with the active key in fixed-size chunks.
+     * The active key ID is recorded in the stream header.
+     * 
+     * @param in
+     *            the plaintext, read to its end but not closed
+     * @param out
+     *            the encrypted output, not closed
+     * @return the number of plaintext bytes encrypted
+     * @throws IOException
+     *                     if reading or writing fails
+     * @see StreamCipher
+     */
+    public long encryptStream(InputStream in, OutputStream out) throws IOException {
+        return StreamCipher.DEFAULT.encrypt(registry.getActive(), activeStreamKeyId(), in, out);
+    }
+
+    /**
+     * Decrypts a stream with the key named in its header. If decryption fails,
+     * the output written so far must be discarded.
+     * 
+     * @param in
+     *            the encrypted input, read to its end but not closed
+     * @param out
+     *            the plaintext output, not closed
+     * @return the number of plaintext bytes decrypted
+     * @throws IOException
+     *                     if reading or writing fails
+     */
+    public long decryptStream(InputStream in, OutputStream out) throws IOException {
+        return StreamCipher.DEFAULT.decrypt(this::forStreamKeyId, in, out);
+    }
+
+    /**
+     * Encrypts a file of any size with the active key, mapping it into memory
+     * region by region.
+     * 
+     * @param source
+     *               the plaintext file
+     * @param target
+     *               the encrypted file, replaced if it exists
+     * @return the number of plaintext bytes encrypted
+     * @throws IOException
+     *                                  if reading or writing fails
+     * @throws IllegalArgumentException
+     *                                  if source and target are the same file
+     */
+    public long encryptFile(Path source, Path target) throws IOException {
+        checkDistinctFiles(source, target);
+        return StreamCipher.DEFAULT.encrypt(registry.getActive(), activeStreamKeyId(), source, target);
+    }
+
+    /**
+     * Decrypts a file with the key named in its header, mapping it into memory
+     * region by region. The target is deleted if decryption fails.
+     * 
+     * @param source
+     *               the encrypted file
+     * @param target
+     *               the plaintext file, replaced if it exists
+     * @return the number of plaintext bytes decrypted
+     * @throws IOException
+     *                                  if reading or writing fails
+     * @throws IllegalArgumentException
+     *                                  if source and target are the same file
+     */
+    public long decryptFile(Path source, Path target) throws IOException {
+        checkDistinctFiles(source, target);
+        return StreamCipher.DEFAULT.decrypt(this::forStreamKeyId, source, target);
+    }
+
+    /**
+     * Checks that a file is not transformed onto itself: opening the target
+     * truncates it, which would destroy the source before it is read.
+     * 
+     * @param source
+     *               the source file
+     * @param target
+     *               the target file
+     * @throws IOException
+     *                     if the files cannot be compared
+     */
+    static void checkDistinctFiles(Path source, Path target) throws IOException {
+        if (Files.exists(target) && Files.isSameFile(source, target)) {
+            throw new IllegalArgumentException("Source and target must be different files: " + source);
+        }
+    }
+
+    private String activeStreamKeyId() {
+        String keyId = registry.getActiveKeyId();
+        return keyId != null ? keyId : "";
+    }
+
+    private HsmCrypt forStreamKeyId(String keyId) {
+        if (keyId.isEmpty()) {
+            return registry.getDefault();
+        }
+        HsmCrypt hsmCrypt = registry.get(keyId);
+        if (hsmCrypt == null) {
+            throw new HsmCryptException("Unknown key ID: " + keyId);
+        }
+        return hsmCrypt;
+    }
+
     /**
      * Checks if the given text is in encrypted format.
      * 
@@ -102,6 +397,95 @@ class HsmCryptHelper {
         return text != null && text.startsWith(prefix) && text.endsWith(suffix);
     }
 
+    /**
+     * Gets the HsmCrypt for values without a key ID.
+     * Package-private: For internal use by the CLI only.
+     * 
+     * @return the default HsmCrypt instance
+     */
+    HsmCrypt getHsmCrypt() {
+        return registry.getDefault();
+    }
+
+    /**
+     * Gets the HsmCrypt instances by key ID.
+     * Package-private: For internal use by the CLI only.
+     * 
+     * @return the registry
+     */
+    HsmCryptRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Gets the encoding of new payloads.
+     * 
+     * @return the payload encoding
+     */
+    PayloadEncoding getPayloadEncoding() {
+        return payloadEncoding;
+    }
+
+    /**
+     * Wraps a payload encrypted with the active key in the configured format and
+     * encoding, with the key ID header if a key is active.
+     */
+    private String format(String hexPayload) {
+        String payload = payloadEncoding == PayloadEncoding.BASE64URL ? PayloadCodec.toBase64Url(hexPayload)
+                : hexPayload;
+        String keyId = registry.getActiveKeyId();
+        return keyId == null ? prefix + payload + suffix
+                : prefix + VERSION_2 + keyId + ':' + payload + suffix;
+    }
+
+    /**
+     * Finds the HsmCrypt for the text between prefix and suffix.
+     * 
+     * @throws HsmCryptException
+     *                           if the header is malformed or names an unknown
+     *                           key
+     */
+    private HsmCrypt resolve(String body) {
+        if (!body.startsWith(VERSION_2)) {
+            return registry.getDefault();
+        }
+        int end = body.indexOf(':', VERSION_2.length());
+        if (end < 0) {
+            throw new HsmCryptException("Malformed encrypted value: missing key ID separator");
+        }
+        String keyId = body.substring(VERSION_2.length(), end);
+        HsmCrypt hsmCrypt = registry.get(keyId);
+        if (hsmCrypt == null) {
+            throw new HsmCryptException("Unknown key ID: " + keyId);
+        }
+        return hsmCrypt;
+    }
+
+    /**
+     * Gets the payload from the text between prefix and suffix, after
+     * {@link #resolve(String)} accepted it.
+     */
+    private static String payloadOf(String body) {
+        return body.startsWith(VERSION_2) ? body.substring(body.indexOf(':', VERSION_2.length()) + 1) : body;
+    }
+
+    /**
+     * Converts a payload to the hexadecimal form HsmCrypt decrypts.
+     * 
+     * @throws HsmCryptException
+     *                           if a Base64url payload is malformed
+     */
+    private static String decodePayload(String payload) {
+        if (!PayloadCodec.isBase64Url(payload)) {
+            return payload;
+        }
+        try {
+            return PayloadCodec.toHex(payload);
+        } catch (IllegalArgumentException e) {
+            throw new HsmCryptException("Malformed encrypted value: invalid Base64url payload", e);
+        }
+    }
+
     /**
      * Gets the prefix used for encrypted values.
      * 
@@ -0,0 +1,139 @@
+package io.github.prometheuskr.hsmcrypt;
+
+/**
+ * Instrumentation hooks for HSM operations.
+ * <p>
+ * Called by {@link HsmSessionPool} and {@link HsmCrypt} with the duration and
+ * outcome of every session acquisition, key search and AES operation, and by
+ * {@link HsmAsyncExecutor} with the time asynchronous operations wait, and by
+ * {@link EncryptablePropertyResolver} with its decrypted value cache. All hooks
+ * default to doing nothing, so {@link #NOOP} is used when no metrics backend is
+ * configured.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ * @see MicrometerHsmCryptMetrics
+ */
+interface HsmCryptMetrics {
+
+    /** Metrics that record nothing */
+    HsmCryptMetrics NOOP = new HsmCryptMetrics() {
+    };
+
+    /**
+     * AES operations run with the HSM key.
+     */
+    enum Operation {
+        ENCRYPT, DECRYPT
+    }
+
+    /**
+     * Starts tracking the sessions of a pool.
+     * 
+     * @param pool
+     *             the session pool
+     */
+    default void bindPool(HsmSessionPool pool) {
+    }
+
+    /**
+     * Starts tracking the availability of balanced tokens.
+     * 
+     * @param balancer
+     *                 the token balancer
+     */
+    default void bindBalancer(HsmTokenBalancer balancer) {
+    }
+
+    /**
+     * Records a caller turned away by a token's bulkhead.
+     * 
+     * @param tokenLabel
+     *                   the token label
+     * @param reason
+     *                   why the caller was rejected
+     */
+    default void recordBulkheadRejection(String tokenLabel, HsmBulkhead.Rejection reason) {
+    }
+
+    /**
+     * Starts tracking the queue of an asynchronous executor.
+     * 
+     * @param executor
+     *                 the executor
+     */
+    default void bindAsyncExecutor(HsmAsyncExecutor executor) {
+    }
+
+    /**
+     * Records the time an asynchronous operation waited before it started, or
+     * its rejection because the queue was full.
+     * 
+     * @param tokenLabel
+     *                   the token label
+     * @param nanos
+     *                   the elapsed time in nanoseconds
+     * @param error
+     *                   the rejection, or null if the operation started
+     */
+    default void recordAsyncQueueWait(String tokenLabel, long nanos, Throwable error) {
+    }
+
+    /**
+     * Starts tracking the hits and misses of the decrypted property value cache.
+     * 
+     * @param cache
+     *              the cache
+     */
+    default void bindPropertyCache(DecryptedValueCache cache) {
+    }
+
+    /**
+     * Records a session borrow, including the wait for a free session and
+     * opening a new one.
+     * 
+     * @param tokenLabel
+     *                   the token label
+     * @param nanos
+     *                   the elapsed time in nanoseconds
+     * @param error
+     *                   the error raised, or null on success
+     */
+    default void recordSessionAcquisition(String tokenLabel, long nanos, Throwable error) {
+    }
+
+    /**
+     * Records a key search on the token. Lookups answered from the key handle
+     * cache are not recorded.
+     * 
+     * @param tokenLabel
+     *                   the token label
+     * @param keyLabel
+     *                   the key label
+     * @param nanos
+     *                   the elapsed time in nanoseconds
+     * @param error
+     *                   the error raised, or null on success
+     */
+    default void recordKeyLookup(String tokenLabel, String keyLabel, long nanos, Throwable error) {
+    }
+
+    /**
+     * Records one AES operation on the HSM.
+     * 
+     * @param operation
+     *                   the operation
+     * @param tokenLabel
+     *                   the token label
+     * @param keyLabel
+     *                   the key label
+     * @param nanos
+     *                   the elapsed time in nanoseconds
+     * @param error
+     *                   the error raised, or null on success
+     */
+    default void recordOperation(Operation operation, String tokenLabel, String keyLabel, long nanos,
+            Throwable error) {
+    }
+}
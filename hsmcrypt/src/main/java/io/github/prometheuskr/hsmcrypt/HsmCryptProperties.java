@@ -1,5 +1,11 @@
 package io.github.prometheuskr.hsmcrypt;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
 import lombok.Data;
@@ -41,6 +47,11 @@ public class HsmCryptProperties {
      */
     private Encryption encryption = new Encryption();
 
+    /**
+     * In-JVM HSM simulator configuration.
+     */
+    private Simulator simulator = new Simulator();
+
     /**
      * Encryption configuration properties.
      */
@@ -57,10 +68,560 @@ public class HsmCryptProperties {
          */
         private String tokenLabel;
 
+        /**
+         * Labels of tokens holding the same replicated key, to spread operations
+         * across instead of {@link #tokenLabel}. Operations go to the least
+         * loaded token, and failing tokens are taken out of rotation.
+         */
+        private List<String> tokenLabels = new ArrayList<>();
+
         /**
          * The key label to use for encryption/decryption operations.
          * Defaults to {@value HsmCryptProperties#DEFAULT_KEY_LABEL}.
          */
         private String keyLabel = DEFAULT_KEY_LABEL;
+
+        /**
+         * What is done with the HSM when the application starts.
+         */
+        private StartupMode startup = StartupMode.VERIFY;
+
+        /**
+         * Session warm-up and self-test configuration, used in
+         * {@link StartupMode#WARM} mode.
+         */
+        private Warmup warmup = new Warmup();
+
+        /**
+         * Decrypted property value cache configuration.
+         */
+        private Cache cache = new Cache();
+
+        /**
+         * Eager pre-decryption configuration.
+         */
+        private Eager eager = new Eager();
+
+        /**
+         * Early decryption configuration.
+         */
+        private Early early = new Early();
+
+        /**
+         * HSM session pool configuration.
+         */
+        private Pool pool = new Pool();
+
+        /**
+         * Per-token concurrency limit configuration.
+         */
+        private Bulkhead bulkhead = new Bulkhead();
+
+        /**
+         * Asynchronous API executor configuration.
+         */
+        private Async async = new Async();
+
+        /**
+         * Multi-token load balancing and failover configuration.
+         */
+        private Balancer balancer = new Balancer();
+
+        /**
+         * Random prefix generation configuration.
+         */
+        private RandomPrefix randomPrefix = new RandomPrefix();
+
+        /**
+         * Envelope encryption configuration.
+         */
+        private Envelope envelope = new Envelope();
+
+        /**
+         * Additional keys by key ID. Values encrypted with one of them carry the
+         * key ID (<code>HCENC(v2:keyId:...)</code>) and are decrypted with that
+         * key directly.
+         */
+        private Map<String, Key> keys = new LinkedHashMap<>();
+
+        /**
+         * ID of the key in {@link #keys} new values are encrypted with. When not
+         * set, values are encrypted with {@link #keyLabel} in the legacy
+         * <code>HCENC(...)</code> format.
+         */
+        private String activeKeyId;
+
+        /**
+         * Encoding of new encrypted values. Values in either encoding are
+         * decrypted whatever this is set to.
+         */
+        private PayloadEncoding payloadEncoding = PayloadEncoding.HEX;
+
+        /**
+         * What is done with the HSM at startup.
+         */
+        public enum StartupMode {
+            /**
+             * Nothing; the first operation opens a session and finds the key.
+             * Fastest startup, but a missing key is only reported on first use.
+             */
+            LAZY,
+
+            /**
+             * Resolve the key on one session per token, failing startup if it
+             * does not exist.
+             */
+            VERIFY,
+
+            /**
+             * Open sessions in parallel with the key resolved on each, then run
+             * a timed encrypt/decrypt self-test, failing startup if it fails or
+             * is too slow.
+             */
+            WARM
+        }
+
+        /**
+         * Encodings of the payload inside <code>HCENC(...)</code>.
+         */
+        public enum PayloadEncoding {
+            /**
+             * Hexadecimal, <code>HCENC(3f8a...)</code>.
+             */
+            HEX,
+
+            /**
+             * Unpadded Base64url, a third shorter than hexadecimal,
+             * <code>HCENC(b64:P4p...)</code>.
+             */
+            BASE64URL
+        }
+    }
+
+    /**
+     * Envelope encryption configuration properties.
+     * <p>
+     * Bound from <code>hsmcrypt.encryption.envelope.*</code>. When enabled, the
+     * HSM key only wraps random AES-256 data keys and values are encrypted with
+     * AES-GCM in the JVM. A data key encrypts values until its time to live or
+     * use count runs out; unwrapped data keys are cached for decryption under
+     * the same limits. Envelope values are decrypted whether or not the mode is
+     * enabled.
+     */
+    @Data
+    @NoArgsConstructor
+    public static class Envelope {
+        /**
+         * Flag to encrypt new values in envelope mode.
+         */
+        private Boolean enabled = Boolean.FALSE;
+
+        /**
+         * Time a data key is used for encryption and an unwrapped data key stays
+         * cached.
+         */
+        private Duration dataKeyTtl = Duration.ofMinutes(5);
+
+        /**
+         * Number of values a data key encrypts, or an unwrapped data key
+         * decrypts from the cache, before it is replaced. 1 gives every value its
+         * own data key.
+         */
+        private Long dataKeyMaxUses = 100_000L;
+
+        /**
+         * Maximum number of unwrapped data keys cached for decryption.
+         */
+        private Integer cacheMaxSize = 256;
+    }
+
+    /**
+     * Identified key configuration properties.
+     * <p>
+     * Bound from <code>hsmcrypt.encryption.keys.&lt;keyId&gt;.*</code>.
+     */
+    @Data
+    @NoArgsConstructor
+    public static class Key {
+        /**
+         * The token label of the key. Defaults to the tokens of
+         * <code>hsmcrypt.encryption</code>, balanced as for the default key.
+         */
+        private String tokenLabel;
+
+        /**
+         * The label of the AES key in the token.
+         */
+        private String keyLabel;
+    }
+
+    /**
+     * Session warm-up and self-test configuration properties.
+     * <p>
+     * Bound from <code>hsmcrypt.encryption.warmup.*</code>. Used when
+     * <code>hsmcrypt.encryption.startup</code> is <code>warm</code>.
+     */
+    @Data
+    @NoArgsConstructor
+    public static class Warmup {
+        /**
+         * Number of sessions opened per token. Zero or negative uses the
+         * bulkhead's permits, which default to the pool's maximum size.
+         */
+        private Integer sessions = 0;
+
+        /**
+         * Number of timed encrypt/decrypt round trips in the self-test. Zero
+         * skips the self-test.
+         */
+        private Integer selfTestIterations = 100;
+
+        /**
+         * Highest 99th percentile round-trip latency of the self-test before
+         * startup fails. Not set means the latency is only logged.
+         */
+        private Duration maxP99;
+    }
+
+    /**
+     * Decrypted property value cache configuration properties.
+     * <p>
+     * Bound from <code>hsmcrypt.encryption.cache.*</code>.
+     */
+    @Data
+    @NoArgsConstructor
+    public static class Cache {
+        /**
+         * Flag to enable or disable caching of decrypted property values.
+         */
+        private Boolean enabled = Boolean.TRUE;
+
+        /**
+         * Maximum number of decrypted values kept in memory. The least recently used
+         * entry is evicted when the limit is reached.
+         */
+        private Integer maxSize = 1000;
+
+        /**
+         * Time after which a cached value is decrypted again. Zero or negative
+         * disables expiry.
+         */
+        private Duration ttl = Duration.ofHours(1);
+    }
+
+    /**
+     * Early decryption configuration properties.
+     * <p>
+     * Bound from <code>hsmcrypt.encryption.early.*</code>. When enabled, an
+     * environment post-processor decrypts all encrypted property values once,
+     * with its own HSM client, before the application context is created, so
+     * early-bound properties such as datasource or logging settings are read
+     * decrypted and without a wrapper.
+     */
+    @Data
+    @NoArgsConstructor
+    public static class Early {
+        /**
+         * Flag to enable or disable decryption before the context is created.
+         */
+        private Boolean enabled = Boolean.FALSE;
+    }
+
+    /**
+     * Eager pre-decryption configuration properties.
+     * <p>
+     * Bound from <code>hsmcrypt.encryption.eager.*</code>. When enabled, all
+     * encrypted property values are decrypted concurrently into the decrypted
+     * value cache when the HsmCryptHelper bean is initialized, before they are
+     * first read. Requires <code>hsmcrypt.encryption.cache.enabled</code>.
+     */
+    @Data
+    @NoArgsConstructor
+    public static class Eager {
+        /**
+         * Flag to enable or disable eager pre-decryption.
+         */
+        private Boolean enabled = Boolean.FALSE;
+
+        /**
+         * Number of worker threads decrypting values concurrently.
+         */
+        private Integer threads = 4;
+    }
+
+    /**
+     * HSM session pool configuration properties.
+     * <p>
+     * Bound from <code>hsmcrypt.encryption.pool.*</code>. When disabled, every
+     * operation opens and closes its own session.
+     */
+    @Data
+    @NoArgsConstructor
+    public static class Pool {
+        /**
+         * Flag to enable or disable session pooling.
+         */
+        private Boolean enabled = Boolean.TRUE;
+
+        /**
+         * Number of sessions idle eviction keeps open. The pool never opens
+         * sessions to reach it; warm mode opens sessions at startup.
+         */
+        private Integer minSize = 1;
+
+        /**
+         * Maximum number of sessions open at the same time.
+         */
+        private Integer maxSize = 8;
+
+        /**
+         * Time an idle session stays open before it is eligible for eviction.
+         */
+        private Duration idleTimeout = Duration.ofMinutes(5);
+
+        /**
+         * Interval between idle eviction runs.
+         */
+        private Duration evictionInterval = Duration.ofSeconds(30);
+
+        /**
+         * Maximum time to wait for a session when all sessions are in use.
+         */
+        private Duration borrowTimeout = Duration.ofSeconds(5);
+
+        /**
+         * Flag to validate idle sessions before they are handed out.
+         */
+        private Boolean validateOnBorrow = Boolean.TRUE;
+
+        /**
+         * Minimum idle time before a borrowed session is validated again.
+         */
+        private Duration validationInterval = Duration.ofSeconds(30);
+    }
+
+    /**
+     * Per-token concurrency limit configuration properties.
+     * <p>
+     * Bound from <code>hsmcrypt.encryption.bulkhead.*</code>. Operations on a
+     * token hold one of a fixed number of permits while they use a session;
+     * callers without a permit wait in arrival order, up to the maximum wait,
+     * or are rejected at once when too many are already waiting or in fast-fail
+     * mode.
+     */
+    @Data
+    @NoArgsConstructor
+    public static class Bulkhead {
+        /**
+         * Maximum number of operations running at once per token, at most the
+         * pool's maximum size. Zero or negative uses the pool's maximum size, or
+         * no limit when pooling is disabled.
+         */
+        private Integer maxConcurrent = 0;
+
+        /**
+         * Longest a caller waits for a permit. Defaults to the pool's borrow
+         * timeout.
+         */
+        private Duration maxWait;
+
+        /**
+         * Maximum number of callers waiting for a permit per token; further
+         * callers are rejected at once. Zero means no limit.
+         */
+        private Integer maxWaiting = 0;
+
+        /**
+         * Flag to reject callers at once when no permit is free instead of
+         * waiting.
+         */
+        private Boolean fastFail = Boolean.FALSE;
+    }
+
+    /**
+     * Asynchronous API executor configuration properties.
+     * <p>
+     * Bound from <code>hsmcrypt.encryption.async.*</code>. Asynchronous
+     * operations run on one bounded executor per token, created on first use, so
+     * callers are not blocked for the HSM round trip and no more operations run
+     * at once than the token has sessions.
+     */
+    @Data
+    @NoArgsConstructor
+    public static class Async {
+        /**
+         * Maximum number of operations running at once per token. Zero or
+         * negative uses the bulkhead's permits, or the number of processors
+         * when operations are not limited.
+         */
+        private Integer threads = 0;
+
+        /**
+         * Maximum number of operations waiting to run per token. Operations
+         * submitted beyond it fail immediately.
+         */
+        private Integer queueCapacity = 1000;
+
+        /**
+         * Flag to run operations on virtual threads, on Java 21 or later.
+         * Ignored with a warning on older runtimes.
+         */
+        private Boolean virtualThreads = Boolean.FALSE;
+    }
+
+    /**
+     * Multi-token load balancing and failover configuration properties.
+     * <p>
+     * Bound from <code>hsmcrypt.encryption.balancer.*</code>. Applies when
+     * <code>hsmcrypt.encryption.token-labels</code> lists more than one token.
+     * A token that fails the configured number of times in a row is taken out
+     * of rotation for the cooldown, then health-checked in the background until
+     * it works again.
+     */
+    @Data
+    @NoArgsConstructor
+    public static class Balancer {
+        /**
+         * Number of consecutive session failures that take a token out of
+         * rotation.
+         */
+        private Integer failureThreshold = 3;
+
+        /**
+         * Time a failing token stays out of rotation before it is health-checked.
+         */
+        private Duration cooldown = Duration.ofSeconds(30);
+
+        /**
+         * Interval between checks for tokens whose cooldown has elapsed.
+         */
+        private Duration healthCheckInterval = Duration.ofSeconds(5);
+    }
+
+    /**
+     * Random prefix generation configuration properties.
+     * <p>
+     * Bound from <code>hsmcrypt.encryption.random-prefix.*</code>.
+     */
+    @Data
+    @NoArgsConstructor
+    public static class RandomPrefix {
+        /**
+         * Size in bytes of the buffer random prefixes are taken from, refilled
+         * from the JVM-wide shared DRBG.
+         */
+        private Integer bufferSize = 4096;
+    }
+
+    /**
+     * In-JVM HSM simulator configuration properties.
+     * <p>
+     * Bound from <code>hsmcrypt.simulator.*</code>. When enabled, HsmCrypt uses a
+     * software HSM backed by JCE AES instead of the PKCS#11 token, for load and
+     * capacity testing without HSM hardware. Values encrypted by the simulator
+     * are not protected by an HSM.
+     */
+    @Data
+    @NoArgsConstructor
+    public static class Simulator {
+        /**
+         * Flag to enable or disable the HSM simulator.
+         */
+        private Boolean enabled = Boolean.FALSE;
+
+        /**
+         * Maximum number of sessions open at the same time. Opening one more session
+         * fails with <code>CKR_SESSION_COUNT</code>.
+         */
+        private Integer maxSessions = 64;
+
+        /**
+         * Secret the simulated key material is derived from, together with the
+         * token and key labels, so encrypted values stay readable across
+         * restarts.
+         */
+        private String secret = "hsmcrypt-simulator";
+
+        /**
+         * Flag to give keys with the same label the same material on every
+         * token, like an HSM replicating keys across partitions.
+         */
+        private Boolean replicatedKeys = Boolean.FALSE;
+
+        /**
+         * Simulated session opening.
+         */
+        private SimulatedOperation openSession = new SimulatedOperation();
+
+        /**
+         * Simulated key lookup.
+         */
+        private SimulatedOperation findKey = new SimulatedOperation();
+
+        /**
+         * Simulated encryption.
+         */
+        private SimulatedOperation encrypt = new SimulatedOperation();
+
+        /**
+         * Simulated decryption.
+         */
+        private SimulatedOperation decrypt = new SimulatedOperation();
+    }
+
+    /**
+     * Timing and failure behaviour of one simulated HSM operation.
+     * <p>
+     * Bound from <code>hsmcrypt.simulator.&lt;operation&gt;.*</code>.
+     */
+    @Data
+    @NoArgsConstructor
+    public static class SimulatedOperation {
+        /**
+         * Latency distribution of the operation.
+         */
+        private Distribution distribution = Distribution.NONE;
+
+        /**
+         * Median latency. Used as the constant latency for the fixed distribution.
+         */
+        private Duration median = Duration.ZERO;
+
+        /**
+         * 99th percentile latency of the log-normal distribution.
+         */
+        private Duration p99 = Duration.ZERO;
+
+        /**
+         * Probability between 0 and 1 that the operation fails with a
+         * TokenException.
+         */
+        private Double failureRate = 0.0;
+
+        /**
+         * PKCS#11 return value name reported by random failures.
+         */
+        private String failureCode = "CKR_DEVICE_ERROR";
+
+        /**
+         * Latency distributions.
+         */
+        public enum Distribution {
+            /**
+             * No added latency.
+             */
+            NONE,
+
+            /**
+             * Constant latency of <code>median</code>.
+             */
+            FIXED,
+
+            /**
+             * Log-normal latency defined by <code>median</code> and
+             * <code>p99</code>, matching the long tail of real HSM timings.
+             */
+            LOG_NORMAL
+        }
     }
 }
@@ -0,0 +1,72 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.event.SmartApplicationListener;
+import org.springframework.core.Ordered;
+
+/**
+ * Reconciles encrypted properties when Spring Cloud refreshes the environment.
+ * <p>
+ * Config server and Kubernetes ConfigMap reloads replace property sources
+ * through Spring Cloud's context refresher, which then publishes an
+ * <code>EnvironmentChangeEvent</code>, and a
+ * <code>RefreshScopeRefreshedEvent</code> once refresh-scoped beans are
+ * recreated. On either event {@link EncryptablePropertyResolver#refresh()}
+ * wraps the new sources and decrypts the changed values. Spring Cloud is
+ * optional, so the events are matched by class name.
+ * <p>
+ * The listener runs first, so configuration properties rebound on the same
+ * event read decrypted values.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ * @see HsmCryptAutoConfiguration#hsmCryptRefreshListener(EncryptablePropertyResolver)
+ */
+class HsmCryptRefreshListener implements SmartApplicationListener {
+
+    /** Event published after property sources were replaced */
+    static final String ENVIRONMENT_CHANGE_EVENT =
+            "org.springframework.cloud.context.environment.EnvironmentChangeEvent";
+
+    /** Event published after refresh-scoped beans were recreated */
+    static final String REFRESH_SCOPE_REFRESHED_EVENT =
+            "org.springframework.cloud.context.scope.refresh.RefreshScopeRefreshedEvent";
+
+    private final EncryptablePropertyResolver resolver;
+
+    /**
+     * Creates the listener.
+     * 
+     * @param resolver
+     *                 the resolver wrapping the property sources
+     */
+    HsmCryptRefreshListener(EncryptablePropertyResolver resolver) {
+        if (resolver == null) {
+            throw new IllegalArgumentException("resolver cannot be null");
+        }
+        this.resolver = resolver;
+    }
+
+    @Override
+    public boolean supportsEventType(Class<? extends ApplicationEvent> eventType) {
+        for (Class<?> type = eventType; type != null; type = type.getSuperclass()) {
+            String name = type.getName();
+            if (name.equals(ENVIRONMENT_CHANGE_EVENT) || name.equals(REFRESH_SCOPE_REFRESHED_EVENT)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationEvent event) {
+        resolver.refresh();
+    }
+
+    @Override
+    public int getOrder() {
+        // Before Spring Cloud rebinds configuration properties on the same event
+        return Ordered.HIGHEST_PRECEDENCE;
+    }
+}
@@ -0,0 +1,173 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * HsmCrypt instances by key ID.
+ * <p>
+ * Values in the versioned <code>HCENC(v2:keyId:payload)</code> format name the
+ * key they were encrypted with, so {@link HsmCryptHelper} looks the key up here
+ * instead of trying each key in turn. Legacy values without a key ID use the
+ * default instance. New values are encrypted with the active key, or with the
+ * default instance in the legacy format when no key is active.
+ * <p>
+ * Keys on the same token share one session pool. The registry closes the pools
+ * it was given; the default instance is closed by its owner.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ */
+class HsmCryptRegistry implements AutoCloseable {
+
+    /** Characters allowed in a key ID, so it cannot be confused with the format */
+    private static final Pattern KEY_ID = Pattern.compile("[A-Za-z0-9._-]+");
+
+    private final HsmCrypt defaultCrypt;
+    private final Map<String, HsmCrypt> crypts;
+    private final String activeKeyId;
+    private final List<HsmSessionPool> ownedPools;
+
+    /**
+     * Creates a registry.
+     * 
+     * @param defaultCrypt
+     *                     the instance for values without a key ID
+     * @param crypts
+     *                     the instances by key ID
+     * @param activeKeyId
+     *                     the ID of the key new values are encrypted with, or
+     *                     null to use the default instance and legacy format
+     * @param ownedPools
+     *                     the session pools to close with the registry
+     */
+    public HsmCryptRegistry(HsmCrypt defaultCrypt, Map<String, HsmCrypt> crypts, String activeKeyId,
+            List<HsmSessionPool> ownedPools) {
+        if (defaultCrypt == null) {
+            throw new IllegalArgumentException("defaultCrypt cannot be null");
+        }
+        for (String keyId : crypts.keySet()) {
+            if (!isValidKeyId(keyId)) {
+                throw new IllegalArgumentException("Invalid key ID '" + keyId
+                        + "': only letters, digits, '.', '_' and '-' are allowed");
+            }
+        }
+        if (activeKeyId != null && !crypts.containsKey(activeKeyId)) {
+            throw new IllegalArgumentException("Active key ID '" + activeKeyId + "' is not configured");
+        }
+        this.defaultCrypt = defaultCrypt;
+        this.crypts = Collections.unmodifiableMap(new LinkedHashMap<>(crypts));
+        this.activeKeyId = activeKeyId;
+        this.ownedPools = new ArrayList<>(ownedPools);
+    }
+
+    /**
+     * Creates a registry holding only a default instance.
+     * 
+     * @param defaultCrypt
+     *                     the instance for all values
+     * @return the registry
+     */
+    static HsmCryptRegistry single(HsmCrypt defaultCrypt) {
+        return new HsmCryptRegistry(defaultCrypt, Collections.emptyMap(), null, Collections.emptyList());
+    }
+
+    /**
+     * Checks whether a string can be used as a key ID.
+     * 
+     * @param keyId
+     *              the candidate key ID
+     * @return true if it is non-empty and contains only allowed characters
+     */
+    static boolean isValidKeyId(String keyId) {
+        return keyId != null && KEY_ID.matcher(keyId).matches();
+    }
+
+    /**
+     * Gets the instance for values without a key ID.
+     * 
+     * @return the default instance
+     */
+    public HsmCrypt getDefault() {
+        return defaultCrypt;
+    }
+
+    /**
+     * Gets the instance for a key ID.
+     * 
+     * @param keyId
+     *              the key ID
+     * @return the instance, or null if the key ID is not configured
+     */
+    public HsmCrypt get(String keyId) {
+        return crypts.get(keyId);
+    }
+
+    /**
+     * Gets the configured key IDs.
+     * 
+     * @return the key IDs in configuration order
+     */
+    public Set<String> getKeyIds() {
+        return crypts.keySet();
+    }
+
+    /**
+     * Gets the ID of the key new values are encrypted with.
+     * 
+     * @return the key ID, or null if the default instance encrypts in the legacy
+     *         format
+     */
+    public String getActiveKeyId() {
+        return activeKeyId;
+    }
+
+    /**
+     * Gets the instance new values are encrypted with.
+     * 
+     * @return the active instance, or the default instance if no key is active
+     */
+    public HsmCrypt getActive() {
+        return activeKeyId != null ? crypts.get(activeKeyId) : defaultCrypt;
+    }
+
+    /**
+     * Creates a view of this registry encrypting with another key. The view
+     * does not own any pools.
+     * 
+     * @param keyId
+     *              the ID of a configured key
+     * @return the view
+     */
+    HsmCryptRegistry withActiveKey(String keyId) {
+        return new HsmCryptRegistry(defaultCrypt, crypts, keyId, Collections.emptyList());
+    }
+
+    /**
+     * Creates a view of this registry using another instance for values without
+     * a key ID. The view does not own any pools.
+     * 
+     * @param defaultCrypt
+     *                     the instance for values without a key ID
+     * @return the view
+     */
+    HsmCryptRegistry withDefault(HsmCrypt defaultCrypt) {
+        return new HsmCryptRegistry(defaultCrypt, crypts, activeKeyId, Collections.emptyList());
+    }
+
+    /**
+     * Closes the session pools owned by this registry.
+     */
+    @Override
+    public void close() {
+        for (HsmSessionPool pool : ownedPools) {
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Re-encrypts values from one HSM key to another.
+ * <p>
+ * Each chunk of HCENC(...) values is decrypted with the source key in one bulk
+ * call and the plaintexts are encrypted with the target key in a second one, so
+ * each side uses one pooled session and one cached key handle per chunk and the
+ * plaintexts never leave the chunk. Chunks run in parallel on the configured
+ * number of threads.
+ * <p>
+ * Decryption cannot tell a wrong key from a right one, so the source must be
+ * the key the values were encrypted with.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ * @see ConfigFileEncryptor#rekeying(HsmCryptRekeyer, ProgressCheckpoint)
+ */
+class HsmCryptRekeyer {
+
+    /** Maximum number of values per bulk call */
+    private static final int MAX_CHUNK_SIZE = 64;
+
+    private final HsmCryptHelper source;
+    private final HsmCryptHelper target;
+    private final int threads;
+
+    /**
+     * Creates a re-keyer.
+     * 
+     * @param source
+     *                the helper for the key the values are encrypted with
+     * @param target
+     *                the helper for the key to re-encrypt with
+     * @param threads
+     *                the number of chunks processed concurrently
+     */
+    public HsmCryptRekeyer(HsmCryptHelper source, HsmCryptHelper target, int threads) {
+        if (source == null) {
+            throw new IllegalArgumentException("source cannot be null");
+        }
+        if (target == null) {
+            throw new IllegalArgumentException("target cannot be null");
+        }
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be greater than zero");
+        }
+        this.source = source;
+        this.target = target;
+        this.threads = threads;
+    }
+
+    /**
+     * Re-encrypts the values with the target key.
+     * 
+     * @param encryptedValues
+     *                        the values in the source helper's format (default
+     *                        HCENC(...))
+     * @return one result per value, in input order, holding the value in the
+     *         target helper's format or the error for that value
+     */
+    public List<BatchResult> rekeyAll(List<String> encryptedValues) {
+        return ParallelBatch.apply(encryptedValues, threads, MAX_CHUNK_SIZE, "hsmcrypt-rekey-", this::rekeyChunk);
+    }
+
+    /**
+     * Gets the helper for the key the values are encrypted with.
+     * 
+     * @return the source helper
+     */
+    public HsmCryptHelper getSource() {
+        return source;
+    }
+
+    /**
+     * Gets the number of chunks processed concurrently.
+     * 
+     * @return the thread count
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    private List<BatchResult> rekeyChunk(List<String> encryptedValues) {
+        List<String> encrypted = new ArrayList<>(encryptedValues.size());
+        for (String value : encryptedValues) {
+            if (source.isEncrypted(value)) {
+                encrypted.add(value);
+            }
+        }
+        List<BatchResult> decrypted = source.decryptAllIfEncrypted(encrypted);
+
+        List<String> plainTexts = new ArrayList<>(decrypted.size());
+        for (BatchResult result : decrypted) {
+            if (result.isSuccess()) {
+                plainTexts.add(result.getValue());
+            }
+        }
+        List<BatchResult> reencrypted = target.encryptAllWithFormat(plainTexts);
+
+        List<BatchResult> results = new ArrayList<>(encryptedValues.size());
+        int nextDecrypted = 0;
+        int nextReencrypted = 0;
+        for (String value : encryptedValues) {
+            if (!source.isEncrypted(value)) {
+                results.add(BatchResult.failure(new HsmCryptException("Not an encrypted value")));
+                continue;
+            }
+            BatchResult result = decrypted.get(nextDecrypted++);
+            results.add(result.isSuccess() ? reencrypted.get(nextReencrypted++) : result);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,53 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import org.springframework.boot.autoconfigure.AutoConfigurationImportFilter;
+import org.springframework.boot.autoconfigure.AutoConfigurationMetadata;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.core.env.Environment;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Skips sipwon's auto-configuration when the HSM simulator is enabled.
+ * <p>
+ * sipwon's auto-configuration creates the PKCS#11 session factory, which loads
+ * the native library and logs in to the token. With
+ * <code>hsmcrypt.simulator.enabled</code> set, HsmCrypt uses the simulator's
+ * session factory instead, so sipwon's auto-configuration is filtered out
+ * before it is even evaluated and the application runs on a machine without
+ * HSM client software. Candidates are matched by package, as in
+ * {@link HsmCryptEnvironmentPostProcessor}, so this does not depend on sipwon's
+ * class names or conditions.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * Registered in <code>META-INF/spring.factories</code>.
+ * 
+ * @author Prometheus
+ * @see HsmCryptProperties.Simulator
+ */
+@Slf4j
+class HsmCryptSimulatorImportFilter implements AutoConfigurationImportFilter, EnvironmentAware {
+
+    private Environment environment;
+
+    @Override
+    public void setEnvironment(Environment environment) {
+        this.environment = environment;
+    }
+
+    @Override
+    public boolean[] match(String[] autoConfigurationClasses, AutoConfigurationMetadata autoConfigurationMetadata) {
+        boolean[] matches = new boolean[autoConfigurationClasses.length];
+        boolean simulated = environment != null
+                && environment.getProperty("hsmcrypt.simulator.enabled", Boolean.class, Boolean.FALSE);
+        for (int i = 0; i < autoConfigurationClasses.length; i++) {
+            String candidate = autoConfigurationClasses[i];
+            matches[i] = !simulated || candidate == null
+                    || !candidate.startsWith(HsmCryptEnvironmentPostProcessor.SIPWON_PACKAGE);
+            if (!matches[i]) {
+                log.info("HSM simulator enabled, skipping sipwon auto-configuration: {}", candidate);
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,585 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import iaik.pkcs.pkcs11.TokenException;
+import io.github.prometheuskr.sipwon.constant.HsmKeyType;
+import io.github.prometheuskr.sipwon.key.HsmKey;
+import io.github.prometheuskr.sipwon.session.HsmSession;
+import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pool of long-lived HSM sessions for a single token.
+ * <p>
+ * Opening a PKCS#11 session on a network HSM costs more than the AES operation
+ * itself, so sessions are kept open and reused across operations. The pool
+ * limits the number of open sessions, waits up to the borrow timeout when all
+ * of them are in use, validates sessions that have been idle for a while before
+ * handing them out, and closes sessions that stay idle longer than the idle
+ * timeout while keeping the configured minimum open.
+ * <p>
+ * The minimum size is only a floor for idle eviction: the pool never opens
+ * sessions by itself, so fewer may be open until operations or a warm-up
+ * ({@link #warmUp(int, String)}) open them.
+ * <p>
+ * Sessions reported dead by the HSM are discarded with
+ * {@link #invalidate(PooledSession)}; the next borrow opens a fresh one.
+ * <p>
+ * Each pooled session caches the key handles resolved on it, so the PKCS#11
+ * object search for a key runs once per session instead of once per operation.
+ * <p>
+ * When pooling is disabled every session is closed on release, which matches
+ * opening and closing a session per operation.
+ * <p>
+ * Borrowers take a permit from the token's {@link HsmBulkhead} first, which
+ * caps sessions in use at the pool's maximum size or the configured limit, and
+ * queues or rejects the callers beyond it.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ * @see HsmCrypt
+ */
+@Slf4j
+class HsmSessionPool implements AutoCloseable {
+
+    private final HsmSessionFactory sessionFactory;
+    private final String tokenLabel;
+    private final String validationKeyLabel;
+    private final boolean pooling;
+    private final int minSize;
+    private final long idleTimeoutNanos;
+    private final boolean validateOnBorrow;
+    private final long validationIntervalNanos;
+
+    private final HsmBulkhead bulkhead;
+    private final LinkedBlockingDeque<PooledSession> idle = new LinkedBlockingDeque<>();
+    private final AtomicInteger openCount = new AtomicInteger();
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+    private final HsmCryptMetrics metrics;
+    private final ScheduledExecutorService evictor;
+    private HsmAsyncExecutor asyncExecutor;
+    private volatile boolean closed;
+
+    /**
+     * Creates a non-pooling session source that opens and closes a session per
+     * operation.
+     * 
+     * @param sessionFactory
+     *                       the HSM session factory
+     * @param tokenLabel
+     *                       the token label to open sessions on
+     */
+    public HsmSessionPool(HsmSessionFactory sessionFactory, String tokenLabel) {
+        this(sessionFactory, tokenLabel, null, disabledConfig());
+    }
+
+    /**
+     * Creates a session pool.
+     * 
+     * @param sessionFactory
+     *                           the HSM session factory
+     * @param tokenLabel
+     *                           the token label to open sessions on
+     * @param validationKeyLabel
+     *                           the key label looked up to validate an idle
+     *                           session, or null to skip validation
+     * @param config
+     *                           the pool configuration
+     */
+    public HsmSessionPool(HsmSessionFactory sessionFactory, String tokenLabel, String validationKeyLabel,
+            HsmCryptProperties.Pool config) {
+        this(sessionFactory, tokenLabel, validationKeyLabel, config, HsmCryptMetrics.NOOP);
+    }
+
+    /**
+     * Creates an instrumented session pool.
+     * 
+     * @param sessionFactory
+     *                           the HSM session factory
+     * @param tokenLabel
+     *                           the token label to open sessions on
+     * @param validationKeyLabel
+     *                           the key label looked up to validate an idle
+     *                           session, or null to skip validation
+     * @param config
+     *                           the pool configuration
+     * @param metrics
+     *                           the metrics recording session acquisition and key
+     *                           lookups
+     */
+    public HsmSessionPool(HsmSessionFactory sessionFactory, String tokenLabel, String validationKeyLabel,
+            HsmCryptProperties.Pool config, HsmCryptMetrics metrics) {
+        this(sessionFactory, tokenLabel, validationKeyLabel, config, new HsmCryptProperties.Bulkhead(), metrics);
+    }
+
+    /**
+     * Creates an instrumented session pool with a configured concurrency limit.
+     * 
+     * @param sessionFactory
+     *                           the HSM session factory
+     * @param tokenLabel
+     *                           the token label to open sessions on
+     * @param validationKeyLabel
+     *                           the key label looked up to validate an idle
+     *                           session, or null to skip validation
+     * @param config
+     *                           the pool configuration
+     * @param bulkheadConfig
+     *                           the concurrency limit configuration
+     * @param metrics
+     *                           the metrics recording session acquisition and key
+     *                           lookups
+     */
+    public HsmSessionPool(HsmSessionFactory sessionFactory, String tokenLabel, String validationKeyLabel,
+            HsmCryptProperties.Pool config, HsmCryptProperties.Bulkhead bulkheadConfig, HsmCryptMetrics metrics) {
+        if (sessionFactory == null) {
+            throw new IllegalArgumentException("sessionFactory cannot be null");
+        }
+        if (tokenLabel == null || tokenLabel.isEmpty()) {
+            throw new IllegalArgumentException("tokenLabel cannot be null or empty");
+        }
+        if (config == null) {
+            throw new IllegalArgumentException("config cannot be null");
+        }
+        if (bulkheadConfig == null) {
+            throw new IllegalArgumentException("bulkheadConfig cannot be null");
+        }
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics cannot be null");
+        }
+
+        this.sessionFactory = sessionFactory;
+        this.tokenLabel = tokenLabel;
+        this.validationKeyLabel = validationKeyLabel;
+        this.pooling = Boolean.TRUE.equals(config.getEnabled());
+        this.minSize = Math.max(0, config.getMinSize());
+        this.idleTimeoutNanos = config.getIdleTimeout().toNanos();
+        this.validateOnBorrow = validationKeyLabel != null && Boolean.TRUE.equals(config.getValidateOnBorrow());
+        this.validationIntervalNanos = config.getValidationInterval().toNanos();
+        this.metrics = metrics;
+
+        if (pooling) {
+            if (config.getMaxSize() <= 0) {
+                throw new IllegalArgumentException("pool maxSize must be greater than zero");
+            }
+            long intervalMillis = Math.max(1L, config.getEvictionInterval().toMillis());
+            this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "hsmcrypt-pool-evictor-" + tokenLabel);
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.evictor.scheduleWithFixedDelay(this::evictIdle, intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            this.evictor = null;
+        }
+        int limit = pooling ? config.getMaxSize() : Integer.MAX_VALUE;
+        int permits = bulkheadConfig.getMaxConcurrent() > 0 ? Math.min(bulkheadConfig.getMaxConcurrent(), limit)
+                : limit;
+        long maxWaitNanos = (bulkheadConfig.getMaxWait() != null ? bulkheadConfig.getMaxWait()
+                : config.getBorrowTimeout()).toNanos();
+        this.bulkhead = new HsmBulkhead(tokenLabel, permits, maxWaitNanos, bulkheadConfig.getMaxWaiting(),
+                Boolean.TRUE.equals(bulkheadConfig.getFastFail()), metrics);
+        metrics.bindPool(this);
+    }
+
+    /**
+     * Borrows a session, reusing an idle one when available.
+     * 
+     * @return the borrowed session, to be returned with
+     *         {@link #release(PooledSession)} or
+     *         {@link #invalidate(PooledSession)}
+     * @throws TokenException
+     *                           if a new session cannot be opened
+     * @throws HsmCryptException
+     *                           if the pool is closed, or the bulkhead rejects
+     *                           the caller or times out
+     */
+    public PooledSession borrow() throws TokenException {
+        long start = System.nanoTime();
+        try {
+            PooledSession pooled = acquire();
+            inFlightCount.incrementAndGet();
+            metrics.recordSessionAcquisition(tokenLabel, System.nanoTime() - start, null);
+            return pooled;
+        } catch (TokenException | RuntimeException e) {
+            metrics.recordSessionAcquisition(tokenLabel, System.nanoTime() - start, e);
+            throw e;
+        }
+    }
+
+    private PooledSession acquire() throws TokenException {
+        if (closed) {
+            throw new HsmCryptException("HSM session pool is closed for token: " + tokenLabel);
+        }
+        bulkhead.acquire();
+
+        try {
+            PooledSession pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (isUsable(pooled)) {
+                    return pooled;
+                }
+                destroy(pooled);
+            }
+            return open();
+        } catch (TokenException | RuntimeException e) {
+            bulkhead.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a healthy session to the pool.
+     * 
+     * @param pooled
+     *               the session to return
+     */
+    public void release(PooledSession pooled) {
+        inFlightCount.decrementAndGet();
+        pooled.lastUsedNanos = System.nanoTime();
+        if (pooling && !closed) {
+            idle.offerFirst(pooled);
+            // close() may have drained the idle sessions since the check
+            if (closed && idle.remove(pooled)) {
+                destroy(pooled);
+            }
+        } else {
+            destroy(pooled);
+        }
+        bulkhead.release();
+    }
+
+    /**
+     * Discards a session that the HSM reported as dead.
+     * 
+     * @param pooled
+     *               the broken session
+     */
+    public void invalidate(PooledSession pooled) {
+        inFlightCount.decrementAndGet();
+        destroy(pooled);
+        bulkhead.release();
+    }
+
+    /**
+     * Closes all idle sessions and stops idle eviction. Sessions still borrowed
+     * are closed when they are returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        synchronized (this) {
+            if (asyncExecutor != null) {
+                asyncExecutor.close();
+            }
+        }
+        PooledSession pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            destroy(pooled);
+        }
+    }
+
+    /**
+     * Opens sessions in parallel and resolves a key on each, leaving them idle in
+     * the pool, so the first operations neither open a session nor search for
+     * the key. Idle sessions count towards the target, and no more sessions are
+     * opened than the bulkhead allows at once. Does nothing when pooling is
+     * disabled, since sessions would be closed right away.
+     * 
+     * @param sessions
+     *                 the number of sessions to have open
+     * @param keyLabel
+     *                 the key label to resolve on each session, or null
+     * @return the number of sessions warmed up
+     * @throws TokenException
+     *                           if a session cannot be opened or the key search
+     *                           fails
+     * @throws HsmCryptException
+     *                           if the pool is closed, the key does not exist, or
+     *                           the caller is interrupted
+     */
+    int warmUp(int sessions, String keyLabel) throws TokenException {
+        int count = pooling ? Math.min(sessions, bulkhead.getPermitCount()) : 0;
+        if (count <= 0) {
+            return 0;
+        }
+        // Every session is held until all are borrowed, so each one is distinct
+        CountDownLatch borrowed = new CountDownLatch(count);
+        AtomicInteger warmed = new AtomicInteger();
+        AtomicReference<Exception> firstError = new AtomicReference<>();
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(count, runnable -> {
+            Thread thread = new Thread(runnable,
+                    "hsmcrypt-warm-up-" + tokenLabel + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < count; i++) {
+            executor.execute(() -> warmUpSession(keyLabel, borrowed, warmed, firstError));
+        }
+        executor.shutdown();
+        try {
+            // Bounded by the bulkhead's maximum wait and the HSM's own timeouts
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new HsmCryptException("Interrupted while warming up HSM sessions on token: " + tokenLabel, e);
+        }
+        Exception error = firstError.get();
+        if (error instanceof TokenException) {
+            throw (TokenException) error;
+        }
+        if (error != null) {
+            throw (RuntimeException) error;
+        }
+        return warmed.get();
+    }
+
+    private void warmUpSession(String keyLabel, CountDownLatch borrowed, AtomicInteger warmed,
+            AtomicReference<Exception> firstError) {
+        PooledSession pooled = null;
+        try {
+            pooled = borrow();
+            if (keyLabel != null) {
+                pooled.getKey(keyLabel);
+            }
+            warmed.incrementAndGet();
+        } catch (TokenException | RuntimeException e) {
+            firstError.compareAndSet(null, e);
+            if (pooled != null) {
+                invalidate(pooled);
+                pooled = null;
+            }
+        } finally {
+            borrowed.countDown();
+        }
+        if (pooled != null) {
+            try {
+                borrowed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                release(pooled);
+            }
+        }
+    }
+
+    /**
+     * Gets the executor for asynchronous operations on this token, creating it
+     * on first use. All keys on the token share it, so its size bounds their
+     * operations together.
+     * 
+     * @param config
+     *               the executor configuration, used on first call only
+     * @return the executor
+     * @throws HsmCryptException
+     *                           if the pool is closed
+     */
+    synchronized HsmAsyncExecutor getAsyncExecutor(HsmCryptProperties.Async config) {
+        if (closed) {
+            throw new HsmCryptException("HSM session pool is closed for token: " + tokenLabel);
+        }
+        if (asyncExecutor == null) {
+            int permits = bulkhead.getPermitCount();
+            int threads = config.getThreads() > 0 ? config.getThreads()
+                    : permits < Integer.MAX_VALUE ? permits : Runtime.getRuntime().availableProcessors();
+            asyncExecutor = new HsmAsyncExecutor(tokenLabel, threads, config.getQueueCapacity(),
+                    Boolean.TRUE.equals(config.getVirtualThreads()), metrics);
+        }
+        return asyncExecutor;
+    }
+
+    /**
+     * Gets the concurrency limit of this token.
+     * 
+     * @return the bulkhead
+     */
+    HsmBulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    /**
+     * Gets the token label sessions are opened on.
+     * 
+     * @return the token label
+     */
+    public String getTokenLabel() {
+        return tokenLabel;
+    }
+
+    /**
+     * Gets the number of open sessions, idle or borrowed.
+     * 
+     * @return the open session count
+     */
+    public int getOpenCount() {
+        return openCount.get();
+    }
+
+    /**
+     * Gets the number of sessions currently borrowed.
+     * 
+     * @return the borrowed session count
+     */
+    public int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    /**
+     * Gets the metrics of this pool's token.
+     * 
+     * @return the metrics
+     */
+    HsmCryptMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Gets the number of idle sessions.
+     * 
+     * @return the idle session count
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    private PooledSession open() throws TokenException {
+        HsmSession session = sessionFactory.getHsmSession(tokenLabel);
+        openCount.incrementAndGet();
+        return new PooledSession(this, session);
+    }
+
+    private boolean isUsable(PooledSession pooled) {
+        if (!validateOnBorrow || System.nanoTime() - pooled.lastUsedNanos < validationIntervalNanos) {
+            return true;
+        }
+        try {
+            // Validation re-resolves the key, which also refreshes its cached handle
+            pooled.forgetKey(validationKeyLabel);
+            pooled.getKey(validationKeyLabel);
+            return true;
+        } catch (Exception e) {
+            log.debug("Discarding HSM session on token {} that failed validation", tokenLabel, e);
+            return false;
+        }
+    }
+
+    private void destroy(PooledSession pooled) {
+        openCount.decrementAndGet();
+        try {
+            pooled.session.close();
+        } catch (Exception e) {
+            log.debug("Failed to close HSM session on token {}", tokenLabel, e);
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.nanoTime();
+        Iterator<PooledSession> oldestFirst = idle.descendingIterator();
+        while (oldestFirst.hasNext() && openCount.get() > minSize) {
+            PooledSession pooled = oldestFirst.next();
+            if (now - pooled.lastUsedNanos >= idleTimeoutNanos && idle.remove(pooled)) {
+                destroy(pooled);
+            }
+        }
+    }
+
+    private static HsmCryptProperties.Pool disabledConfig() {
+        HsmCryptProperties.Pool config = new HsmCryptProperties.Pool();
+        config.setEnabled(Boolean.FALSE);
+        return config;
+    }
+
+    /**
+     * Session handed out by the pool.
+     */
+    static final class PooledSession {
+        private final HsmSessionPool pool;
+        private final HsmSession session;
+        /** AES key handles resolved on this session, by key label */
+        private final Map<String, HsmKey> keys = new HashMap<>();
+        private volatile long lastUsedNanos = System.nanoTime();
+
+        private PooledSession(HsmSessionPool pool, HsmSession session) {
+            this.pool = pool;
+            this.session = session;
+        }
+
+        /**
+         * Gets the pool the session belongs to.
+         * 
+         * @return the session pool
+         */
+        HsmSessionPool getPool() {
+            return pool;
+        }
+
+        /**
+         * Gets the underlying HSM session.
+         * 
+         * @return the session
+         */
+        HsmSession getSession() {
+            return session;
+        }
+
+        /**
+         * Gets the AES key with the given label, searching the token only when the
+         * handle is not cached on this session yet.
+         * 
+         * @param keyLabel
+         *                 the key label
+         * @return the key
+         * @throws TokenException
+         *                           if the key search fails
+         * @throws HsmCryptException
+         *                           if no key with the label exists
+         */
+        HsmKey getKey(String keyLabel) throws TokenException {
+            HsmKey key = keys.get(keyLabel);
+            if (key == null) {
+                long start = System.nanoTime();
+                try {
+                    key = session.findHsmKey(keyLabel, HsmKeyType.AES);
+                    if (key == null) {
+                        throw new HsmCryptException("HSM AES key not found: " + keyLabel);
+                    }
+                } catch (TokenException | RuntimeException e) {
+                    pool.metrics.recordKeyLookup(pool.tokenLabel, keyLabel, System.nanoTime() - start, e);
+                    throw e;
+                }
+                pool.metrics.recordKeyLookup(pool.tokenLabel, keyLabel, System.nanoTime() - start, null);
+                keys.put(keyLabel, key);
+            }
+            return key;
+        }
+
+        /**
+         * Drops the cached handle of the given key so the next
+         * {@link #getKey(String)} searches the token again.
+         * 
+         * @param keyLabel
+         *                 the key label
+         */
+        void forgetKey(String keyLabel) {
+            keys.remove(keyLabel);
+        }
+    }
+}
@@ -0,0 +1,507 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import iaik.pkcs.pkcs11.TokenException;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Spreads HSM operations across tokens holding the same replicated key.
+ * <p>
+ * Each borrow goes to the available token with the fewest outstanding
+ * operations, sessions in use plus callers waiting in its bulkhead; ties are
+ * broken round-robin, so an idle set of tokens is used evenly. If a token
+ * cannot supply a session, the next one is tried, so a lost partition costs a
+ * failed attempt instead of blocking callers.
+ * <p>
+ * Sessions that cannot be opened, sessions the HSM reports as dead and
+ * operations the token fails count as token failures; only a successful
+ * operation clears them. After the configured
+ * number of consecutive failures the token is taken out of rotation for the
+ * cooldown period, after which a background health check resolves the key on a
+ * fresh session and puts the token back, or starts another cooldown. When
+ * every token is out, callers fail at once.
+ * <p>
+ * A balancer over a single token only passes sessions through: the token is
+ * never taken out and no health check runs.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ * @see HsmSessionPool
+ */
+@Slf4j
+class HsmTokenBalancer implements AutoCloseable {
+
+    /** Most tokens tracked in the per-borrow attempt mask */
+    private static final int MAX_TOKENS = Long.SIZE;
+
+    private final List<Member> members;
+    private final List<HsmSessionPool> pools;
+    private final String tokenLabel;
+    private final String validationKeyLabel;
+    private final int failureThreshold;
+    private final long cooldownNanos;
+    private final ScheduledExecutorService healthChecker;
+    private final AtomicInteger next = new AtomicInteger();
+    private HsmAsyncExecutor asyncExecutor;
+    private volatile boolean closed;
+
+    /**
+     * Creates a balancer over a single token.
+     * 
+     * @param sessionPool
+     *                    the token's session pool
+     * @return the balancer
+     */
+    static HsmTokenBalancer single(HsmSessionPool sessionPool) {
+        if (sessionPool == null) {
+            throw new IllegalArgumentException("sessionPool cannot be null");
+        }
+        return new HsmTokenBalancer(Collections.singletonList(sessionPool), null, new HsmCryptProperties.Balancer(),
+                HsmCryptMetrics.NOOP);
+    }
+
+    /**
+     * Creates a balancer.
+     * 
+     * @param pools
+     *                           the session pools of the tokens, in preference
+     *                           order for ties
+     * @param validationKeyLabel
+     *                           the key label resolved by health checks, or null
+     *                           to only open a session
+     * @param config
+     *                           the balancer configuration
+     * @param metrics
+     *                           the metrics tracking token availability
+     */
+    HsmTokenBalancer(List<HsmSessionPool> pools, String validationKeyLabel, HsmCryptProperties.Balancer config,
+            HsmCryptMetrics metrics) {
+        if (pools == null || pools.isEmpty()) {
+            throw new IllegalArgumentException("pools cannot be null or empty");
+        }
+        if (pools.size() > MAX_TOKENS) {
+            throw new IllegalArgumentException("At most " + MAX_TOKENS + " tokens can be balanced");
+        }
+        if (config == null) {
+            throw new IllegalArgumentException("config cannot be null");
+        }
+        if (config.getFailureThreshold() <= 0) {
+            throw new IllegalArgumentException("failureThreshold must be greater than zero");
+        }
+        List<Member> list = new ArrayList<>(pools.size());
+        List<String> labels = new ArrayList<>(pools.size());
+        for (HsmSessionPool pool : pools) {
+            if (labels.contains(pool.getTokenLabel())) {
+                throw new IllegalArgumentException("Duplicate token label: " + pool.getTokenLabel());
+            }
+            list.add(new Member(pool));
+            labels.add(pool.getTokenLabel());
+        }
+        this.members = Collections.unmodifiableList(list);
+        this.pools = Collections.unmodifiableList(new ArrayList<>(pools));
+        this.tokenLabel = String.join(",", labels);
+        this.validationKeyLabel = validationKeyLabel;
+        this.failureThreshold = config.getFailureThreshold();
+        this.cooldownNanos = config.getCooldown().toNanos();
+
+        if (members.size() > 1) {
+            long intervalMillis = Math.max(1L, config.getHealthCheckInterval().toMillis());
+            this.healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "hsmcrypt-health-check-" + tokenLabel);
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.healthChecker.scheduleWithFixedDelay(this::checkHealth, intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+            metrics.bindBalancer(this);
+        } else {
+            this.healthChecker = null;
+        }
+    }
+
+    /**
+     * Borrows a session from the least loaded available token, trying the
+     * others in turn if it fails.
+     * 
+     * @return the borrowed session, to be returned with
+     *         {@link #release(HsmSessionPool.PooledSession)} or
+     *         {@link #invalidate(HsmSessionPool.PooledSession)}
+     * @throws TokenException
+     *                           if no token could open a session
+     * @throws HsmCryptException
+     *                           if the balancer is closed, every token is out of
+     *                           rotation, or every bulkhead rejected the caller
+     */
+    HsmSessionPool.PooledSession borrow() throws TokenException {
+        if (members.size() == 1) {
+            return members.get(0).pool.borrow();
+        }
+        if (closed) {
+            throw new HsmCryptException("HSM token balancer is closed for tokens: " + tokenLabel);
+        }
+        long tried = 0L;
+        Exception lastError = null;
+        Member member;
+        while ((member = select(tried)) != null) {
+            tried |= 1L << members.indexOf(member);
+            try {
+                return member.pool.borrow();
+            } catch (TokenException e) {
+                countFailure(member, e);
+                lastError = e;
+            } catch (HsmCryptException e) {
+                // Bulkhead rejections mean overload, not an outage
+                lastError = e;
+            }
+        }
+        if (lastError instanceof TokenException) {
+            throw (TokenException) lastError;
+        }
+        if (lastError != null) {
+            throw (HsmCryptException) lastError;
+        }
+        throw new HsmCryptException("No HSM token available, all are cooling down: " + tokenLabel);
+    }
+
+    /**
+     * Returns a healthy session to its token's pool. Returning a session does
+     * not clear the token's failures, an operation must succeed for that.
+     * 
+     * @param pooled
+     *               the session to return
+     */
+    void release(HsmSessionPool.PooledSession pooled) {
+        pooled.getPool().release(pooled);
+    }
+
+    /**
+     * Records an operation that succeeded on a session, clearing its token's
+     * consecutive failures.
+     * 
+     * @param pooled
+     *               the session the operation ran on
+     */
+    void recordSuccess(HsmSessionPool.PooledSession pooled) {
+        if (members.size() > 1) {
+            AtomicInteger failures = member(pooled.getPool()).failures;
+            // Skips the write on the hot path while the token is healthy
+            if (failures.get() != 0) {
+                failures.set(0);
+            }
+        }
+    }
+
+    /**
+     * Records an operation the token failed on a live session, such as
+     * <code>CKR_FUNCTION_FAILED</code> or <code>CKR_GENERAL_ERROR</code>,
+     * counting it as a failure of the token.
+     * 
+     * @param pooled
+     *               the session the operation ran on, still usable
+     * @param error
+     *               the error the token reported
+     */
+    void recordFailure(HsmSessionPool.PooledSession pooled, TokenException error) {
+        if (members.size() > 1) {
+            countFailure(member(pooled.getPool()), error);
+        }
+    }
+
+    /**
+     * Discards a session the HSM reported as dead, counting it as a failure of
+     * its token.
+     * 
+     * @param pooled
+     *               the broken session
+     */
+    void invalidate(HsmSessionPool.PooledSession pooled) {
+        HsmSessionPool pool = pooled.getPool();
+        pool.invalidate(pooled);
+        if (members.size() > 1) {
+            countFailure(member(pool), null);
+        }
+    }
+
+    /**
+     * Resolves a key on every token so its handle is cached before the first
+     * operation. Tokens where this fails are taken out of rotation, as long as
+     * one succeeds.
+     * 
+     * @param keyLabel
+     *                 the key label
+     * @throws TokenException
+     *                           if the key search fails on every token
+     * @throws HsmCryptException
+     *                           if the key does not exist on any token
+     */
+    void resolveKey(String keyLabel) throws TokenException {
+        forEveryToken("HSM key " + keyLabel + " could not be resolved", pool -> resolve(pool, keyLabel, false));
+    }
+
+    /**
+     * Warms up sessions with a key resolved on each, on every token. Tokens
+     * where this fails are taken out of rotation, as long as one succeeds.
+     * 
+     * @param keyLabel
+     *                 the key label
+     * @param sessions
+     *                 the number of sessions to have open per token
+     * @return the number of sessions warmed up on all tokens
+     * @throws TokenException
+     *                           if warming up fails on every token
+     * @throws HsmCryptException
+     *                           if the key does not exist on any token
+     * @see HsmSessionPool#warmUp(int, String)
+     */
+    int warmUp(String keyLabel, int sessions) throws TokenException {
+        AtomicInteger warmed = new AtomicInteger();
+        forEveryToken("HSM sessions could not be warmed up",
+                pool -> warmed.addAndGet(pool.warmUp(sessions, keyLabel)));
+        return warmed.get();
+    }
+
+    /**
+     * Runs a task on every token, taking the tokens where it fails out of
+     * rotation. A single token's failure is thrown as is.
+     * 
+     * @throws TokenException
+     *                           if the task fails on every token with one
+     * @throws RuntimeException
+     *                           if the task fails on every token otherwise
+     */
+    private void forEveryToken(String failureMessage, TokenTask task) throws TokenException {
+        Exception firstError = null;
+        boolean succeeded = false;
+        for (Member member : members) {
+            try {
+                task.run(member.pool);
+                succeeded = true;
+            } catch (TokenException | RuntimeException e) {
+                if (members.size() == 1) {
+                    throw e;
+                }
+                log.warn("{} on token {}, taking it out of rotation", failureMessage, member.pool.getTokenLabel(),
+                        e);
+                takeOut(member);
+                if (firstError == null) {
+                    firstError = e;
+                }
+            }
+        }
+        if (!succeeded) {
+            if (firstError instanceof TokenException) {
+                throw (TokenException) firstError;
+            }
+            throw (RuntimeException) firstError;
+        }
+    }
+
+    /**
+     * Gets the executor for asynchronous operations on these tokens, creating
+     * it on first use. A single token's executor is shared with every key on
+     * the token; several tokens get one executor sized by all their permits.
+     * 
+     * @param config
+     *               the executor configuration, used on first call only
+     * @return the executor
+     * @throws HsmCryptException
+     *                           if the balancer or pool is closed
+     */
+    HsmAsyncExecutor getAsyncExecutor(HsmCryptProperties.Async config) {
+        if (members.size() == 1) {
+            return members.get(0).pool.getAsyncExecutor(config);
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new HsmCryptException("HSM token balancer is closed for tokens: " + tokenLabel);
+            }
+            if (asyncExecutor == null) {
+                long permits = 0;
+                for (Member member : members) {
+                    permits += member.pool.getBulkhead().getPermitCount();
+                }
+                int threads = config.getThreads() > 0 ? config.getThreads()
+                        : permits < Integer.MAX_VALUE ? (int) permits : Runtime.getRuntime().availableProcessors();
+                asyncExecutor = new HsmAsyncExecutor(tokenLabel, threads, config.getQueueCapacity(),
+                        Boolean.TRUE.equals(config.getVirtualThreads()), members.get(0).pool.getMetrics());
+            }
+            return asyncExecutor;
+        }
+    }
+
+    /**
+     * Stops health checks and closes the session pools.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+        synchronized (this) {
+            if (asyncExecutor != null) {
+                asyncExecutor.close();
+            }
+        }
+        for (Member member : members) {
+            member.pool.close();
+        }
+    }
+
+    /**
+     * Gets the token labels, comma-separated.
+     * 
+     * @return the token labels
+     */
+    public String getTokenLabel() {
+        return tokenLabel;
+    }
+
+    /**
+     * Gets the session pools of the tokens.
+     * 
+     * @return the session pools, in configuration order
+     */
+    List<HsmSessionPool> getPools() {
+        return pools;
+    }
+
+    /**
+     * Checks whether a token is in rotation.
+     * 
+     * @param tokenLabel
+     *                   the token label
+     * @return true unless the token is cooling down
+     */
+    public boolean isAvailable(String tokenLabel) {
+        for (Member member : members) {
+            if (member.pool.getTokenLabel().equals(tokenLabel)) {
+                return !member.down;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Picks the available token with the fewest outstanding operations among
+     * those not tried yet, starting the scan at the next round-robin position.
+     */
+    private Member select(long tried) {
+        int size = members.size();
+        int start = Math.floorMod(next.getAndIncrement(), size);
+        Member best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            int index = (start + i) % size;
+            Member member = members.get(index);
+            if ((tried & 1L << index) != 0 || member.down) {
+                continue;
+            }
+            int load = member.pool.getInFlightCount() + member.pool.getBulkhead().getWaitingCount();
+            if (load < bestLoad) {
+                best = member;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    private Member member(HsmSessionPool pool) {
+        for (Member member : members) {
+            if (member.pool == pool) {
+                return member;
+            }
+        }
+        throw new IllegalArgumentException("Session pool is not balanced here: " + pool.getTokenLabel());
+    }
+
+    private void countFailure(Member member, TokenException error) {
+        // Only the failure reaching the threshold takes the token out; it is reset when the token is back
+        if (member.failures.incrementAndGet() == failureThreshold) {
+            log.warn("HSM token {} failed {} times in a row, taking it out of rotation for {} ms",
+                    member.pool.getTokenLabel(), failureThreshold, TimeUnit.NANOSECONDS.toMillis(cooldownNanos),
+                    error);
+            takeOut(member);
+        }
+    }
+
+    private void takeOut(Member member) {
+        member.downUntilNanos = System.nanoTime() + cooldownNanos;
+        member.down = true;
+    }
+
+    /**
+     * Probes tokens whose cooldown has elapsed and puts the healthy ones back.
+     */
+    private void checkHealth() {
+        for (Member member : members) {
+            if (closed) {
+                return;
+            }
+            if (!member.down || System.nanoTime() - member.downUntilNanos < 0) {
+                continue;
+            }
+            try {
+                resolve(member.pool, validationKeyLabel, true);
+                member.failures.set(0);
+                member.down = false;
+                log.info("HSM token {} passed its health check, back in rotation", member.pool.getTokenLabel());
+            } catch (Exception e) {
+                log.debug("HSM token {} failed its health check, cooling down again", member.pool.getTokenLabel(),
+                        e);
+                member.downUntilNanos = System.nanoTime() + cooldownNanos;
+            }
+        }
+    }
+
+    /**
+     * Borrows a session from a pool and resolves a key on it, searching the
+     * token again if refresh is set.
+     */
+    private static void resolve(HsmSessionPool pool, String keyLabel, boolean refresh) throws TokenException {
+        HsmSessionPool.PooledSession pooled = pool.borrow();
+        try {
+            if (keyLabel != null) {
+                if (refresh) {
+                    pooled.forgetKey(keyLabel);
+                }
+                pooled.getKey(keyLabel);
+            }
+            pool.release(pooled);
+        } catch (TokenException | RuntimeException e) {
+            pool.invalidate(pooled);
+            throw e;
+        }
+    }
+
+    /**
+     * Task run on one token's session pool.
+     */
+    @FunctionalInterface
+    private interface TokenTask {
+        void run(HsmSessionPool pool) throws TokenException;
+    }
+
+    /**
+     * Token in the balancer and its health.
+     */
+    private static final class Member {
+        private final HsmSessionPool pool;
+        /** Consecutive failures since the last successful operation */
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile boolean down;
+        private volatile long downUntilNanos;
+
+        private Member(HsmSessionPool pool) {
+            this.pool = pool;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Micrometer implementation of {@link HsmCryptMetrics}.
+ * <p>
+ * Registers the following meters:
+ * <ul>
+ * <li><code>hsmcrypt.session.acquire</code> - timer tagged by token</li>
+ * <li><code>hsmcrypt.key.lookup</code> - timer tagged by token and key</li>
+ * <li><code>hsmcrypt.operation</code> - timer tagged by operation, token and
+ * key</li>
+ * <li><code>hsmcrypt.sessions.in.flight</code>,
+ * <code>hsmcrypt.sessions.open</code>, <code>hsmcrypt.sessions.idle</code> -
+ * gauges tagged by token</li>
+ * <li><code>hsmcrypt.bulkhead.waiting</code> - gauge tagged by token</li>
+ * <li><code>hsmcrypt.bulkhead.rejected</code> - counter tagged by token and
+ * reason</li>
+ * <li><code>hsmcrypt.async.queue.wait</code> - timer tagged by token</li>
+ * <li><code>hsmcrypt.async.queue.depth</code>,
+ * <code>hsmcrypt.async.active</code> - gauges tagged by token</li>
+ * <li><code>hsmcrypt.property.cache.hits</code>,
+ * <code>hsmcrypt.property.cache.misses</code> - gauges</li>
+ * </ul>
+ * Every timer also carries an <code>outcome</code> tag (success or failure) and
+ * an <code>exception</code> tag (the simple exception class name, or none), so
+ * its count gives successes and failures by exception type. Timers publish the
+ * 50th, 95th and 99th percentiles.
+ * <p>
+ * Success timers are resolved once per token and key and then looked up
+ * without allocation; failure timers are resolved through the registry when a
+ * failure happens.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ */
+class MicrometerHsmCryptMetrics implements HsmCryptMetrics {
+
+    private static final double[] PERCENTILES = { 0.5, 0.95, 0.99 };
+    private static final String SESSION_ACQUIRE = "hsmcrypt.session.acquire";
+    private static final String KEY_LOOKUP = "hsmcrypt.key.lookup";
+    private static final String OPERATION = "hsmcrypt.operation";
+    private static final String ASYNC_QUEUE_WAIT = "hsmcrypt.async.queue.wait";
+
+    private final MeterRegistry registry;
+    private final ConcurrentMap<String, Timer> acquireTimers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> queueWaitTimers = new ConcurrentHashMap<>();
+    private final Map<Operation, ConcurrentMap<String, ConcurrentMap<String, Timer>>> operationTimers =
+            new EnumMap<>(Operation.class);
+
+    /**
+     * Creates metrics registering meters in the given registry.
+     * 
+     * @param registry
+     *                 the meter registry
+     */
+    public MicrometerHsmCryptMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        for (Operation operation : Operation.values()) {
+            operationTimers.put(operation, new ConcurrentHashMap<>());
+        }
+    }
+
+    @Override
+    public void bindPool(HsmSessionPool pool) {
+        String tokenLabel = pool.getTokenLabel();
+        // Weak references so the gauges do not keep a closed pool alive
+        Gauge.builder("hsmcrypt.sessions.in.flight", pool, HsmSessionPool::getInFlightCount)
+                .tag("token", tokenLabel)
+                .description("HSM sessions currently borrowed")
+                .strongReference(false)
+                .register(registry);
+        Gauge.builder("hsmcrypt.sessions.open", pool, HsmSessionPool::getOpenCount)
+                .tag("token", tokenLabel)
+                .description("HSM sessions currently open, idle or borrowed")
+                .strongReference(false)
+                .register(registry);
+        Gauge.builder("hsmcrypt.sessions.idle", pool, HsmSessionPool::getIdleCount)
+                .tag("token", tokenLabel)
+                .description("HSM sessions currently idle in the pool")
+                .strongReference(false)
+                .register(registry);
+        Gauge.builder("hsmcrypt.bulkhead.waiting", pool, p -> p.getBulkhead().getWaitingCount())
+                .tag("token", tokenLabel)
+                .description("Callers waiting for an HSM session permit")
+                .strongReference(false)
+                .register(registry);
+    }
+
+    @Override
+    public void bindBalancer(HsmTokenBalancer balancer) {
+        for (HsmSessionPool pool : balancer.getPools()) {
+            String tokenLabel = pool.getTokenLabel();
+            Gauge.builder("hsmcrypt.token.available", balancer, b -> b.isAvailable(tokenLabel) ? 1 : 0)
+                    .tag("token", tokenLabel)
+                    .description("Whether a balanced HSM token is in rotation, 1, or cooling down, 0")
+                    .strongReference(false)
+                    .register(registry);
+        }
+    }
+
+    @Override
+    public void recordBulkheadRejection(String tokenLabel, HsmBulkhead.Rejection reason) {
+        // Rejections only happen under overload, no need to cache the counter
+        Counter.builder("hsmcrypt.bulkhead.rejected")
+                .description("Callers rejected by the HSM session bulkhead")
+                .tag("token", tokenLabel)
+                .tag("reason", reason.tag())
+                .register(registry)
+                .increment();
+    }
+
+    @Override
+    public void bindAsyncExecutor(HsmAsyncExecutor executor) {
+        Gauge.builder("hsmcrypt.async.queue.depth", executor, HsmAsyncExecutor::getQueueDepth)
+                .tag("token", executor.getTokenLabel())
+                .description("Asynchronous HSM operations waiting to run")
+                .strongReference(false)
+                .register(registry);
+        Gauge.builder("hsmcrypt.async.active", executor, HsmAsyncExecutor::getActiveCount)
+                .tag("token", executor.getTokenLabel())
+                .description("Asynchronous HSM operations running")
+                .strongReference(false)
+                .register(registry);
+    }
+
+    @Override
+    public void bindPropertyCache(DecryptedValueCache cache) {
+        Gauge.builder("hsmcrypt.property.cache.hits", cache, DecryptedValueCache::getHitCount)
+                .description("Encrypted property reads served from the decrypted value cache")
+                .strongReference(false)
+                .register(registry);
+        Gauge.builder("hsmcrypt.property.cache.misses", cache, DecryptedValueCache::getMissCount)
+                .description("Encrypted property reads that required decryption")
+                .strongReference(false)
+                .register(registry);
+    }
+
+    @Override
+    public void recordAsyncQueueWait(String tokenLabel, long nanos, Throwable error) {
+        Timer timer;
+        if (error == null) {
+            timer = queueWaitTimers.get(tokenLabel);
+            if (timer == null) {
+                timer = queueWaitTimers.computeIfAbsent(tokenLabel, token -> queueWaitTimer(token, null));
+            }
+        } else {
+            timer = queueWaitTimer(tokenLabel, error);
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordSessionAcquisition(String tokenLabel, long nanos, Throwable error) {
+        Timer timer;
+        if (error == null) {
+            timer = acquireTimers.get(tokenLabel);
+            if (timer == null) {
+                timer = acquireTimers.computeIfAbsent(tokenLabel,
+                        token -> sessionAcquireTimer(token, null));
+            }
+        } else {
+            timer = sessionAcquireTimer(tokenLabel, error);
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordKeyLookup(String tokenLabel, String keyLabel, long nanos, Throwable error) {
+        // Key searches are rare thanks to the key handle cache, no need to cache the timer
+        timer(KEY_LOOKUP, "HSM key searches", error)
+                .tag("token", tokenLabel)
+                .tag("key", keyLabel)
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordOperation(Operation operation, String tokenLabel, String keyLabel, long nanos,
+            Throwable error) {
+        Timer timer;
+        if (error == null) {
+            ConcurrentMap<String, ConcurrentMap<String, Timer>> byToken = operationTimers.get(operation);
+            ConcurrentMap<String, Timer> byKey = byToken.get(tokenLabel);
+            if (byKey == null) {
+                byKey = byToken.computeIfAbsent(tokenLabel, token -> new ConcurrentHashMap<>());
+            }
+            timer = byKey.get(keyLabel);
+            if (timer == null) {
+                timer = byKey.computeIfAbsent(keyLabel, key -> operationTimer(operation, tokenLabel, key, null));
+            }
+        } else {
+            timer = operationTimer(operation, tokenLabel, keyLabel, error);
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer sessionAcquireTimer(String tokenLabel, Throwable error) {
+        return timer(SESSION_ACQUIRE, "HSM session borrows, including waiting and opening", error)
+                .tag("token", tokenLabel)
+                .register(registry);
+    }
+
+    private Timer queueWaitTimer(String tokenLabel, Throwable error) {
+        return timer(ASYNC_QUEUE_WAIT, "Wait of asynchronous HSM operations before they run", error)
+                .tag("token", tokenLabel)
+                .register(registry);
+    }
+
+    private Timer operationTimer(Operation operation, String tokenLabel, String keyLabel, Throwable error) {
+        return timer(OPERATION, "AES operations on the HSM", error)
+                .tag("operation", operation.name().toLowerCase(Locale.ROOT))
+                .tag("token", tokenLabel)
+                .tag("key", keyLabel)
+                .register(registry);
+    }
+
+    private static Timer.Builder timer(String name, String description, Throwable error) {
+        return Timer.builder(name)
+                .description(description)
+                .tag("outcome", error == null ? "success" : "failure")
+                .tag("exception", error == null ? "none" : error.getClass().getSimpleName())
+                .publishPercentiles(PERCENTILES);
+    }
+}
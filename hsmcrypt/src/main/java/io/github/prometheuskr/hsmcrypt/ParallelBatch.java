@@ -0,0 +1,83 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs a bulk operation over many values in parallel chunks.
+ * <p>
+ * The values are split into chunks spread evenly over the worker threads, and
+ * each chunk is passed to the bulk operation on its own thread, so each thread
+ * works on its own pooled HSM session. Results are returned in input order.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ */
+final class ParallelBatch {
+
+    private ParallelBatch() {
+    }
+
+    /**
+     * Applies a bulk operation to the values in parallel chunks.
+     * 
+     * @param values
+     *                         the values to process
+     * @param threads
+     *                         the number of chunks processed concurrently
+     * @param maxChunkSize
+     *                         the maximum number of values per bulk call
+     * @param threadNamePrefix
+     *                         the worker thread name prefix
+     * @param bulkOperation
+     *                         the operation returning one result per value of a
+     *                         chunk, in chunk order
+     * @return one result per value, in input order
+     * @throws HsmCryptException
+     *                           if the bulk operation throws or the caller is
+     *                           interrupted
+     */
+    static List<BatchResult> apply(List<String> values, int threads, int maxChunkSize, String threadNamePrefix,
+            Function<List<String>, List<BatchResult>> bulkOperation) {
+        if (values.isEmpty()) {
+            return new ArrayList<>();
+        }
+        int chunkSize = Math.max(1, Math.min(maxChunkSize, (values.size() + threads - 1) / threads));
+        if (threads == 1 || chunkSize >= values.size()) {
+            return new ArrayList<>(bulkOperation.apply(values));
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, threadNamePrefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<List<BatchResult>>> futures = new ArrayList<>();
+            for (int from = 0; from < values.size(); from += chunkSize) {
+                List<String> chunk = values.subList(from, Math.min(from + chunkSize, values.size()));
+                futures.add(executor.submit(() -> bulkOperation.apply(chunk)));
+            }
+            List<BatchResult> results = new ArrayList<>(values.size());
+            for (Future<List<BatchResult>> future : futures) {
+                results.addAll(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HsmCryptException("Interrupted while processing values", e);
+        } catch (ExecutionException e) {
+            throw new HsmCryptException("Unexpected error while processing values", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Converts encrypted payloads between hexadecimal and unpadded Base64url.
+ * <p>
+ * HsmCrypt produces hexadecimal payloads. In Base64url form the payload is a
+ * third shorter and is tagged with {@value #BASE64URL_TAG}, which a hexadecimal
+ * payload never starts with since it never contains ':'. Envelope payloads keep
+ * their <code>e1.</code> prefix and '.' separators, with each field converted on
+ * its own; Base64url never contains '.', so the formats stay distinguishable.
+ * Decoding uses the JDK's table-driven Base64 decoder.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ * @see HsmCryptHelper
+ */
+final class PayloadCodec {
+
+    /** Tag of payloads in Base64url form */
+    static final String BASE64URL_TAG = "b64:";
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private PayloadCodec() {
+    }
+
+    /**
+     * Checks whether a payload is in Base64url form.
+     * 
+     * @param payload
+     *                the payload
+     * @return true if the payload starts with {@value #BASE64URL_TAG}
+     */
+    static boolean isBase64Url(String payload) {
+        return payload.startsWith(BASE64URL_TAG);
+    }
+
+    /**
+     * Converts a hexadecimal payload to tagged Base64url.
+     * 
+     * @param hexPayload
+     *                   the payload as produced by HsmCrypt
+     * @return the tagged Base64url payload
+     * @throws IllegalArgumentException
+     *                                  if the payload is not hexadecimal
+     */
+    static String toBase64Url(String hexPayload) {
+        StringBuilder sb = new StringBuilder(BASE64URL_TAG.length() + hexPayload.length() * 2 / 3 + 4);
+        sb.append(BASE64URL_TAG);
+        convertFields(hexPayload, sb, true);
+        return sb.toString();
+    }
+
+    /**
+     * Converts a tagged Base64url payload back to hexadecimal.
+     * 
+     * @param base64Payload
+     *                      the payload starting with {@value #BASE64URL_TAG}
+     * @return the hexadecimal payload HsmCrypt decrypts
+     * @throws IllegalArgumentException
+     *                                  if the payload is not valid Base64url
+     */
+    static String toHex(String base64Payload) {
+        String payload = base64Payload.substring(BASE64URL_TAG.length());
+        StringBuilder sb = new StringBuilder(payload.length() * 3 / 2 + 4);
+        convertFields(payload, sb, false);
+        return sb.toString();
+    }
+
+    /**
+     * Converts a direct payload, or each field of an envelope payload, and
+     * appends the result.
+     */
+    private static void convertFields(String payload, StringBuilder sb, boolean toBase64Url) {
+        int from = 0;
+        if (EnvelopeCipher.isEnvelope(payload)) {
+            sb.append(EnvelopeCipher.PAYLOAD_PREFIX);
+            from = EnvelopeCipher.PAYLOAD_PREFIX.length();
+        }
+        while (true) {
+            int end = payload.indexOf('.', from);
+            String field = payload.substring(from, end < 0 ? payload.length() : end);
+            if (toBase64Url) {
+                sb.append(ENCODER.encodeToString(Hex.decode(field)));
+            } else {
+                sb.append(Hex.encode(DECODER.decode(field.getBytes(StandardCharsets.US_ASCII))));
+            }
+            if (end < 0) {
+                return;
+            }
+            sb.append('.');
+            from = end + 1;
+        }
+    }
+}
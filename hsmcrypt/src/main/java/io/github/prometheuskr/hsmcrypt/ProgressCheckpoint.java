@@ -0,0 +1,139 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only progress file that makes long CLI runs restartable.
+ * <p>
+ * Records the SHA-256 of the new content of each rewritten file, written and
+ * forced to disk before the file is replaced. On restart a file whose current
+ * content matches its recorded hash is skipped; any other file is processed
+ * again, since its replacement never happened. For line-oriented batch input
+ * it records the number of lines whose results have been written.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ */
+class ProgressCheckpoint implements AutoCloseable {
+
+    private static final String FILE_ENTRY = "file";
+    private static final String LINES_ENTRY = "lines";
+
+    private final Map<String, String> fileHashes = new HashMap<>();
+    private long lines;
+    private final FileChannel channel;
+
+    /**
+     * Opens a checkpoint, loading the progress recorded by earlier runs.
+     * 
+     * @param path
+     *             the checkpoint file, created if missing
+     * @throws IOException
+     *                     if the checkpoint cannot be read or opened
+     */
+    public ProgressCheckpoint(Path path) throws IOException {
+        if (Files.exists(path)) {
+            List<String> entries = Files.readAllLines(path, StandardCharsets.UTF_8);
+            for (String entry : entries) {
+                String[] fields = entry.split("\t", 3);
+                if (fields.length == 3 && FILE_ENTRY.equals(fields[0])) {
+                    fileHashes.put(fields[2], fields[1]);
+                } else if (fields.length == 2 && LINES_ENTRY.equals(fields[0])) {
+                    lines = Long.parseLong(fields[1]);
+                }
+            }
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Checks whether a file already has the content recorded for it.
+     * 
+     * @param file
+     *                the file
+     * @param content
+     *                the current content of the file
+     * @return true if the file was completed by an earlier run
+     */
+    public synchronized boolean isDone(Path file, String content) {
+        String hash = fileHashes.get(key(file));
+        return hash != null && hash.equals(sha256(content));
+    }
+
+    /**
+     * Records the content a file is about to be replaced with.
+     * 
+     * @param file
+     *                the file
+     * @param content
+     *                the new content
+     * @throws IOException
+     *                     if the checkpoint cannot be written
+     */
+    public synchronized void recordFile(Path file, String content) throws IOException {
+        String hash = sha256(content);
+        append(FILE_ENTRY + "\t" + hash + "\t" + key(file));
+        fileHashes.put(key(file), hash);
+    }
+
+    /**
+     * Gets the number of batch input lines completed by earlier runs.
+     * 
+     * @return the line count
+     */
+    public synchronized long getLines() {
+        return lines;
+    }
+
+    /**
+     * Records the number of batch input lines completed so far.
+     * 
+     * @param lines
+     *              the line count
+     * @throws IOException
+     *                     if the checkpoint cannot be written
+     */
+    public synchronized void recordLines(long lines) throws IOException {
+        append(LINES_ENTRY + "\t" + lines);
+        this.lines = lines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void append(String entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((entry + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    private static String key(Path file) {
+        return file.toAbsolutePath().normalize().toString();
+    }
+
+    private static String sha256(String content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Hex.encode(digest.digest(content.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Buffered source of the random prefix blocks used for non-deterministic
+ * encryption.
+ * <p>
+ * Random bytes are generated in large chunks into a refillable buffer, so the
+ * hot path only copies one prefix out of it instead of creating and seeding a
+ * new {@link SecureRandom} per encryption. The buffer is refilled from the
+ * JVM-wide shared DRBG.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ * @see HsmCrypt
+ */
+class RandomPrefixSource {
+
+    /** Shared thread-safe generator, created once per JVM */
+    private static final SecureRandom SHARED_RANDOM = createSharedRandom();
+
+    private final int prefixLength;
+    private final byte[] buffer;
+    private int position;
+
+    /**
+     * Creates a source refilled from the shared DRBG.
+     * 
+     * @param prefixLength
+     *                     the prefix length in bytes
+     * @param bufferSize
+     *                     the buffer size in bytes, rounded down to a multiple of
+     *                     the prefix length
+     */
+    public RandomPrefixSource(int prefixLength, int bufferSize) {
+        if (prefixLength <= 0) {
+            throw new IllegalArgumentException("prefixLength must be greater than zero");
+        }
+        if (bufferSize < prefixLength) {
+            throw new IllegalArgumentException("bufferSize must be at least " + prefixLength);
+        }
+
+        this.prefixLength = prefixLength;
+        this.buffer = new byte[bufferSize / prefixLength * prefixLength];
+        this.position = buffer.length;
+    }
+
+    /**
+     * Copies the next random prefix into the destination, refilling the buffer
+     * when it is used up.
+     * 
+     * @param destination
+     *                    the destination array
+     * @param offset
+     *                    the offset to write the prefix at
+     */
+    public synchronized void nextPrefix(byte[] destination, int offset) {
+        if (position == buffer.length) {
+            SHARED_RANDOM.nextBytes(buffer);
+            position = 0;
+        }
+        System.arraycopy(buffer, position, destination, offset, prefixLength);
+        position += prefixLength;
+    }
+
+    /**
+     * Fills the array from the shared DRBG.
+     * 
+     * @param bytes
+     *              the array to fill
+     */
+    static void nextSharedBytes(byte[] bytes) {
+        SHARED_RANDOM.nextBytes(bytes);
+    }
+
+    private static SecureRandom createSharedRandom() {
+        try {
+            // NIST SP 800-90A DRBG, available from Java 9
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+}
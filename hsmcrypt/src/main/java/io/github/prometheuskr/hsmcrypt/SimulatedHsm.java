@@ -0,0 +1,349 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import iaik.pkcs.pkcs11.TokenException;
+import io.github.prometheuskr.sipwon.constant.HsmKeyType;
+import io.github.prometheuskr.sipwon.constant.HsmMechanism;
+import io.github.prometheuskr.sipwon.key.HsmKey;
+import io.github.prometheuskr.sipwon.session.HsmSession;
+import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
+
+/**
+ * In-JVM HSM simulator for load and capacity testing.
+ * <p>
+ * Provides {@link HsmSessionFactory}, {@link HsmSession} and {@link HsmKey}
+ * implementations backed by JCE AES: opening and closing sessions, finding
+ * AES keys, and AES-CBC encryption and decryption of hex data. Every operation
+ * can be given a latency distribution and a random failure rate, and the
+ * number of concurrent sessions is limited like on a real token, so pool
+ * sizing, caching and concurrency behaviour can be measured without HSM
+ * hardware.
+ * <p>
+ * Failures are reported as {@link TokenException}s whose message is the
+ * <code>CKR_*</code> return value name, as the PKCS#11 wrapper does. A session
+ * that fails with a session-invalid return value stays dead afterwards.
+ * <p>
+ * Key material is derived from the configured secret and the token and key
+ * labels, or the key label only when keys are replicated across tokens; values
+ * encrypted by the simulator are not protected by an HSM.
+ * <p>
+ * Like HsmCrypt, the simulator only knows AES keys and the AES-CBC mechanism:
+ * keys of other types are never found, and other mechanisms fail with
+ * <code>CKR_MECHANISM_INVALID</code>. The session factory is therefore only
+ * handed to HsmCrypt's own wiring and never registered as an HsmSessionFactory
+ * bean other code could inject.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ * @see HsmCryptProperties.Simulator
+ */
+class SimulatedHsm {
+
+    private static final byte[] ZERO_IV = new byte[16];
+
+    private static final ThreadLocal<Cipher> CBC_CIPHER = ThreadLocal.withInitial(SimulatedHsm::newCipher);
+
+    /** z-score of the 99th percentile of the standard normal distribution */
+    private static final double Z_99 = 2.3263478740408408;
+
+    /**
+     * Simulated HSM operations.
+     */
+    enum Operation {
+        OPEN_SESSION, FIND_KEY, ENCRYPT, DECRYPT
+    }
+
+    private final String secret;
+    private final boolean replicatedKeys;
+    private final int maxSessions;
+    private final Semaphore sessionPermits;
+    private final Map<Operation, HsmCryptProperties.SimulatedOperation> operations = new EnumMap<>(Operation.class);
+    private final Map<Operation, Queue<String>> injectedFailures = new EnumMap<>(Operation.class);
+    private final Map<String, SecretKeySpec> keys = new ConcurrentHashMap<>();
+    private final HsmSessionFactory sessionFactory;
+
+    /**
+     * Creates a simulator.
+     * 
+     * @param config
+     *               the simulator configuration
+     */
+    public SimulatedHsm(HsmCryptProperties.Simulator config) {
+        if (config.getMaxSessions() <= 0) {
+            throw new IllegalArgumentException("maxSessions must be greater than zero");
+        }
+
+        this.secret = config.getSecret();
+        this.replicatedKeys = Boolean.TRUE.equals(config.getReplicatedKeys());
+        this.maxSessions = config.getMaxSessions();
+        this.sessionPermits = new Semaphore(maxSessions);
+        operations.put(Operation.OPEN_SESSION, config.getOpenSession());
+        operations.put(Operation.FIND_KEY, config.getFindKey());
+        operations.put(Operation.ENCRYPT, config.getEncrypt());
+        operations.put(Operation.DECRYPT, config.getDecrypt());
+        for (Operation operation : Operation.values()) {
+            injectedFailures.put(operation, new ConcurrentLinkedQueue<>());
+        }
+        this.sessionFactory = new SimulatedSessionFactory();
+    }
+
+    /**
+     * Gets the session factory of the simulated HSM.
+     * 
+     * @return the session factory
+     */
+    public HsmSessionFactory getSessionFactory() {
+        return sessionFactory;
+    }
+
+    /**
+     * Makes the next invocations of an operation fail, in addition to the
+     * configured failure rate.
+     * 
+     * @param operation
+     *                    the operation to fail
+     * @param count
+     *                    the number of invocations to fail
+     * @param failureCode
+     *                    the PKCS#11 return value name to report, e.g.
+     *                    <code>CKR_SESSION_HANDLE_INVALID</code>
+     */
+    public void injectFailures(Operation operation, int count, String failureCode) {
+        Queue<String> failures = injectedFailures.get(operation);
+        for (int i = 0; i < count; i++) {
+            failures.add(failureCode);
+        }
+    }
+
+    /**
+     * Gets the number of sessions currently open.
+     * 
+     * @return the number of open sessions
+     */
+    public int getOpenSessionCount() {
+        return maxSessions - sessionPermits.availablePermits();
+    }
+
+    /**
+     * Applies the latency and failure behaviour of an operation.
+     * 
+     * @param operation
+     *                  the operation being performed
+     * @throws TokenException
+     *                        if the operation is made to fail
+     */
+    private void simulate(Operation operation) throws TokenException {
+        HsmCryptProperties.SimulatedOperation config = operations.get(operation);
+        pause(config);
+
+        String failureCode = injectedFailures.get(operation).poll();
+        if (failureCode == null && config.getFailureRate() > 0
+                && ThreadLocalRandom.current().nextDouble() < config.getFailureRate()) {
+            failureCode = config.getFailureCode();
+        }
+        if (failureCode != null) {
+            throw new TokenException(failureCode);
+        }
+    }
+
+    private static void pause(HsmCryptProperties.SimulatedOperation config) {
+        long medianNanos = config.getMedian().toNanos();
+        long nanos;
+        switch (config.getDistribution()) {
+            case FIXED:
+                nanos = medianNanos;
+                break;
+            case LOG_NORMAL:
+                // sigma chosen so that median * exp(sigma * Z_99) is the configured p99
+                double sigma = Math.log((double) Math.max(config.getP99().toNanos(), medianNanos)
+                        / Math.max(medianNanos, 1)) / Z_99;
+                nanos = (long) (medianNanos * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+                break;
+            default:
+                return;
+        }
+
+        // parkNanos may return early, so park until the deadline has passed
+        long deadline = System.nanoTime() + nanos;
+        for (long remaining = nanos; remaining > 0; remaining = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+    }
+
+    private SecretKeySpec keyMaterial(String tokenLabel, String keyLabel) {
+        return keys.computeIfAbsent(replicatedKeys ? keyLabel : tokenLabel + '\0' + keyLabel, name -> {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update(secret.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                return new SecretKeySpec(digest.digest(name.getBytes(StandardCharsets.UTF_8)), "AES");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        });
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance("AES/CBC/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/CBC/NoPadding is not available", e);
+        }
+    }
+
+    /**
+     * Session factory of the simulated HSM, opening sessions on any token label.
+     */
+    private class SimulatedSessionFactory implements HsmSessionFactory {
+
+        /**
+         * Opens a session, failing with <code>CKR_SESSION_COUNT</code> when the
+         * configured maximum number of sessions is already open.
+         */
+        @Override
+        public HsmSession getHsmSession(String tokenLabel) throws TokenException {
+            simulate(Operation.OPEN_SESSION);
+            if (!sessionPermits.tryAcquire()) {
+                throw new TokenException("CKR_SESSION_COUNT");
+            }
+            return new SimulatedSession(tokenLabel);
+        }
+    }
+
+    /**
+     * One simulated session. Keys found on it stop working once it is closed or
+     * dead.
+     */
+    private class SimulatedSession implements HsmSession {
+        private final String tokenLabel;
+        private boolean closed;
+        private String deadCode;
+
+        SimulatedSession(String tokenLabel) {
+            this.tokenLabel = tokenLabel;
+        }
+
+        /**
+         * Finds a key by label. Every AES key label exists, with material derived
+         * from the secret; keys of any other type are not found.
+         */
+        @Override
+        public HsmKey findHsmKey(String keyLabel, HsmKeyType keyType) throws TokenException {
+            run(Operation.FIND_KEY);
+            if (keyType != HsmKeyType.AES) {
+                return null;
+            }
+            return new SimulatedKey(this, keyMaterial(tokenLabel, keyLabel));
+        }
+
+        /**
+         * Closes the session and frees its slot. Closing twice has no effect.
+         */
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                sessionPermits.release();
+            }
+        }
+
+        /**
+         * Runs an operation on this session, killing the session when it fails
+         * with a session-invalid return value.
+         */
+        private void run(Operation operation) throws TokenException {
+            synchronized (this) {
+                if (closed) {
+                    throw new TokenException("CKR_SESSION_CLOSED");
+                }
+                if (deadCode != null) {
+                    throw new TokenException(deadCode);
+                }
+            }
+            try {
+                simulate(operation);
+            } catch (TokenException e) {
+                if (TokenErrors.isSessionInvalid(e)) {
+                    synchronized (this) {
+                        deadCode = e.getMessage();
+                    }
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * One AES key found on a simulated session.
+     */
+    private static class SimulatedKey implements HsmKey {
+        private final SimulatedSession session;
+        private final SecretKeySpec key;
+
+        SimulatedKey(SimulatedSession session, SecretKeySpec key) {
+            this.session = session;
+            this.key = key;
+        }
+
+        @Override
+        public String encrypt(String data, HsmMechanism mechanism) throws TokenException {
+            session.run(Operation.ENCRYPT);
+            return crypt(Cipher.ENCRYPT_MODE, key, data, mechanism);
+        }
+
+        @Override
+        public String decrypt(String data, HsmMechanism mechanism) throws TokenException {
+            session.run(Operation.DECRYPT);
+            return crypt(Cipher.DECRYPT_MODE, key, data, mechanism);
+        }
+    }
+
+    /**
+     * Encrypts or decrypts whole AES blocks of hex data with a zero IV, as the
+     * token does for <code>CKM_AES_CBC</code>.
+     */
+    private static String crypt(int mode, SecretKeySpec key, String hex, HsmMechanism mechanism)
+            throws TokenException {
+        if (mechanism != HsmMechanism.AES_CBC) {
+            throw new TokenException("CKR_MECHANISM_INVALID");
+        }
+
+        byte[] data;
+        try {
+            data = Hex.decode(hex);
+        } catch (IllegalArgumentException e) {
+            throw new TokenException("CKR_DATA_INVALID");
+        }
+        if (data.length % 16 != 0) {
+            throw new TokenException(
+                    mode == Cipher.ENCRYPT_MODE ? "CKR_DATA_LEN_RANGE" : "CKR_ENCRYPTED_DATA_LEN_RANGE");
+        }
+
+        try {
+            Cipher cipher = CBC_CIPHER.get();
+            cipher.init(mode, key, new IvParameterSpec(ZERO_IV));
+            return Hex.encode(cipher.doFinal(data));
+        } catch (GeneralSecurityException e) {
+            throw new TokenException("CKR_FUNCTION_FAILED", e);
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.function.Function;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Streaming encryption of large payloads in fixed-size chunks.
+ * <p>
+ * Each stream gets its own random AES-256 data key, wrapped by the HSM key in
+ * one call; the payload is encrypted with AES-GCM in the JVM one chunk at a
+ * time, so memory use is bounded by the chunk size whatever the payload size.
+ * The file-based variants map the source file instead of copying it to the
+ * heap.
+ * <p>
+ * Format: a header (<code>HCS1</code>, chunk size, nonce prefix, key ID,
+ * wrapped data key) followed by the chunks, each the GCM ciphertext and tag of
+ * up to chunk size plaintext bytes. A chunk's IV is the nonce prefix, the chunk
+ * number and a final-chunk flag, and the header is authenticated with every
+ * chunk, so reordered, dropped or truncated chunks fail decryption.
+ * <p>
+ * Decryption writes each chunk as soon as it is authenticated; if it fails part
+ * way, the output written so far must be discarded. The file-based variants
+ * delete their target in that case.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ * @see HsmCrypt#encrypt(InputStream, OutputStream)
+ */
+final class StreamCipher {
+
+    /** Default plaintext bytes per chunk */
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /** Stream cipher with the default chunk size */
+    static final StreamCipher DEFAULT = new StreamCipher(DEFAULT_CHUNK_SIZE);
+
+    /** Largest chunk size accepted from a header, bounding decryption memory */
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    /** Chunks mapped per region of a source file */
+    private static final int CHUNKS_PER_MAPPING = 256;
+
+    private static final byte[] MAGIC = { 'H', 'C', 'S', '1' };
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int DATA_KEY_BYTES = 32;
+    private static final int NONCE_PREFIX_BYTES = 7;
+    private static final int TAG_BYTES = 16;
+
+    private final int chunkSize;
+
+    /**
+     * Creates a stream cipher.
+     * 
+     * @param chunkSize
+     *                  the plaintext bytes per chunk when encrypting
+     */
+    StreamCipher(int chunkSize) {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("chunkSize must be between 1 and " + MAX_CHUNK_SIZE);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Checks whether data starts with the stream header magic. Only tells
+     * encrypted streams apart from other content; it does not validate the
+     * header.
+     * 
+     * @param data
+     *             the data
+     * @return true if the data looks like an encrypted stream
+     */
+    static boolean hasHeader(byte[] data) {
+        if (data.length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encrypts a stream.
+     * 
+     * @param hsmCrypt
+     *                 the HsmCrypt wrapping the data key
+     * @param keyId
+     *                 the key ID recorded in the header, empty for none
+     * @param in
+     *                 the plaintext, read to its end but not closed
+     * @param out
+     *                 the encrypted output, not closed
+     * @return the number of plaintext bytes encrypted
+     * @throws IOException
+     *                           if reading or writing fails
+     * @throws HsmCryptException
+     *                           if the data key cannot be wrapped
+     */
+    long encrypt(HsmCrypt hsmCrypt, String keyId, InputStream in, OutputStream out) throws IOException {
+        Header header = Header.create(hsmCrypt, keyId, chunkSize);
+        out.write(header.encoded);
+
+        Cipher cipher = newCipher();
+        byte[] chunk = new byte[chunkSize];
+        byte[] next = new byte[chunkSize];
+        byte[] output = new byte[chunkSize + TAG_BYTES];
+        long total = 0;
+        int length = readFully(in, chunk);
+        for (int index = 0;; index++) {
+            int nextLength = length == chunkSize ? readFully(in, next) : 0;
+            boolean last = nextLength == 0;
+            int outputLength = header.apply(cipher, Cipher.ENCRYPT_MODE, index, last, chunk, length, output);
+            out.write(output, 0, outputLength);
+            total += length;
+            if (last) {
+                return total;
+            }
+            byte[] swap = chunk;
+            chunk = next;
+            next = swap;
+            length = nextLength;
+        }
+    }
+
+    /**
+     * Decrypts a stream.
+     * 
+     * @param keys
+     *             resolves the header's key ID to the HsmCrypt unwrapping the
+     *             data key
+     * @param in
+     *             the encrypted input, read to its end but not closed
+     * @param out
+     *             the plaintext output, not closed
+     * @return the number of plaintext bytes decrypted
+     * @throws IOException
+     *                           if reading or writing fails
+     * @throws HsmCryptException
+     *                           if the input is malformed, tampered with or
+     *                           truncated, or the data key cannot be unwrapped
+     */
+    long decrypt(Function<String, HsmCrypt> keys, InputStream in, OutputStream out) throws IOException {
+        Header header = Header.read(in, keys);
+        int encryptedChunkSize = header.chunkSize + TAG_BYTES;
+
+        Cipher cipher = newCipher();
+        byte[] chunk = new byte[encryptedChunkSize];
+        byte[] next = new byte[encryptedChunkSize];
+        byte[] output = new byte[header.chunkSize];
+        long total = 0;
+        int length = readFully(in, chunk);
+        for (int index = 0;; index++) {
+            int nextLength = length == encryptedChunkSize ? readFully(in, next) : 0;
+            boolean last = nextLength == 0;
+            if (length < TAG_BYTES) {
+                throw new HsmCryptException("Failed to decrypt stream: truncated input");
+            }
+            int outputLength = header.apply(cipher, Cipher.DECRYPT_MODE, index, last, chunk, length, output);
+            out.write(output, 0, outputLength);
+            total += outputLength;
+            if (last) {
+                return total;
+            }
+            byte[] swap = chunk;
+            chunk = next;
+            next = swap;
+            length = nextLength;
+        }
+    }
+
+    /**
+     * Encrypts a file, mapping it into memory region by region.
+     * 
+     * @param hsmCrypt
+     *                 the HsmCrypt wrapping the data key
+     * @param keyId
+     *                 the key ID recorded in the header, empty for none
+     * @param source
+     *                 the plaintext file
+     * @param target
+     *                 the encrypted file, replaced if it exists
+     * @return the number of plaintext bytes encrypted
+     * @throws IOException
+     *                           if reading or writing fails
+     * @throws HsmCryptException
+     *                           if the data key cannot be wrapped
+     */
+    long encrypt(HsmCrypt hsmCrypt, String keyId, Path source, Path target) throws IOException {
+        Header header = Header.create(hsmCrypt, keyId, chunkSize);
+        return transform(source, target, header, 0, chunkSize, Cipher.ENCRYPT_MODE);
+    }
+
+    /**
+     * Decrypts a file, mapping it into memory region by region. The target is
+     * deleted if decryption fails.
+     * 
+     * @param keys
+     *               resolves the header's key ID to the HsmCrypt unwrapping the
+     *               data key
+     * @param source
+     *               the encrypted file
+     * @param target
+     *               the plaintext file, replaced if it exists
+     * @return the number of plaintext bytes decrypted
+     * @throws IOException
+     *                           if reading or writing fails
+     * @throws HsmCryptException
+     *                           if the file is malformed, tampered with or
+     *                           truncated, or the data key cannot be unwrapped
+     */
+    long decrypt(Function<String, HsmCrypt> keys, Path source, Path target) throws IOException {
+        Header header;
+        try (InputStream in = Files.newInputStream(source)) {
+            header = Header.read(in, keys);
+        }
+        return transform(source, target, header, header.encoded.length, header.chunkSize + TAG_BYTES,
+                Cipher.DECRYPT_MODE);
+    }
+
+    /**
+     * Runs the chunks of a mapped source file through the cipher into the
+     * target.
+     */
+    private static long transform(Path source, Path target, Header header, long dataOffset, int inputChunkSize,
+            int mode) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            return transform(in, target, header, dataOffset, inputChunkSize, mode);
+        }
+    }
+
+    private static long transform(FileChannel in, Path target, Header header, long dataOffset, int inputChunkSize,
+            int mode) throws IOException {
+        boolean completed = false;
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (mode == Cipher.ENCRYPT_MODE) {
+                writeFully(out, ByteBuffer.wrap(header.encoded));
+            }
+            Cipher cipher = newCipher();
+            ByteBuffer output = ByteBuffer.allocate(inputChunkSize + TAG_BYTES);
+            long size = in.size();
+            long total = 0;
+            int index = 0;
+            long position = dataOffset;
+            long regionSize = (long) inputChunkSize * CHUNKS_PER_MAPPING;
+            do {
+                MappedByteBuffer region = in.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(regionSize, size - position));
+                do {
+                    int length = Math.min(inputChunkSize, region.remaining());
+                    boolean last = position + length >= size;
+                    if (mode == Cipher.DECRYPT_MODE && length < TAG_BYTES) {
+                        throw new HsmCryptException("Failed to decrypt stream: truncated input");
+                    }
+                    ByteBuffer chunk = region.slice();
+                    chunk.limit(length);
+                    output.clear();
+                    header.apply(cipher, mode, index++, last, chunk, output);
+                    output.flip();
+                    total += mode == Cipher.ENCRYPT_MODE ? length : output.remaining();
+                    writeFully(out, output);
+                    region.position(region.position() + length);
+                    position += length;
+                } while (region.hasRemaining());
+            } while (position < size);
+            completed = true;
+            return total;
+        } finally {
+            if (!completed) {
+                Files.deleteIfExists(target);
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends.
+     * 
+     * @return the number of bytes read, less than the buffer size only at the
+     *         end of the stream
+     */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(TRANSFORMATION + " is not available", e);
+        }
+    }
+
+    /**
+     * Stream header with the unwrapped data key.
+     */
+    private static final class Header {
+        private final byte[] encoded;
+        private final int chunkSize;
+        private final byte[] noncePrefix;
+        private final SecretKeySpec key;
+
+        private Header(byte[] encoded, int chunkSize, byte[] noncePrefix, byte[] keyBytes) {
+            this.encoded = encoded;
+            this.chunkSize = chunkSize;
+            this.noncePrefix = noncePrefix;
+            this.key = new SecretKeySpec(keyBytes, "AES");
+        }
+
+        static Header create(HsmCrypt hsmCrypt, String keyId, int chunkSize) throws IOException {
+            byte[] keyBytes = new byte[DATA_KEY_BYTES];
+            RandomPrefixSource.nextSharedBytes(keyBytes);
+            byte[] noncePrefix = new byte[NONCE_PREFIX_BYTES];
+            RandomPrefixSource.nextSharedBytes(noncePrefix);
+            byte[] wrapped = hsmCrypt.wrapDataKey(keyBytes).getBytes(StandardCharsets.US_ASCII);
+            byte[] keyIdBytes = keyId.getBytes(StandardCharsets.US_ASCII);
+            if (keyIdBytes.length > 255) {
+                throw new IllegalArgumentException("Key ID is too long for a stream header: " + keyId);
+            }
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(buffer);
+            data.write(MAGIC);
+            data.writeInt(chunkSize);
+            data.write(noncePrefix);
+            data.writeByte(keyIdBytes.length);
+            data.write(keyIdBytes);
+            data.writeShort(wrapped.length);
+            data.write(wrapped);
+            return new Header(buffer.toByteArray(), chunkSize, noncePrefix, keyBytes);
+        }
+
+        static Header read(InputStream in, Function<String, HsmCrypt> keys) throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] magic = readExactly(in, MAGIC.length, buffer);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new HsmCryptException("Failed to decrypt stream: not an HsmCrypt stream");
+            }
+            int chunkSize = ByteBuffer.wrap(readExactly(in, 4, buffer)).getInt();
+            if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+                throw new HsmCryptException("Failed to decrypt stream: invalid chunk size " + chunkSize);
+            }
+            byte[] noncePrefix = readExactly(in, NONCE_PREFIX_BYTES, buffer);
+            int keyIdLength = readExactly(in, 1, buffer)[0] & 0xff;
+            String keyId = new String(readExactly(in, keyIdLength, buffer), StandardCharsets.US_ASCII);
+            int wrappedLength = ByteBuffer.wrap(readExactly(in, 2, buffer)).getShort() & 0xffff;
+            String wrapped = new String(readExactly(in, wrappedLength, buffer), StandardCharsets.US_ASCII);
+
+            HsmCrypt hsmCrypt = keys.apply(keyId);
+            return new Header(buffer.toByteArray(), chunkSize, noncePrefix, hsmCrypt.unwrapDataKey(wrapped));
+        }
+
+        private static byte[] readExactly(InputStream in, int length, ByteArrayOutputStream copy)
+                throws IOException {
+            byte[] bytes = new byte[length];
+            if (readFully(in, bytes) < length) {
+                throw new HsmCryptException("Failed to decrypt stream: truncated header",
+                        new EOFException());
+            }
+            copy.write(bytes);
+            return bytes;
+        }
+
+        private void init(Cipher cipher, int mode, int index, boolean last) throws GeneralSecurityException {
+            byte[] iv = ByteBuffer.allocate(NONCE_PREFIX_BYTES + 5).put(noncePrefix).putInt(index)
+                    .put((byte) (last ? 1 : 0)).array();
+            cipher.init(mode, key, new GCMParameterSpec(TAG_BYTES * 8, iv));
+            cipher.updateAAD(encoded);
+        }
+
+        int apply(Cipher cipher, int mode, int index, boolean last, byte[] input, int length, byte[] output) {
+            try {
+                init(cipher, mode, index, last);
+                return cipher.doFinal(input, 0, length, output, 0);
+            } catch (GeneralSecurityException e) {
+                throw failure(mode, e);
+            }
+        }
+
+        void apply(Cipher cipher, int mode, int index, boolean last, ByteBuffer input, ByteBuffer output) {
+            try {
+                init(cipher, mode, index, last);
+                cipher.doFinal(input, output);
+            } catch (GeneralSecurityException e) {
+                throw failure(mode, e);
+            }
+        }
+
+        private static HsmCryptException failure(int mode, GeneralSecurityException e) {
+            if (e instanceof AEADBadTagException) {
+                return new HsmCryptException("Failed to decrypt stream: authentication failed", e);
+            }
+            return new HsmCryptException(mode == Cipher.ENCRYPT_MODE ? "Unexpected error during encryption"
+                    : "Unexpected error during decryption", e);
+        }
+    }
+}
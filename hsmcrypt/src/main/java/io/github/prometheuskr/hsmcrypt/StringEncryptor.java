@@ -1,5 +1,8 @@
 package io.github.prometheuskr.hsmcrypt;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * Interface for String decryption operations.
  * <p>
@@ -22,4 +25,17 @@ interface StringEncryptor {
      * @return the decrypted plain text
      */
     String decrypt(String encryptedMessage);
+
+    /**
+     * Decrypts multiple encrypted messages in one pass.
+     * <p>
+     * Implementations share one setup (session, key lookup) across all messages.
+     * A failure of one message is reported in its result and does not affect the
+     * others.
+     * 
+     * @param encryptedMessages
+     *                          the encrypted texts to decrypt
+     * @return one result per message, in input order
+     */
+    List<BatchResult> decryptAll(Collection<String> encryptedMessages);
 }
@@ -0,0 +1,75 @@
+package io.github.prometheuskr.hsmcrypt;
+
+/**
+ * Classification of PKCS#11 errors reported by the HSM.
+ * <p>
+ * The PKCS#11 wrapper reports errors as exceptions whose message is the
+ * <code>CKR_*</code> return value name, so the cause chain is inspected by name
+ * rather than by wrapper-specific exception types.
+ * <p>
+ * Package-private: Only accessible within hsmcrypt package.
+ * 
+ * @author Prometheus
+ */
+final class TokenErrors {
+
+    /** Return values meaning the session (or the whole token) can no longer be used */
+    private static final String[] SESSION_INVALID = {
+            "CKR_SESSION_HANDLE_INVALID",
+            "CKR_SESSION_CLOSED",
+            "CKR_DEVICE_ERROR",
+            "CKR_DEVICE_REMOVED",
+            "CKR_TOKEN_NOT_PRESENT",
+            "CKR_TOKEN_NOT_RECOGNIZED",
+            "CKR_USER_NOT_LOGGED_IN",
+            "CKR_CRYPTOKI_NOT_INITIALIZED"
+    };
+
+    /** Return values meaning a cached object handle no longer refers to the key */
+    private static final String[] KEY_HANDLE_INVALID = {
+            "CKR_OBJECT_HANDLE_INVALID",
+            "CKR_KEY_HANDLE_INVALID"
+    };
+
+    private TokenErrors() {
+    }
+
+    /**
+     * Checks whether the error shows that the session is dead and must be
+     * discarded.
+     * 
+     * @param error
+     *              the error reported by the HSM
+     * @return true if the session must not be reused
+     */
+    static boolean isSessionInvalid(Throwable error) {
+        return matches(error, SESSION_INVALID);
+    }
+
+    /**
+     * Checks whether the error shows that a cached key handle is no longer valid
+     * and the key must be searched again.
+     * 
+     * @param error
+     *              the error reported by the HSM
+     * @return true if the key handle must not be reused
+     */
+    static boolean isKeyHandleInvalid(Throwable error) {
+        return matches(error, KEY_HANDLE_INVALID);
+    }
+
+    private static boolean matches(Throwable error, String[] codes) {
+        for (Throwable t = error; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            String message = t.getMessage();
+            if (message == null) {
+                continue;
+            }
+            for (String code : codes) {
+                if (message.contains(code)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,155 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.prometheuskr.hsmcrypt.ConfigFileEncryptor.FileResult;
+
+/**
+ * Tests for {@link ConfigFileEncryptor} against the HSM simulator.
+ * 
+ * @author Prometheus
+ */
+class ConfigFileEncryptorTest {
+
+    private static final Pattern ENCRYPTED = Pattern.compile("HCENC\\([0-9a-f]+\\)");
+
+    @TempDir
+    Path dir;
+
+    private final SimulatedHsm hsm = new SimulatedHsm(new HsmCryptProperties.Simulator());
+    private final HsmCrypt hsmCrypt = SimulatorFixtures.hsmCrypt(hsm.getSessionFactory(),
+            SimulatorFixtures.KEY_LABEL);
+    private final HsmCryptHelper helper = new HsmCryptHelper(hsmCrypt);
+    private final ConfigFileEncryptor encryptor = new ConfigFileEncryptor(helper, 2);
+
+    @AfterEach
+    void tearDown() {
+        hsmCrypt.close();
+    }
+
+    @Test
+    void yamlKeepsCommentsAndLineEndings() throws IOException {
+        Path file = write("application.yml", "# Database (primary)\r\n"
+                + "spring:\r\n"
+                + "  datasource:\r\n"
+                + "    password: HCPLAIN(p(a(s))s)   # rotated (2024)\r\n"
+                + "    username: app\r\n"
+                + "    url: \"HCPLAIN(jdbc:h2:mem:test)\"\r\n");
+
+        List<FileResult> results = encryptor.encrypt(file);
+        assertThat(results).hasSize(1);
+        assertThat(results.get(0).isSuccess()).isTrue();
+        assertThat(results.get(0).getEncryptedCount()).isEqualTo(2);
+        assertThat(decrypted(file)).isEqualTo("# Database (primary)\r\n"
+                + "spring:\r\n"
+                + "  datasource:\r\n"
+                + "    password: [p(a(s))s]   # rotated (2024)\r\n"
+                + "    username: app\r\n"
+                + "    url: \"[jdbc:h2:mem:test]\"\r\n");
+    }
+
+    @Test
+    void propertiesFilesAreFoundInDirectories() throws IOException {
+        Files.createDirectories(dir.resolve("config"));
+        Path properties = write("config/application-prod.properties", "# Secrets\n"
+                + "db.password=HCPLAIN(secret)\n"
+                + "api.keys=HCPLAIN(first),HCPLAIN(second())\n"
+                + "empty=HCPLAIN()\n");
+        Path other = write("config/other.properties", "db.password=HCPLAIN(secret)\n");
+
+        List<FileResult> results = encryptor.encrypt(dir);
+        assertThat(results).extracting(FileResult::getPath).containsExactly(properties);
+        assertThat(results.get(0).getEncryptedCount()).isEqualTo(4);
+        assertThat(decrypted(properties)).isEqualTo("# Secrets\n"
+                + "db.password=[secret]\n"
+                + "api.keys=[first],[second()]\n"
+                + "empty=[]\n");
+        assertThat(read(other)).isEqualTo("db.password=HCPLAIN(secret)\n");
+    }
+
+    @Test
+    void unterminatedMarkersLeaveTheFileUntouched() throws IOException {
+        String content = "a: HCPLAIN(ok)\nb: HCPLAIN(not (closed)\n)\n";
+        Path file = write("application.yml", content);
+
+        List<FileResult> results = encryptor.encrypt(file);
+        assertThat(results.get(0).isSuccess()).isFalse();
+        assertThat(results.get(0).getError()).isEqualTo("Unterminated HCPLAIN( marker at line 2");
+        assertThat(read(file)).isEqualTo(content);
+    }
+
+    @Test
+    void fileIsUntouchedIfAnyValueFails() throws IOException {
+        String content = "a: HCPLAIN(first)\nb: HCPLAIN(second)\n";
+        Path file = write("application.yml", content);
+        hsm.injectFailures(SimulatedHsm.Operation.ENCRYPT, 1, "CKR_FUNCTION_FAILED");
+
+        List<FileResult> results = encryptor.encrypt(file);
+        assertThat(results.get(0).isSuccess()).isFalse();
+        // Either value may be the one that fails, as chunks run in parallel
+        assertThat(results.get(0).getError()).matches("Line [12]: Failed to encrypt data");
+        assertThat(results.get(0).getEncryptedCount()).isZero();
+        assertThat(read(file)).isEqualTo(content);
+        assertThat(listDir()).containsExactly(file);
+    }
+
+    @Test
+    void rewriteKeepsPermissions() throws IOException {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        Path file = write("application.yml", "password: HCPLAIN(secret)\n");
+        Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+        Files.setPosixFilePermissions(file, permissions);
+
+        assertThat(encryptor.encrypt(file).get(0).isSuccess()).isTrue();
+        assertThat(decrypted(file)).isEqualTo("password: [secret]\n");
+        assertThat(Files.getPosixFilePermissions(file)).isEqualTo(permissions);
+        assertThat(listDir()).containsExactly(file);
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.write(dir.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a file with each encrypted value replaced by its plaintext in
+     * brackets.
+     */
+    private String decrypted(Path file) throws IOException {
+        Matcher matcher = ENCRYPTED.matcher(read(file));
+        StringBuffer sb = new StringBuffer();
+        while (matcher.find()) {
+            matcher.appendReplacement(sb,
+                    Matcher.quoteReplacement("[" + helper.decryptIfEncrypted(matcher.group()) + "]"));
+        }
+        return matcher.appendTail(sb).toString();
+    }
+
+    private List<Path> listDir() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.MutablePropertySources;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Tests for {@link EncryptablePropertyResolver} against the HSM simulator.
+ * 
+ * @author Prometheus
+ */
+class EncryptablePropertyResolverTest {
+
+    private HsmCrypt hsmCrypt;
+    private HsmCryptHelper helper;
+
+    @BeforeEach
+    void setUp() {
+        hsmCrypt = new HsmCrypt(new SimulatedHsm(new HsmCryptProperties.Simulator()).getSessionFactory(),
+                "HSMCRYPT", "HsmCryptKey");
+        helper = new HsmCryptHelper(hsmCrypt);
+    }
+
+    @AfterEach
+    void tearDown() {
+        hsmCrypt.close();
+    }
+
+    @Test
+    void eagerModeDecryptsWhenHelperIsInitialized() {
+        String encrypted = helper.encryptWithFormat("secret");
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("hsmcrypt.encryption.eager.enabled", "true");
+        properties.put("app.secret", encrypted);
+        try (AnnotationConfigApplicationContext context = context()) {
+            context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("test", properties));
+            context.refresh();
+
+            // Decrypted during context refresh, before any read
+            DecryptedValueCache cache = context.getBean(EncryptablePropertyResolver.class).getCache();
+            assertThat(cache.contains("test", "app.secret", encrypted)).isTrue();
+            assertThat(context.getEnvironment().getProperty("app.secret")).isEqualTo("secret");
+        }
+    }
+
+    @Test
+    void eagerModeRequiresCache() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("hsmcrypt.encryption.eager.enabled", "true");
+        properties.put("hsmcrypt.encryption.cache.enabled", "false");
+        try (AnnotationConfigApplicationContext context = context()) {
+            context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("test", properties));
+
+            assertThatThrownBy(context::refresh).isInstanceOf(IllegalArgumentException.class)
+                    .hasMessageContaining("hsmcrypt.encryption.cache.enabled");
+        }
+    }
+
+    @Test
+    void eagerThreadsAreOnlyValidatedInEagerMode() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("hsmcrypt.encryption.eager.threads", "0");
+        properties.put("app.secret", helper.encryptWithFormat("secret"));
+        try (AnnotationConfigApplicationContext context = context()) {
+            context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("test", properties));
+            context.refresh();
+            assertThat(context.getEnvironment().getProperty("app.secret")).isEqualTo("secret");
+        }
+
+        properties.put("hsmcrypt.encryption.eager.enabled", "true");
+        try (AnnotationConfigApplicationContext context = context()) {
+            context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("test", properties));
+
+            assertThatThrownBy(context::refresh).isInstanceOf(IllegalArgumentException.class)
+                    .hasMessage("hsmcrypt.encryption.eager.threads must be greater than zero");
+        }
+    }
+
+    @Test
+    void cacheHitsAndMissesAreExposedAsGauges() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("app.secret", helper.encryptWithFormat("secret"));
+        MeterRegistry registry = new SimpleMeterRegistry();
+        try (AnnotationConfigApplicationContext context = context()) {
+            context.registerBean(HsmCryptMetrics.class, () -> new MicrometerHsmCryptMetrics(registry));
+            context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("test", properties));
+            context.refresh();
+
+            context.getEnvironment().getProperty("app.secret");
+            context.getEnvironment().getProperty("app.secret");
+
+            assertThat(registry.get("hsmcrypt.property.cache.hits").gauge().value()).isEqualTo(1);
+            assertThat(registry.get("hsmcrypt.property.cache.misses").gauge().value()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void refreshDecryptsReloadedBundle() throws IOException {
+        try (AnnotationConfigApplicationContext context = context()) {
+            MutablePropertySources sources = context.getEnvironment().getPropertySources();
+            HsmCryptBundlePropertySource imported = new HsmCryptBundlePropertySource("bundle",
+                    bundle("db.password=secret\n"));
+            sources.addLast(imported.decrypt(helper));
+            context.refresh();
+            assertThat(context.getEnvironment().getProperty("db.password")).isEqualTo("secret");
+
+            // A Spring Cloud refresh reloads the hsmcrypt: import under the same name
+            sources.replace("bundle", new HsmCryptBundlePropertySource("bundle", bundle("db.password=rotated\n")));
+            assertThat(context.getEnvironment().getProperty("db.password")).isNull();
+
+            context.getBean(EncryptablePropertyResolver.class).refresh();
+
+            assertThat(context.getEnvironment().getProperty("db.password")).isEqualTo("rotated");
+            assertThat(sources.get("bundle")).isNotInstanceOf(HsmCryptBundlePropertySource.class);
+        }
+    }
+
+    @Test
+    void refreshFailsOnUndecryptableBundle() throws IOException {
+        try (AnnotationConfigApplicationContext context = context()) {
+            context.refresh();
+            byte[] tampered = bundle("db.password=secret\n");
+            tampered[tampered.length - 1] ^= 1;
+            context.getEnvironment().getPropertySources()
+                    .addLast(new HsmCryptBundlePropertySource("bundle", tampered));
+
+            assertThatThrownBy(() -> context.getBean(EncryptablePropertyResolver.class).refresh())
+                    .isInstanceOf(HsmCryptException.class);
+        }
+    }
+
+    private AnnotationConfigApplicationContext context() {
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.registerBean(HsmCryptHelper.class, () -> helper);
+        context.registerBean(EncryptablePropertyResolver.class);
+        return context;
+    }
+
+    private byte[] bundle(String properties) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        helper.encryptStream(new ByteArrayInputStream(properties.getBytes(StandardCharsets.ISO_8859_1)), out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,111 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
+
+/**
+ * Tests for envelope encryption, <code>e1.</code> payloads, against the HSM
+ * simulator.
+ * 
+ * @author Prometheus
+ */
+class EnvelopeCipherTest {
+
+    private HsmCrypt hsmCrypt;
+    private HsmCrypt otherCrypt;
+
+    @BeforeEach
+    void setUp() {
+        HsmSessionFactory sessionFactory = SimulatorFixtures.sessionFactory();
+        hsmCrypt = SimulatorFixtures.envelopeCrypt(sessionFactory, SimulatorFixtures.KEY_LABEL);
+        otherCrypt = SimulatorFixtures.envelopeCrypt(sessionFactory, "HsmCryptKey2");
+    }
+
+    @AfterEach
+    void tearDown() {
+        hsmCrypt.close();
+        otherCrypt.close();
+    }
+
+    @Test
+    void roundTrips() {
+        for (String plainText : new String[] { "", "0123456789abcdef", "secret", "\ube44\ubc00\ubc88\ud638" }) {
+            String encrypted = hsmCrypt.encrypt(plainText);
+            assertThat(encrypted).startsWith(EnvelopeCipher.PAYLOAD_PREFIX);
+            assertThat(hsmCrypt.decrypt(encrypted)).isEqualTo(plainText);
+        }
+        HsmCryptHelper helper = new HsmCryptHelper(hsmCrypt);
+        assertThat(helper.decryptIfEncrypted(helper.encryptWithFormat("secret"))).isEqualTo("secret");
+    }
+
+    @Test
+    void dataKeyIsReused() {
+        String first = hsmCrypt.encrypt("a");
+        String second = hsmCrypt.encrypt("b");
+
+        assertThat(wrappedKey(second)).isEqualTo(wrappedKey(first));
+        assertThat(first.split("\\.")[2]).isNotEqualTo(second.split("\\.")[2]);
+    }
+
+    @Test
+    void legacyPayloadsStillDecrypt() {
+        assertThat(hsmCrypt.decrypt(SimulatorFixtures.LEGACY_SECRET)).isEqualTo("secret");
+        assertThat(hsmCrypt.decryptAll(Arrays.asList(SimulatorFixtures.LEGACY_SECRET, hsmCrypt.encrypt("other"))))
+                .extracting(BatchResult::getValue)
+                .containsExactly("secret", "other");
+    }
+
+    @Test
+    void tamperedTagIsRejected() {
+        String encrypted = hsmCrypt.encrypt("secret");
+        char last = encrypted.charAt(encrypted.length() - 1);
+        String tampered = encrypted.substring(0, encrypted.length() - 1) + (last == '0' ? '1' : '0');
+
+        assertThatThrownBy(() -> hsmCrypt.decrypt(tampered))
+                .isInstanceOf(HsmCryptException.class)
+                .hasMessageContaining("authentication failed");
+    }
+
+    @Test
+    void tamperedIvIsRejected() {
+        String[] fields = hsmCrypt.encrypt("secret").split("\\.");
+        char first = fields[2].charAt(0);
+        String tampered = fields[0] + '.' + fields[1] + '.' + (first == '0' ? '1' : '0') + fields[2].substring(1)
+                + '.' + fields[3];
+
+        assertThatThrownBy(() -> hsmCrypt.decrypt(tampered))
+                .isInstanceOf(HsmCryptException.class)
+                .hasMessageContaining("authentication failed");
+    }
+
+    @Test
+    void truncatedPayloadIsRejected() {
+        String encrypted = hsmCrypt.encrypt("secret");
+
+        assertThatThrownBy(() -> hsmCrypt.decrypt(encrypted.substring(0, encrypted.length() - 2)))
+                .isInstanceOf(HsmCryptException.class)
+                .hasMessageContaining("authentication failed");
+        assertThatThrownBy(() -> hsmCrypt.decrypt(encrypted.substring(0, encrypted.lastIndexOf('.'))))
+                .isInstanceOf(HsmCryptException.class)
+                .hasMessage("Malformed envelope payload");
+    }
+
+    @Test
+    void dataKeyOfAnotherKeyIsRejected() {
+        String encrypted = otherCrypt.encrypt("secret");
+
+        assertThatThrownBy(() -> hsmCrypt.decrypt(encrypted)).isInstanceOf(HsmCryptException.class);
+    }
+
+    private static String wrappedKey(String payload) {
+        return payload.split("\\.")[1];
+    }
+}
@@ -0,0 +1,38 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.Locale;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the {@link Hex} table codec.
+ * 
+ * @author Prometheus
+ */
+class HexTest {
+
+    @Test
+    void matchesStringFormat() {
+        byte[] bytes = new byte[256];
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+            expected.append(String.format("%02x", bytes[i]));
+        }
+
+        assertThat(Hex.encode(bytes)).isEqualTo(expected.toString());
+        assertThat(Hex.encode(bytes, 16, 2)).isEqualTo("1011");
+        assertThat(Hex.decode(expected)).isEqualTo(bytes);
+        assertThat(Hex.decode(expected.toString().toUpperCase(Locale.ROOT))).isEqualTo(bytes);
+    }
+
+    @Test
+    void rejectsMalformedInput() {
+        assertThatThrownBy(() -> Hex.decode("abc")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Hex.decode("0g")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Hex.decode("0\u0660")).isInstanceOf(IllegalArgumentException.class);
+    }
+}
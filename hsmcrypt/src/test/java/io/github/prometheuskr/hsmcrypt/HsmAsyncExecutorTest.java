@@ -0,0 +1,91 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link HsmAsyncExecutor}.
+ * 
+ * @author Prometheus
+ */
+class HsmAsyncExecutorTest {
+
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final HsmCryptMetrics metrics = new HsmCryptMetrics() {
+        @Override
+        public void recordAsyncQueueWait(String tokenLabel, long nanos, Throwable error) {
+            if (error != null) {
+                rejected.incrementAndGet();
+            }
+        }
+    };
+    private final HsmAsyncExecutor executor = new HsmAsyncExecutor(SimulatorFixtures.TOKEN_LABEL, 1, 1, false,
+            metrics);
+    private final CountDownLatch unblock = new CountDownLatch(1);
+
+    @AfterEach
+    void tearDown() {
+        unblock.countDown();
+        executor.close();
+    }
+
+    @Test
+    void submissionsBeyondTheQueueCapacityFail() throws Exception {
+        CompletableFuture<String> running = executor.submit(this::blocked);
+        awaitActive();
+        CompletableFuture<String> queued = executor.submit(() -> "queued");
+
+        CompletableFuture<String> overflow = executor.submit(() -> "overflow");
+        assertThat(overflow).isCompletedExceptionally();
+        assertThat(overflow.handle((result, e) -> e.getMessage()).get())
+                .isEqualTo("HSM executor queue is full (1 waiting) for token: HSMCRYPT");
+        assertThat(rejected).hasValue(1);
+        assertThat(executor.getQueueDepth()).isEqualTo(1);
+
+        unblock.countDown();
+        assertThat(running.get(10, TimeUnit.SECONDS)).isEqualTo("blocked");
+        assertThat(queued.get(10, TimeUnit.SECONDS)).isEqualTo("queued");
+        assertThat(executor.getQueueDepth()).isZero();
+    }
+
+    @Test
+    void operationsCancelledWhileQueuedAreSkipped() throws Exception {
+        CompletableFuture<String> running = executor.submit(this::blocked);
+        awaitActive();
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<Integer> cancelled = executor.submit(calls::incrementAndGet);
+        cancelled.cancel(false);
+
+        unblock.countDown();
+        assertThat(running.get(10, TimeUnit.SECONDS)).isEqualTo("blocked");
+        // The single thread runs queued operations in order
+        assertThat(executor.submit(() -> "next").get(10, TimeUnit.SECONDS)).isEqualTo("next");
+        assertThat(cancelled).isCancelled();
+        assertThat(calls).hasValue(0);
+        assertThat(executor.getQueueDepth()).isZero();
+    }
+
+    private String blocked() {
+        try {
+            unblock.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return "blocked";
+    }
+
+    private void awaitActive() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (executor.getActiveCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertThat(executor.getActiveCount()).isEqualTo(1);
+    }
+}
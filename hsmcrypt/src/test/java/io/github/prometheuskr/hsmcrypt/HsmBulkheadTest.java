@@ -0,0 +1,117 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.prometheuskr.hsmcrypt.HsmBulkhead.Rejection;
+
+/**
+ * Tests for {@link HsmBulkhead}.
+ * 
+ * @author Prometheus
+ */
+class HsmBulkheadTest {
+
+    private final Map<Rejection, Integer> rejections = Collections.synchronizedMap(new EnumMap<>(Rejection.class));
+    private final HsmCryptMetrics metrics = new HsmCryptMetrics() {
+        @Override
+        public void recordBulkheadRejection(String tokenLabel, Rejection reason) {
+            rejections.merge(reason, 1, Integer::sum);
+        }
+    };
+
+    @Test
+    void waitersGetPermitsInArrivalOrder() throws InterruptedException {
+        HsmBulkhead bulkhead = bulkhead(TimeUnit.SECONDS.toNanos(10), 0, false);
+        bulkhead.acquire();
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> waiters = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            int index = i;
+            Thread waiter = new Thread(() -> {
+                bulkhead.acquire();
+                order.add(index);
+                bulkhead.release();
+            });
+            waiter.start();
+            waiters.add(waiter);
+            awaitWaiting(bulkhead, i + 1);
+        }
+
+        bulkhead.release();
+        for (Thread waiter : waiters) {
+            waiter.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        assertThat(order).containsExactly(0, 1, 2);
+        assertThat(bulkhead.getRejectedCount()).isZero();
+    }
+
+    @Test
+    void callersBeyondMaxWaitingAreRejected() throws InterruptedException {
+        HsmBulkhead bulkhead = bulkhead(TimeUnit.SECONDS.toNanos(10), 1, false);
+        bulkhead.acquire();
+        Thread waiter = new Thread(() -> {
+            bulkhead.acquire();
+            bulkhead.release();
+        });
+        waiter.start();
+        awaitWaiting(bulkhead, 1);
+
+        assertThatThrownBy(bulkhead::acquire)
+                .isInstanceOf(HsmCryptException.class)
+                .hasMessage("Too many callers (1) waiting for an HSM session on token: HSMCRYPT");
+        bulkhead.release();
+        waiter.join(TimeUnit.SECONDS.toMillis(10));
+        assertThat(bulkhead.getWaitingCount()).isZero();
+        assertThat(rejections).containsOnly(entry(Rejection.QUEUE_FULL, 1));
+    }
+
+    @Test
+    void fastFailRejectsWithoutWaiting() {
+        HsmBulkhead bulkhead = bulkhead(TimeUnit.SECONDS.toNanos(10), 0, true);
+        bulkhead.acquire();
+
+        long start = System.nanoTime();
+        assertThatThrownBy(bulkhead::acquire)
+                .isInstanceOf(HsmCryptException.class)
+                .hasMessage("No HSM session available on token: HSMCRYPT");
+        assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(5));
+        assertThat(rejections).containsOnly(entry(Rejection.FAST_FAIL, 1));
+    }
+
+    @Test
+    void waitsTimeOut() {
+        HsmBulkhead bulkhead = bulkhead(TimeUnit.MILLISECONDS.toNanos(20), 0, false);
+        bulkhead.acquire();
+
+        assertThatThrownBy(bulkhead::acquire)
+                .isInstanceOf(HsmCryptException.class)
+                .hasMessage("Timed out after 20 ms waiting for an HSM session on token: HSMCRYPT");
+        assertThatThrownBy(bulkhead::acquire).isInstanceOf(HsmCryptException.class);
+        assertThat(bulkhead.getRejectedCount()).isEqualTo(2);
+        assertThat(bulkhead.getWaitingCount()).isZero();
+        assertThat(rejections).containsOnly(entry(Rejection.TIMEOUT, 2));
+    }
+
+    private HsmBulkhead bulkhead(long maxWaitNanos, int maxWaiting, boolean fastFail) {
+        return new HsmBulkhead(SimulatorFixtures.TOKEN_LABEL, 1, maxWaitNanos, maxWaiting, fastFail, metrics);
+    }
+
+    private static void awaitWaiting(HsmBulkhead bulkhead, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (bulkhead.getWaitingCount() < count && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertThat(bulkhead.getWaitingCount()).isEqualTo(count);
+    }
+}
@@ -0,0 +1,81 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.context.config.ConfigData;
+import org.springframework.core.env.PropertySource;
+import org.springframework.core.io.ByteArrayResource;
+
+import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
+
+/**
+ * Tests for encrypted property bundles against the HSM simulator.
+ * 
+ * @author Prometheus
+ */
+class HsmCryptBundleLoaderTest {
+
+    private HsmCrypt defaultCrypt;
+    private HsmCrypt crypt1;
+    private HsmCryptHelper helper;
+
+    @BeforeEach
+    void setUp() {
+        HsmSessionFactory sessionFactory = SimulatorFixtures.sessionFactory();
+        defaultCrypt = SimulatorFixtures.hsmCrypt(sessionFactory, SimulatorFixtures.KEY_LABEL);
+        crypt1 = SimulatorFixtures.hsmCrypt(sessionFactory, "HsmCryptKey1");
+        helper = new HsmCryptHelper(new HsmCryptRegistry(defaultCrypt, Collections.singletonMap("k1", crypt1),
+                "k1", Collections.emptyList()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        defaultCrypt.close();
+        crypt1.close();
+    }
+
+    @Test
+    void bundleDecryptsIntoProperties() throws IOException {
+        byte[] encrypted = encrypt("db.user=app\ndb.password=secret\n".getBytes(StandardCharsets.ISO_8859_1));
+
+        ConfigData data = new HsmCryptBundleLoader().load(null,
+                new HsmCryptBundleResource(new ByteArrayResource(encrypted), false));
+        HsmCryptBundlePropertySource bundle = (HsmCryptBundlePropertySource) data.getPropertySources().get(0);
+        assertThat(bundle.getPropertyNames()).isEmpty();
+
+        PropertySource<?> decrypted = bundle.decrypt(helper);
+        assertThat(decrypted.getName()).isEqualTo(bundle.getName());
+        assertThat(decrypted.getProperty("db.user")).hasToString("app");
+        assertThat(decrypted.getProperty("db.password")).hasToString("secret");
+    }
+
+    @Test
+    void invalidBundlesAreRejected() throws IOException {
+        byte[] properties = "db.password=secret".getBytes(StandardCharsets.ISO_8859_1);
+        HsmCryptBundleLoader loader = new HsmCryptBundleLoader();
+        assertThatThrownBy(() -> loader.load(null,
+                new HsmCryptBundleResource(new ByteArrayResource(properties), false)))
+                .isInstanceOf(IllegalStateException.class);
+
+        byte[] tampered = encrypt(properties);
+        tampered[tampered.length - 1] ^= 1;
+        assertThatThrownBy(() -> new HsmCryptBundlePropertySource("bundle", tampered).decrypt(helper))
+                .isInstanceOf(HsmCryptException.class);
+    }
+
+    private byte[] encrypt(byte[] properties) throws IOException {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        helper.encryptStream(new ByteArrayInputStream(properties), encrypted);
+        return encrypted.toByteArray();
+    }
+}
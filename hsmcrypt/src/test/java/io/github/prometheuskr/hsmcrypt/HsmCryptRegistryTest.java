@@ -0,0 +1,123 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
+
+/**
+ * Tests for key IDs in <code>HCENC(v2:keyId:payload)</code> values against the
+ * HSM simulator.
+ * 
+ * @author Prometheus
+ */
+class HsmCryptRegistryTest {
+
+    private static final String LEGACY = "HCENC(" + SimulatorFixtures.LEGACY_SECRET + ")";
+
+    private HsmCrypt defaultCrypt;
+    private HsmCrypt crypt1;
+    private HsmCrypt crypt2;
+    private HsmCryptRegistry registry;
+    private HsmCryptHelper helper;
+
+    @BeforeEach
+    void setUp() {
+        HsmSessionFactory sessionFactory = SimulatorFixtures.sessionFactory();
+        defaultCrypt = SimulatorFixtures.hsmCrypt(sessionFactory, SimulatorFixtures.KEY_LABEL);
+        crypt1 = SimulatorFixtures.hsmCrypt(sessionFactory, "HsmCryptKey1");
+        crypt2 = SimulatorFixtures.hsmCrypt(sessionFactory, "HsmCryptKey2");
+        Map<String, HsmCrypt> crypts = new LinkedHashMap<>();
+        crypts.put("k1", crypt1);
+        crypts.put("k2", crypt2);
+        registry = new HsmCryptRegistry(defaultCrypt, crypts, "k2", Collections.emptyList());
+        helper = new HsmCryptHelper(registry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        defaultCrypt.close();
+        crypt1.close();
+        crypt2.close();
+    }
+
+    @Test
+    void keyIdSelectsTheKey() {
+        String encrypted2 = helper.encryptWithFormat("secret");
+        String encrypted1 = new HsmCryptHelper(registry.withActiveKey("k1")).encryptWithFormat("other");
+
+        assertThat(encrypted2).startsWith("HCENC(v2:k2:");
+        assertThat(encrypted1).startsWith("HCENC(v2:k1:");
+        assertThat(helper.decryptIfEncrypted(encrypted2)).isEqualTo("secret");
+        assertThat(helper.decryptIfEncrypted(encrypted1)).isEqualTo("other");
+        assertThat(crypt2.decrypt(encrypted2.substring("HCENC(v2:k2:".length(), encrypted2.length() - 1)))
+                .isEqualTo("secret");
+    }
+
+    @Test
+    void legacyValuesUseTheDefaultKey() {
+        assertThat(helper.decryptIfEncrypted(LEGACY)).isEqualTo("secret");
+        assertThat(new HsmCryptHelper(defaultCrypt).encryptWithFormat("secret")).doesNotContain("v2:");
+    }
+
+    @Test
+    void unknownKeyIdIsRejected() {
+        String payload = helper.encryptWithFormat("secret").substring("HCENC(v2:k2:".length());
+
+        assertThatThrownBy(() -> helper.decryptIfEncrypted("HCENC(v2:k3:" + payload))
+                .isInstanceOf(HsmCryptException.class)
+                .hasMessage("Unknown key ID: k3");
+        assertThatThrownBy(() -> helper.decryptIfEncrypted("HCENC(v2:k2)"))
+                .isInstanceOf(HsmCryptException.class)
+                .hasMessageContaining("missing key ID separator");
+    }
+
+    @Test
+    void envelopePayloadsCarryTheKeyId() {
+        HsmCrypt envelopeCrypt = SimulatorFixtures.envelopeCrypt(SimulatorFixtures.sessionFactory(), "HsmCryptKey2");
+        try {
+            HsmCryptHelper envelopeHelper = new HsmCryptHelper(new HsmCryptRegistry(defaultCrypt,
+                    Collections.singletonMap("k2", envelopeCrypt), "k2", Collections.emptyList()));
+            String encrypted = envelopeHelper.encryptWithFormat("secret");
+
+            assertThat(encrypted).startsWith("HCENC(v2:k2:" + EnvelopeCipher.PAYLOAD_PREFIX);
+            assertThat(envelopeHelper.decryptIfEncrypted(encrypted)).isEqualTo("secret");
+            assertThatThrownBy(() -> envelopeHelper.decryptIfEncrypted(encrypted.replace("v2:k2:", "v2:k3:")))
+                    .isInstanceOf(HsmCryptException.class)
+                    .hasMessage("Unknown key ID: k3");
+        } finally {
+            envelopeCrypt.close();
+        }
+    }
+
+    @Test
+    void bulkDecryptionFailsOnlyUnknownKeyIds() {
+        String encrypted = helper.encryptWithFormat("secret");
+        List<BatchResult> results = helper.decryptAllIfEncrypted(
+                Arrays.asList(encrypted, encrypted.replace("v2:k2:", "v2:k3:"), LEGACY, "plain"));
+
+        assertThat(results.get(0).getValue()).isEqualTo("secret");
+        assertThat(results.get(1).isSuccess()).isFalse();
+        assertThat(results.get(1).getError()).hasMessage("Unknown key ID: k3");
+        assertThat(results.get(2).getValue()).isEqualTo("secret");
+        assertThat(results.get(3).getValue()).isEqualTo("plain");
+    }
+
+    @Test
+    void invalidKeyIdsAreRejected() {
+        assertThatThrownBy(() -> new HsmCryptRegistry(defaultCrypt, Collections.singletonMap("k:1", crypt1), null,
+                Collections.emptyList())).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new HsmCryptRegistry(defaultCrypt, Collections.singletonMap("k1", crypt1), "k2",
+                Collections.emptyList())).isInstanceOf(IllegalArgumentException.class);
+    }
+}
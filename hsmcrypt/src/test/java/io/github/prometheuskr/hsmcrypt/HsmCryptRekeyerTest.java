@@ -0,0 +1,62 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
+
+/**
+ * Tests for {@link HsmCryptRekeyer} against the HSM simulator.
+ * 
+ * @author Prometheus
+ */
+class HsmCryptRekeyerTest {
+
+    private final HsmSessionFactory sessionFactory = SimulatorFixtures.sessionFactory();
+    private final HsmCrypt from = SimulatorFixtures.hsmCrypt(sessionFactory, SimulatorFixtures.KEY_LABEL);
+    private final HsmCrypt to = SimulatorFixtures.hsmCrypt(sessionFactory, "HsmCryptKey2");
+
+    @AfterEach
+    void tearDown() {
+        from.close();
+        to.close();
+    }
+
+    @Test
+    void resultsStayInInputOrderAcrossChunks() {
+        HsmCryptHelper source = new HsmCryptHelper(from);
+        HsmCryptHelper target = new HsmCryptHelper(to);
+        // Spans several chunks, with failures shifting the decrypted and
+        // re-encrypted values against the input
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 150; i++) {
+            if (i % 7 == 3) {
+                values.add("plain-" + i);
+            } else if (i % 11 == 5) {
+                values.add("HCENC(00)");
+            } else {
+                values.add(source.encryptWithFormat("value-" + i));
+            }
+        }
+
+        List<BatchResult> results = new HsmCryptRekeyer(source, target, 4).rekeyAll(values);
+        assertThat(results).hasSize(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            BatchResult result = results.get(i);
+            if (i % 7 == 3) {
+                assertThat(result.isSuccess()).as("value %d", i).isFalse();
+                assertThat(result.getError()).hasMessage("Not an encrypted value");
+            } else if (i % 11 == 5) {
+                assertThat(result.isSuccess()).as("value %d", i).isFalse();
+            } else {
+                assertThat(result.isSuccess()).as("value %d", i).isTrue();
+                assertThat(target.decryptIfEncrypted(result.getValue())).isEqualTo("value-" + i);
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
+
+/**
+ * Tests for the wiring of the HSM simulator.
+ * 
+ * @author Prometheus
+ */
+class HsmCryptSimulatorTest {
+
+    @Configuration(proxyBeanMethods = false)
+    @Import(HsmCryptAutoConfiguration.class)
+    static class Application {
+    }
+
+    @Test
+    void simulatorIsNotExposedAsSessionFactoryBean() {
+        SpringApplication application = new SpringApplication(Application.class);
+        application.setWebApplicationType(WebApplicationType.NONE);
+        try (ConfigurableApplicationContext context = application.run("--hsmcrypt.simulator.enabled=true",
+                "--hsmcrypt.encryption.enabled=true")) {
+            assertThat(context.getBeanNamesForType(HsmSessionFactory.class)).isEmpty();
+            HsmCryptHelper helper = context.getBean(HsmCryptHelper.class);
+            assertThat(helper.decryptIfEncrypted(helper.encryptWithFormat("secret"))).isEqualTo("secret");
+        }
+    }
+
+    @Test
+    void importFilterSkipsSipwonOnlyWhenSimulatorIsEnabled() {
+        String[] candidates = { "io.github.prometheuskr.sipwon.autoconfigure.SipwonAutoConfiguration",
+                "org.example.OtherAutoConfiguration", null };
+
+        assertThat(filter(false).match(candidates, null)).containsExactly(true, true, true);
+        assertThat(filter(true).match(candidates, null)).containsExactly(false, true, true);
+    }
+
+    private static HsmCryptSimulatorImportFilter filter(boolean simulated) {
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("test",
+                Collections.singletonMap("hsmcrypt.simulator.enabled", String.valueOf(simulated))));
+        HsmCryptSimulatorImportFilter filter = new HsmCryptSimulatorImportFilter();
+        filter.setEnvironment(environment);
+        return filter;
+    }
+}
@@ -0,0 +1,86 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link HsmCrypt} against the HSM simulator.
+ * 
+ * @author Prometheus
+ */
+class HsmCryptTest {
+
+    /**
+     * Plaintext to ciphertext, written by the original String.format codec with
+     * the default simulator key.
+     */
+    private static final Map<String, String> BASELINE = new LinkedHashMap<>();
+
+    static {
+        // The original codec wrote the empty string but could not read it back
+        BASELINE.put("", "f7009e5398960d5f86ef882d7100cca1");
+        BASELINE.put("0123456789abcdef",
+                "97da18d322be9e366e783393eacf822e4fb0bd19f2a9ef4f699c6684eabdcaa5");
+        BASELINE.put("secret", SimulatorFixtures.LEGACY_SECRET);
+        // Random prefix, data and 0x80 fill exactly one block
+        BASELINE.put("1234567", "0eb247d3c60a72c96f52eedbfd214b4f");
+        BASELINE.put("0123456789abcde",
+                "ce4fdc6575071a9485da35fdc2334f185ccdbe3ea5f01b1eb9aa5bbdd5d9f3d8");
+        BASELINE.put("0123456789abcdef0",
+                "2013aa28729ede7499c5e32d4f47eb57637933abdd54f9b1ec95b349b770da96");
+        // "80" at an odd nibble offset of the hex data
+        BASELINE.put("\b\u0001", "2180aa80eec6c2617841101ced66c919");
+        // Data ending with 0x80 bytes
+        BASELINE.put("\u8000", "e30d7996cdb5d6f591b6d27404969c98");
+        BASELINE.put("\ube44\ubc00\ubc88\ud638 \u2713",
+                "1d0c5fba5428bfc60b8aaf35f2442fcbeaaf1a3835f73e5f763ba14373ba3905");
+        BASELINE.put("p@ss\u0080w0rd", "fd10d2589aa7b1ff6e2df152ff0c941482f3ea3034960b95ba3434bc42c81591");
+    }
+
+    private HsmCrypt hsmCrypt;
+    private HsmCryptHelper helper;
+
+    @BeforeEach
+    void setUp() {
+        hsmCrypt = SimulatorFixtures.hsmCrypt(SimulatorFixtures.sessionFactory(), SimulatorFixtures.KEY_LABEL);
+        helper = new HsmCryptHelper(hsmCrypt);
+    }
+
+    @AfterEach
+    void tearDown() {
+        hsmCrypt.close();
+    }
+
+    @Test
+    void decryptsBaselineCiphertexts() {
+        BASELINE.forEach((plainText, encrypted) -> {
+            assertThat(hsmCrypt.decrypt(encrypted)).as(encrypted).isEqualTo(plainText);
+            assertThat(helper.decryptIfEncrypted("HCENC(" + encrypted + ")")).as(encrypted).isEqualTo(plainText);
+        });
+    }
+
+    @Test
+    void roundTripsWithBaselinePadding() {
+        BASELINE.forEach((plainText, baseline) -> {
+            String encrypted = hsmCrypt.encrypt(plainText);
+            // Same random prefix and padding layout as the original codec
+            assertThat(encrypted).as(plainText).hasSameSizeAs(baseline).isNotEqualTo(baseline);
+            assertThat(hsmCrypt.decrypt(encrypted)).as(plainText).isEqualTo(plainText);
+
+            byte[] plainBytes = plainText.getBytes(StandardCharsets.UTF_8);
+            assertThat(hsmCrypt.decrypt(hsmCrypt.encrypt(plainBytes))).as(plainText).isEqualTo(plainBytes);
+        });
+    }
+
+    @Test
+    void encryptionIsRandomized() {
+        assertThat(hsmCrypt.encrypt("secret")).isNotEqualTo(hsmCrypt.encrypt("secret"));
+    }
+}
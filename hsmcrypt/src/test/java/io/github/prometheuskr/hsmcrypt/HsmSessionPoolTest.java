@@ -0,0 +1,115 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import iaik.pkcs.pkcs11.TokenException;
+import io.github.prometheuskr.hsmcrypt.HsmSessionPool.PooledSession;
+import io.github.prometheuskr.sipwon.constant.HsmMechanism;
+
+/**
+ * Tests for {@link HsmSessionPool} against the HSM simulator.
+ * 
+ * @author Prometheus
+ */
+class HsmSessionPoolTest {
+
+    private final SimulatedHsm hsm = new SimulatedHsm(new HsmCryptProperties.Simulator());
+    private HsmSessionPool pool;
+
+    @AfterEach
+    void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    void idleSessionsAreReused() throws TokenException {
+        pool = pool(config(2));
+        PooledSession first = pool.borrow();
+        pool.release(first);
+
+        assertThat(pool.borrow()).isSameAs(first);
+        assertThat(pool.getOpenCount()).isEqualTo(1);
+        assertThat(pool.getInFlightCount()).isEqualTo(1);
+    }
+
+    @Test
+    void borrowTimesOutWhenAllSessionsAreInUse() throws TokenException {
+        HsmCryptProperties.Pool config = config(1);
+        config.setBorrowTimeout(Duration.ofMillis(50));
+        pool = pool(config);
+        PooledSession borrowed = pool.borrow();
+
+        assertThatThrownBy(pool::borrow)
+                .isInstanceOf(HsmCryptException.class)
+                .hasMessageStartingWith("Timed out after 50 ms");
+        pool.release(borrowed);
+        pool.release(pool.borrow());
+    }
+
+    @Test
+    void deadSessionsAreInvalidated() {
+        pool = pool(config(2));
+        HsmCrypt hsmCrypt = new HsmCrypt(HsmTokenBalancer.single(pool), SimulatorFixtures.KEY_LABEL,
+                HsmMechanism.AES_CBC, new HsmCryptProperties.Encryption());
+        String encrypted = hsmCrypt.encrypt("secret");
+        hsm.injectFailures(SimulatedHsm.Operation.DECRYPT, 1, "CKR_SESSION_HANDLE_INVALID");
+
+        // The dead session is closed and the operation retried on a new one
+        assertThat(hsmCrypt.decrypt(encrypted)).isEqualTo("secret");
+        assertThat(pool.getOpenCount()).isEqualTo(1);
+        assertThat(hsm.getOpenSessionCount()).isEqualTo(1);
+    }
+
+    @Test
+    void idleSessionsAreEvictedDownToTheMinimum() throws Exception {
+        HsmCryptProperties.Pool config = config(4);
+        config.setMinSize(1);
+        config.setIdleTimeout(Duration.ZERO);
+        config.setEvictionInterval(Duration.ofMillis(10));
+        pool = pool(config);
+        PooledSession[] borrowed = { pool.borrow(), pool.borrow(), pool.borrow() };
+        for (PooledSession pooled : borrowed) {
+            pool.release(pooled);
+        }
+
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (pool.getOpenCount() > 1 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(pool.getOpenCount()).isEqualTo(1);
+        assertThat(pool.getIdleCount()).isEqualTo(1);
+        assertThat(hsm.getOpenSessionCount()).isEqualTo(1);
+    }
+
+    @Test
+    void sessionsReturnedAfterCloseAreClosed() throws TokenException {
+        pool = pool(config(2));
+        PooledSession idle = pool.borrow();
+        PooledSession borrowed = pool.borrow();
+        pool.release(idle);
+
+        pool.close();
+        assertThat(hsm.getOpenSessionCount()).isEqualTo(1);
+        pool.release(borrowed);
+        assertThat(pool.getOpenCount()).isZero();
+        assertThat(hsm.getOpenSessionCount()).isZero();
+        assertThatThrownBy(pool::borrow).isInstanceOf(HsmCryptException.class);
+    }
+
+    private HsmSessionPool pool(HsmCryptProperties.Pool config) {
+        return new HsmSessionPool(hsm.getSessionFactory(), SimulatorFixtures.TOKEN_LABEL,
+                SimulatorFixtures.KEY_LABEL, config);
+    }
+
+    private static HsmCryptProperties.Pool config(int maxSize) {
+        HsmCryptProperties.Pool config = new HsmCryptProperties.Pool();
+        config.setMaxSize(maxSize);
+        return config;
+    }
+}
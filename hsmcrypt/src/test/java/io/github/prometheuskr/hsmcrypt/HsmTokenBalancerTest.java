@@ -0,0 +1,92 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import iaik.pkcs.pkcs11.TokenException;
+import io.github.prometheuskr.sipwon.constant.HsmMechanism;
+import io.github.prometheuskr.sipwon.key.HsmKey;
+import io.github.prometheuskr.sipwon.session.HsmSession;
+import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
+
+/**
+ * Tests for {@link HsmTokenBalancer} against the HSM simulator.
+ * 
+ * @author Prometheus
+ */
+class HsmTokenBalancerTest {
+
+    private static final String FAILING_TOKEN = "HSMCRYPT-B";
+
+    @Test
+    void tokenFailingEveryOperationIsTakenOut() {
+        HsmCryptProperties.Simulator simulatorConfig = new HsmCryptProperties.Simulator();
+        simulatorConfig.setReplicatedKeys(true);
+        HsmSessionFactory sessionFactory = failingOperations(
+                new SimulatedHsm(simulatorConfig).getSessionFactory(), FAILING_TOKEN);
+        HsmCryptProperties.Balancer balancerConfig = new HsmCryptProperties.Balancer();
+        balancerConfig.setCooldown(Duration.ofMinutes(10));
+        HsmTokenBalancer balancer = new HsmTokenBalancer(Arrays.asList(
+                new HsmSessionPool(sessionFactory, "HSMCRYPT-A"),
+                new HsmSessionPool(sessionFactory, FAILING_TOKEN)),
+                "HsmCryptKey", balancerConfig, HsmCryptMetrics.NOOP);
+
+        try (HsmCrypt hsmCrypt = new HsmCrypt(balancer, "HsmCryptKey", HsmMechanism.AES_CBC,
+                new HsmCryptProperties.Encryption())) {
+            int failed = 0;
+            for (int i = 0; i < 100; i++) {
+                try {
+                    hsmCrypt.encrypt("value-" + i);
+                } catch (HsmCryptException e) {
+                    failed++;
+                }
+            }
+
+            // Returning the session after a failed operation must not clear the count
+            assertThat(failed).isEqualTo(balancerConfig.getFailureThreshold());
+            assertThat(balancer.isAvailable(FAILING_TOKEN)).isFalse();
+            assertThat(balancer.isAvailable("HSMCRYPT-A")).isTrue();
+        }
+    }
+
+    /**
+     * Wraps a session factory so every key operation on one token fails with a
+     * general error while its sessions stay valid.
+     */
+    private static HsmSessionFactory failingOperations(HsmSessionFactory delegate, String tokenLabel) {
+        return proxy(HsmSessionFactory.class, delegate, (method, result, args) -> {
+            if (result instanceof HsmSession && tokenLabel.equals(args[0])) {
+                return proxy(HsmSession.class, result, (sessionMethod, key, sessionArgs) -> key instanceof HsmKey
+                        ? proxy(HsmKey.class, key, (keyMethod, output, keyArgs) -> {
+                            throw new TokenException("CKR_FUNCTION_FAILED");
+                        })
+                        : key);
+            }
+            return result;
+        });
+    }
+
+    @FunctionalInterface
+    private interface Decorator {
+        Object apply(java.lang.reflect.Method method, Object result, Object[] args) throws Exception;
+    }
+
+    private static <T> T proxy(Class<T> type, Object delegate, Decorator decorator) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> {
+                    Object result;
+                    try {
+                        result = method.invoke(delegate, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                    return decorator.apply(method, result, args);
+                }));
+    }
+}
@@ -0,0 +1,123 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.github.prometheuskr.hsmcrypt.HsmCryptProperties.Encryption.PayloadEncoding;
+import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
+
+/**
+ * Tests for Base64url payloads, <code>HCENC(b64:...)</code>, against the HSM
+ * simulator.
+ * 
+ * @author Prometheus
+ */
+class PayloadCodecTest {
+
+    private static final String LEGACY = "HCENC(" + SimulatorFixtures.LEGACY_SECRET + ")";
+
+    private HsmCrypt hsmCrypt;
+    private HsmCrypt envelopeCrypt;
+    private HsmCryptHelper helper;
+
+    @BeforeEach
+    void setUp() {
+        HsmSessionFactory sessionFactory = SimulatorFixtures.sessionFactory();
+        hsmCrypt = SimulatorFixtures.hsmCrypt(sessionFactory, SimulatorFixtures.KEY_LABEL);
+        envelopeCrypt = SimulatorFixtures.envelopeCrypt(sessionFactory, "HsmCryptKey2");
+        helper = base64Helper(HsmCryptRegistry.single(hsmCrypt));
+    }
+
+    @AfterEach
+    void tearDown() {
+        hsmCrypt.close();
+        envelopeCrypt.close();
+    }
+
+    @Test
+    void roundTrips() {
+        for (String plainText : new String[] { "", "0123456789abcdef", "secret" }) {
+            String encrypted = helper.encryptWithFormat(plainText);
+            assertThat(encrypted).startsWith("HCENC(b64:");
+            assertThat(helper.decryptIfEncrypted(encrypted)).isEqualTo(plainText);
+        }
+    }
+
+    @Test
+    void isAThirdShorterThanHex() {
+        String hex = hsmCrypt.encrypt("0123456789abcdef");
+        String base64 = PayloadCodec.toBase64Url(hex);
+
+        assertThat(base64).hasSize(PayloadCodec.BASE64URL_TAG.length() + 43);
+        assertThat(hex).hasSize(64);
+        assertThat(PayloadCodec.toHex(base64)).isEqualTo(hex);
+    }
+
+    @Test
+    void legacyHexValuesStillDecrypt() {
+        assertThat(helper.decryptIfEncrypted(LEGACY)).isEqualTo("secret");
+        assertThat(helper.decryptAllIfEncrypted(Arrays.asList(LEGACY, helper.encryptWithFormat("other"))))
+                .extracting(BatchResult::getValue)
+                .containsExactly("secret", "other");
+    }
+
+    @Test
+    void envelopeFieldsAreConvertedOneByOne() {
+        HsmCryptHelper envelopeHelper = base64Helper(
+                new HsmCryptRegistry(hsmCrypt, Collections.singletonMap("k2", envelopeCrypt), "k2",
+                        Collections.emptyList()));
+        String encrypted = envelopeHelper.encryptWithFormat("secret");
+
+        assertThat(encrypted).startsWith("HCENC(v2:k2:b64:" + EnvelopeCipher.PAYLOAD_PREFIX);
+        assertThat(encrypted.split("\\.")).hasSize(4);
+        assertThat(envelopeHelper.decryptIfEncrypted(encrypted)).isEqualTo("secret");
+    }
+
+    @Test
+    void tamperedOrTruncatedEnvelopeIsRejected() {
+        HsmCryptHelper envelopeHelper = base64Helper(HsmCryptRegistry.single(envelopeCrypt));
+        String encrypted = envelopeHelper.encryptWithFormat("secret");
+        String payload = encrypted.substring(0, encrypted.length() - 1);
+        // The last character may hold padding bits, so flip one inside the tag
+        int at = payload.length() - 3;
+        String tampered = payload.substring(0, at) + (payload.charAt(at) == 'A' ? 'B' : 'A')
+                + payload.substring(at + 1) + ')';
+        // Four Base64url characters are three whole bytes of the tag
+        String truncated = payload.substring(0, payload.length() - 4) + ')';
+
+        assertThatThrownBy(() -> envelopeHelper.decryptIfEncrypted(tampered))
+                .isInstanceOf(HsmCryptException.class)
+                .hasMessageContaining("authentication failed");
+        assertThatThrownBy(() -> envelopeHelper.decryptIfEncrypted(truncated))
+                .isInstanceOf(HsmCryptException.class)
+                .hasMessageContaining("authentication failed");
+    }
+
+    @Test
+    void malformedBase64IsRejected() {
+        assertThatThrownBy(() -> helper.decryptIfEncrypted("HCENC(b64:N8Jh@Ymw)"))
+                .isInstanceOf(HsmCryptException.class)
+                .hasMessageContaining("invalid Base64url payload");
+    }
+
+    @Test
+    void unknownKeyIdIsRejected() {
+        String encrypted = helper.encryptWithFormat("secret");
+
+        assertThatThrownBy(() -> helper.decryptIfEncrypted(encrypted.replace("HCENC(", "HCENC(v2:k3:")))
+                .isInstanceOf(HsmCryptException.class)
+                .hasMessage("Unknown key ID: k3");
+    }
+
+    private static HsmCryptHelper base64Helper(HsmCryptRegistry registry) {
+        return new HsmCryptHelper(registry, HsmCryptProperties.DEFAULT_PREFIX, HsmCryptProperties.DEFAULT_SUFFIX,
+                PayloadEncoding.BASE64URL);
+    }
+}
@@ -0,0 +1,57 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link ProgressCheckpoint}.
+ * 
+ * @author Prometheus
+ */
+class ProgressCheckpointTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void resumesRecordedFiles() throws IOException {
+        Path checkpointFile = dir.resolve("rekey.ckpt");
+        Path done = dir.resolve("done.yml");
+        Path pending = dir.resolve("pending.yml");
+        try (ProgressCheckpoint checkpoint = new ProgressCheckpoint(checkpointFile)) {
+            checkpoint.recordFile(done, "password: HCENC(new)");
+            // Interrupted before the file was replaced
+            checkpoint.recordFile(pending, "token: HCENC(new)");
+        }
+
+        try (ProgressCheckpoint checkpoint = new ProgressCheckpoint(checkpointFile)) {
+            assertThat(checkpoint.isDone(done, "password: HCENC(new)")).isTrue();
+            assertThat(checkpoint.isDone(dir.resolve("sub/../done.yml"), "password: HCENC(new)")).isTrue();
+            assertThat(checkpoint.isDone(pending, "token: HCENC(old)")).isFalse();
+            assertThat(checkpoint.isDone(dir.resolve("other.yml"), "password: HCENC(new)")).isFalse();
+        }
+    }
+
+    @Test
+    void resumesAfterTheLastRecordedLine() throws IOException {
+        Path checkpointFile = dir.resolve("batch.ckpt");
+        try (ProgressCheckpoint checkpoint = new ProgressCheckpoint(checkpointFile)) {
+            assertThat(checkpoint.getLines()).isZero();
+            checkpoint.recordLines(256);
+            checkpoint.recordLines(512);
+        }
+
+        try (ProgressCheckpoint checkpoint = new ProgressCheckpoint(checkpointFile)) {
+            assertThat(checkpoint.getLines()).isEqualTo(512);
+            checkpoint.recordLines(600);
+        }
+        try (ProgressCheckpoint checkpoint = new ProgressCheckpoint(checkpointFile)) {
+            assertThat(checkpoint.getLines()).isEqualTo(600);
+        }
+    }
+}
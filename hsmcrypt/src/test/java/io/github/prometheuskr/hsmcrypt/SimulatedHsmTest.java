@@ -0,0 +1,75 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import org.junit.jupiter.api.Test;
+
+import iaik.pkcs.pkcs11.TokenException;
+import io.github.prometheuskr.sipwon.constant.HsmKeyType;
+import io.github.prometheuskr.sipwon.constant.HsmMechanism;
+import io.github.prometheuskr.sipwon.key.HsmKey;
+import io.github.prometheuskr.sipwon.session.HsmSession;
+import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
+
+/**
+ * Tests for the sessions and keys of the HSM simulator.
+ * 
+ * @author Prometheus
+ */
+class SimulatedHsmTest {
+
+    private static final String BLOCK = "000102030405060708090a0b0c0d0e0f";
+
+    @Test
+    void keysEncryptWithAesCbc() throws TokenException {
+        HsmSessionFactory sessionFactory = SimulatorFixtures.sessionFactory();
+        HsmSession session = sessionFactory.getHsmSession(SimulatorFixtures.TOKEN_LABEL);
+        HsmKey key = session.findHsmKey(SimulatorFixtures.KEY_LABEL, HsmKeyType.AES);
+
+        String encrypted = key.encrypt(BLOCK + BLOCK, HsmMechanism.AES_CBC);
+        assertThat(encrypted).hasSize(64).doesNotStartWith(encrypted.substring(32));
+        assertThat(key.decrypt(encrypted, HsmMechanism.AES_CBC)).isEqualTo(BLOCK + BLOCK);
+        assertThatThrownBy(() -> key.encrypt(BLOCK.substring(2), HsmMechanism.AES_CBC))
+                .hasMessage("CKR_DATA_LEN_RANGE");
+        assertThatThrownBy(() -> key.decrypt("zz" + BLOCK.substring(2), HsmMechanism.AES_CBC))
+                .hasMessage("CKR_DATA_INVALID");
+        session.close();
+    }
+
+    @Test
+    void sessionsBeyondTheLimitAreRefused() throws TokenException {
+        HsmCryptProperties.Simulator config = new HsmCryptProperties.Simulator();
+        config.setMaxSessions(1);
+        SimulatedHsm hsm = new SimulatedHsm(config);
+        HsmSession session = hsm.getSessionFactory().getHsmSession(SimulatorFixtures.TOKEN_LABEL);
+
+        assertThatThrownBy(() -> hsm.getSessionFactory().getHsmSession(SimulatorFixtures.TOKEN_LABEL))
+                .isInstanceOf(TokenException.class)
+                .hasMessage("CKR_SESSION_COUNT");
+        session.close();
+        session.close();
+        assertThat(hsm.getOpenSessionCount()).isZero();
+        hsm.getSessionFactory().getHsmSession(SimulatorFixtures.TOKEN_LABEL).close();
+    }
+
+    @Test
+    void keysStopWorkingWithTheirSession() throws TokenException {
+        SimulatedHsm hsm = new SimulatedHsm(new HsmCryptProperties.Simulator());
+        HsmSession dead = hsm.getSessionFactory().getHsmSession(SimulatorFixtures.TOKEN_LABEL);
+        HsmKey deadKey = dead.findHsmKey(SimulatorFixtures.KEY_LABEL, HsmKeyType.AES);
+        hsm.injectFailures(SimulatedHsm.Operation.ENCRYPT, 1, "CKR_SESSION_HANDLE_INVALID");
+
+        assertThatThrownBy(() -> deadKey.encrypt(BLOCK, HsmMechanism.AES_CBC))
+                .hasMessage("CKR_SESSION_HANDLE_INVALID");
+        assertThatThrownBy(() -> deadKey.decrypt(BLOCK, HsmMechanism.AES_CBC))
+                .hasMessage("CKR_SESSION_HANDLE_INVALID");
+
+        HsmSession closed = hsm.getSessionFactory().getHsmSession(SimulatorFixtures.TOKEN_LABEL);
+        HsmKey closedKey = closed.findHsmKey(SimulatorFixtures.KEY_LABEL, HsmKeyType.AES);
+        closed.close();
+        assertThatThrownBy(() -> closedKey.encrypt(BLOCK, HsmMechanism.AES_CBC))
+                .hasMessage("CKR_SESSION_CLOSED");
+        dead.close();
+    }
+}
@@ -0,0 +1,50 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import io.github.prometheuskr.sipwon.constant.HsmMechanism;
+import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
+
+/**
+ * Shared HSM simulator setup for tests.
+ * 
+ * @author Prometheus
+ */
+final class SimulatorFixtures {
+
+    /** Token label of the simulated HSM */
+    static final String TOKEN_LABEL = "HSMCRYPT";
+
+    /** Label of the default key */
+    static final String KEY_LABEL = "HsmCryptKey";
+
+    /** "secret" encrypted with the default key by the original codec */
+    static final String LEGACY_SECRET = "37c261dd30b802dce1434ca0c189ba9f";
+
+    private SimulatorFixtures() {
+    }
+
+    /**
+     * Creates a session factory of a simulator with the default settings, so
+     * keys are derived from the default secret.
+     */
+    static HsmSessionFactory sessionFactory() {
+        return new SimulatedHsm(new HsmCryptProperties.Simulator()).getSessionFactory();
+    }
+
+    /**
+     * Creates a HsmCrypt using the given key of the simulated token.
+     */
+    static HsmCrypt hsmCrypt(HsmSessionFactory sessionFactory, String keyLabel) {
+        return new HsmCrypt(sessionFactory, TOKEN_LABEL, keyLabel);
+    }
+
+    /**
+     * Creates a HsmCrypt using envelope encryption under the given key of the
+     * simulated token.
+     */
+    static HsmCrypt envelopeCrypt(HsmSessionFactory sessionFactory, String keyLabel) {
+        HsmCryptProperties.Encryption encryption = new HsmCryptProperties.Encryption();
+        encryption.getEnvelope().setEnabled(true);
+        return new HsmCrypt(HsmTokenBalancer.single(new HsmSessionPool(sessionFactory, TOKEN_LABEL)), keyLabel,
+                HsmMechanism.AES_CBC, encryption);
+    }
+}
@@ -0,0 +1,205 @@
+package io.github.prometheuskr.hsmcrypt;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.prometheuskr.sipwon.session.HsmSessionFactory;
+
+/**
+ * Tests for <code>HCS1</code> streams against the HSM simulator.
+ * 
+ * @author Prometheus
+ */
+class StreamCipherTest {
+
+    private static final int CHUNK_SIZE = 16;
+    private static final int ENCRYPTED_CHUNK_SIZE = CHUNK_SIZE + 16;
+
+    private final StreamCipher cipher = new StreamCipher(CHUNK_SIZE);
+
+    private HsmCrypt defaultCrypt;
+    private HsmCrypt crypt1;
+    private HsmCryptHelper helper;
+    private HsmCryptHelper keyIdHelper;
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void setUp() {
+        HsmSessionFactory sessionFactory = SimulatorFixtures.sessionFactory();
+        defaultCrypt = SimulatorFixtures.hsmCrypt(sessionFactory, SimulatorFixtures.KEY_LABEL);
+        crypt1 = SimulatorFixtures.hsmCrypt(sessionFactory, "HsmCryptKey1");
+        helper = new HsmCryptHelper(defaultCrypt);
+        keyIdHelper = new HsmCryptHelper(new HsmCryptRegistry(defaultCrypt, Collections.singletonMap("k1", crypt1),
+                "k1", Collections.emptyList()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        defaultCrypt.close();
+        crypt1.close();
+    }
+
+    @Test
+    void roundTripsAcrossChunkBoundaries() throws IOException {
+        for (int length : new int[] { 0, 1, 15, 16, 17, 32, 100 }) {
+            byte[] plain = plain(length);
+            byte[] encrypted = encrypt(plain);
+
+            assertThat(new String(encrypted, 0, 4, StandardCharsets.US_ASCII)).isEqualTo("HCS1");
+            assertThat(decrypt(encrypted)).as("length %d", length).isEqualTo(plain);
+        }
+    }
+
+    @Test
+    void helperRoundTripsStreamsAndFiles() throws IOException {
+        byte[] plain = plain(200_000);
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        assertThat(keyIdHelper.encryptStream(new ByteArrayInputStream(plain), encrypted)).isEqualTo(plain.length);
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        keyIdHelper.decryptStream(new ByteArrayInputStream(encrypted.toByteArray()), decrypted);
+        assertThat(decrypted.toByteArray()).isEqualTo(plain);
+
+        Path source = Files.write(dir.resolve("plain"), plain);
+        keyIdHelper.encryptFile(source, dir.resolve("encrypted"));
+        keyIdHelper.decryptFile(dir.resolve("encrypted"), dir.resolve("decrypted"));
+        assertThat(Files.readAllBytes(dir.resolve("decrypted"))).isEqualTo(plain);
+    }
+
+    @Test
+    void streamsWithoutKeyIdUseTheDefaultKey() throws IOException {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        helper.encryptStream(new ByteArrayInputStream(plain(40)), encrypted);
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        keyIdHelper.decryptStream(new ByteArrayInputStream(encrypted.toByteArray()), decrypted);
+        assertThat(decrypted.toByteArray()).isEqualTo(plain(40));
+    }
+
+    @Test
+    void tamperedChunkIsRejected() throws IOException {
+        byte[] encrypted = encrypt(plain(48));
+        encrypted[headerLength(encrypted) + ENCRYPTED_CHUNK_SIZE] ^= 1;
+
+        assertRejected(encrypted, "authentication failed");
+    }
+
+    @Test
+    void tamperedHeaderIsRejected() throws IOException {
+        byte[] encrypted = encrypt(plain(48));
+        // First byte of the nonce prefix, authenticated with every chunk
+        encrypted[8] ^= 1;
+
+        assertRejected(encrypted, "authentication failed");
+    }
+
+    @Test
+    void droppedLastChunkIsRejected() throws IOException {
+        byte[] encrypted = encrypt(plain(48));
+        // The new last chunk was encrypted without the final-chunk flag
+        byte[] truncated = Arrays.copyOf(encrypted, encrypted.length - ENCRYPTED_CHUNK_SIZE);
+
+        assertRejected(truncated, "authentication failed");
+    }
+
+    @Test
+    void appendedChunkIsRejected() throws IOException {
+        byte[] encrypted = encrypt(plain(48));
+        byte[] extended = Arrays.copyOf(encrypted, encrypted.length + ENCRYPTED_CHUNK_SIZE);
+        System.arraycopy(encrypted, encrypted.length - ENCRYPTED_CHUNK_SIZE, extended, encrypted.length,
+                ENCRYPTED_CHUNK_SIZE);
+
+        assertRejected(extended, "authentication failed");
+    }
+
+    @Test
+    void truncatedInputIsRejected() throws IOException {
+        byte[] encrypted = encrypt(plain(40));
+        int header = headerLength(encrypted);
+
+        assertRejected(Arrays.copyOf(encrypted, encrypted.length - 1), "authentication failed");
+        assertRejected(Arrays.copyOf(encrypted, header + ENCRYPTED_CHUNK_SIZE + 15), "truncated input");
+        assertRejected(Arrays.copyOf(encrypted, header - 1), "truncated header");
+    }
+
+    @Test
+    void unknownKeyIdIsRejected() throws IOException {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        keyIdHelper.encryptStream(new ByteArrayInputStream(plain(40)), encrypted);
+
+        assertThatThrownBy(() -> helper.decryptStream(new ByteArrayInputStream(encrypted.toByteArray()),
+                new ByteArrayOutputStream()))
+                .isInstanceOf(HsmCryptException.class)
+                .hasMessage("Unknown key ID: k1");
+    }
+
+    @Test
+    void failedFileDecryptionDeletesTheTarget() throws IOException {
+        Path source = Files.write(dir.resolve("plain"), plain(200_000));
+        keyIdHelper.encryptFile(source, dir.resolve("encrypted"));
+        byte[] encrypted = Files.readAllBytes(dir.resolve("encrypted"));
+        encrypted[encrypted.length - 1] ^= 1;
+        Files.write(dir.resolve("encrypted"), encrypted);
+
+        assertThatThrownBy(() -> keyIdHelper.decryptFile(dir.resolve("encrypted"), dir.resolve("decrypted")))
+                .isInstanceOf(HsmCryptException.class);
+        assertThat(dir.resolve("decrypted")).doesNotExist();
+    }
+
+    private byte[] encrypt(byte[] plain) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cipher.encrypt(defaultCrypt, "", new ByteArrayInputStream(plain), out);
+        return out.toByteArray();
+    }
+
+    private byte[] decrypt(byte[] encrypted) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cipher.decrypt(keys(), new ByteArrayInputStream(encrypted), out);
+        return out.toByteArray();
+    }
+
+    private void assertRejected(byte[] encrypted, String message) {
+        assertThatThrownBy(() -> decrypt(encrypted))
+                .isInstanceOf(HsmCryptException.class)
+                .hasMessageContaining(message);
+    }
+
+    private Function<String, HsmCrypt> keys() {
+        return keyId -> keyId.isEmpty() ? defaultCrypt : null;
+    }
+
+    /**
+     * Gets the length of a stream header: magic, chunk size, nonce prefix, key
+     * ID and wrapped data key.
+     */
+    private static int headerLength(byte[] encrypted) {
+        int keyIdLength = encrypted[15] & 0xff;
+        int wrappedLength = ByteBuffer.wrap(encrypted, 16 + keyIdLength, 2).getShort() & 0xffff;
+        return 18 + keyIdLength + wrappedLength;
+    }
+
+    private static byte[] plain(int length) {
+        byte[] plain = new byte[length];
+        for (int i = 0; i < length; i++) {
+            plain[i] = (byte) i;
+        }
+        return plain;
+    }
+}